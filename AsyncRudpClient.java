@@ -0,0 +1,1607 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+/**
+ * This is a non-blocking Reliable UDP client. Its channel and timers are driven by an event loop and every operation
+ * returns a future which is completed on the loop thread. Requests are pipelined: any number of them may be
+ * outstanding, up to {@link RudpDatagramPacket#REPLY_SLOTS} are in flight at once and each reply is matched to its
+ * request by the acknowledgement number it carries.
+ */
+public class AsyncRudpClient {
+    private static final int DUPLICATE_THRESHOLD = 3;   // packets reported after a gap which signal a loss
+
+    private final RudpEventLoop eventLoop;
+    private final DatagramChannel channel;      // non-blocking udp channel
+    private final NetworkEmulator emulator;     // impairs the packets sent, if configured
+    private final RudpTransport transport;      // counts the packets sent, through the emulator
+    private final RudpMetrics metrics;
+    private final InetSocketAddress serverAddress;
+    private final RttEstimator rttEstimator;    // round trip time of the connection
+    private final PacketPool packetPool;        // data packets, taken from the pool of the event loop
+    private final DatagramPacket packet;        // receive buffer
+    private final ByteBuffer buffer;            // the receive buffer seen by the channel
+    private final RudpHeader header;            // view of the reliable header in the receive buffer
+    private volatile boolean connected;
+    private volatile int windowSize;            // max number of unacknowledged packets in flight
+    private volatile CongestionControl congestionControl;
+    private volatile int advertisedWindow;      // number of packets the server accepts beyond its ACK number
+    private volatile int segmentSize;           // max number of data bytes in a fragment of a message
+    private volatile boolean sackEnabled;       // whether to ask the server for selective acknowledgements
+    private volatile int fecBlock;              // number of packets protected together, 0 without parity packets
+    private volatile int fecParity;             // number of parity packets sent after each block
+    private volatile int acceptedFecBlock;      // block size the server accepted, 0 if it takes no parity packets
+    private volatile int acceptedFecParity;     // number of parity packets of a block the server accepted
+    private volatile long retransmissions;      // number of packets sent again after a timeout
+    private volatile long retransmittedBytes;   // number of bytes sent again after a timeout
+    private short nextSequenceNumber;           // sequence number of the next data packet
+    private Exchange<?> exchange;               // control packet waiting for its response
+    private final ArrayDeque<Request<?>> requests;  // requests waiting for room in the pipeline
+    private final Request<?>[] inFlight;        // requests sent and not answered yet, by sequence number slot
+    private int requestCount;                   // number of requests in flight
+    private SendWindow window;                  // messages being sent by sendAll
+    private final short[] streamSequenceNumbers;    // sequence number of the next packet of each stream
+    private DatagramPacket lingerAck;           // last acknowledgement of a closed connection
+    private DatagramPacket handshakeAck;        // final acknowledgement of the handshake, until the server answers
+    private volatile boolean compressionEnabled;    // whether to offer compression in the connection request
+    private volatile boolean compressed;        // whether the server accepted compression of requests and replies
+    private final PayloadCodec codec;           // compresses the requests and expands the replies
+    private final DatagramPacket decodedReply;  // reply expanded by the codec
+    private volatile byte[] sessionToken;       // token of the last handshake, sent back to resume the session
+
+    public AsyncRudpClient(String serverName, int serverPort, RudpEventLoop eventLoop) throws IOException {
+        this.eventLoop = eventLoop;
+        serverAddress = new InetSocketAddress(serverName, serverPort);
+        if (serverAddress.isUnresolved()) {
+            throw new IOException("Unknown host: " + serverName);
+        }
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+        metrics = new RudpMetrics();
+        emulator = new NetworkEmulator(RudpTransport.of(channel), eventLoop.getTimers());
+        transport = RudpTransport.metered(emulator, metrics);
+        rttEstimator = new RttEstimator(metrics);
+        packetPool = eventLoop.getPacketPool();
+        packet = RudpDatagramPacket.createEmptyPacket();
+        buffer = ByteBuffer.wrap(packet.getData());
+        header = new RudpHeader().wrap(buffer, 0);
+        windowSize = RudpDatagramPacket.WINDOW_SIZE;
+        segmentSize = packetPool.getPacketSize() - RudpDatagramPacket.STREAM_HEADER_SIZE;
+        sackEnabled = true;
+        congestionControl = new NewRenoCongestionControl();
+        advertisedWindow = 0xFFFF;
+        requests = new ArrayDeque<>();
+        inFlight = new Request<?>[RudpDatagramPacket.REPLY_SLOTS];
+        streamSequenceNumbers = new short[RudpDatagramPacket.MAX_STREAMS];
+        codec = new PayloadCodec();
+        decodedReply = RudpDatagramPacket.createEmptyPacket();
+        eventLoop.register(channel, this::receive);
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        // the window must stay below half the sequence space so cumulative ACKs are unambiguous
+        if (windowSize < 1 || windowSize > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        this.windowSize = windowSize;
+    }
+
+    public CongestionControl getCongestionControl() {
+        return congestionControl;
+    }
+
+    /**
+     * Replaces the congestion controller. The number of packets in flight is the smallest of the window size, the
+     * congestion window and the window advertised by the server.
+     *
+     * @param congestionControl the congestion controller, used only by this client
+     */
+    public void setCongestionControl(CongestionControl congestionControl) {
+        this.congestionControl = congestionControl;
+    }
+
+    public int getAdvertisedWindow() {
+        return advertisedWindow;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        // a fragment must fit in a pooled packet and in the receive buffer of the server
+        if (segmentSize < 1 || segmentSize > packetPool.getPacketSize() - RudpDatagramPacket.STREAM_HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public boolean isSackEnabled() {
+        return sackEnabled;
+    }
+
+    /**
+     * Chooses whether the next connection asks the server for selective acknowledgements. Without them a timeout
+     * sends the whole window again.
+     *
+     * @param sackEnabled true to permit selective acknowledgements
+     */
+    public void setSackEnabled(boolean sackEnabled) {
+        this.sackEnabled = sackEnabled;
+    }
+
+    public int getFecBlock() {
+        return fecBlock;
+    }
+
+    public int getFecParity() {
+        return fecParity;
+    }
+
+    /**
+     * Sends parity packets with the sliding window, so the server rebuilds a lost packet instead of waiting a round
+     * trip for it to be sent again. The packets are protected in blocks of {@code block} consecutive packets,
+     * followed by {@code parity} parity packets: parity packet {@code j} is the XOR of the packets {@code j},
+     * {@code j + parity}, {@code j + 2 * parity}... of the block, so one loss in each of these groups is recovered.
+     * A burst of up to {@code parity} consecutive losses is recovered, at the cost of {@code parity / block} more
+     * packets; the messages are 2 bytes shorter to leave room for the parity header. The parity packets are offered
+     * in the next connection request and only sent once the server accepts them in its acknowledgement, which a
+     * server using SYN cookies does not.
+     *
+     * @param block  the number of packets of a block, up to {@link RudpDatagramPacket#MAX_FEC_BLOCK}, 0 to turn the
+     *               parity packets off
+     * @param parity the number of parity packets of a block, from 1 to the block size and up to
+     *               {@link RudpDatagramPacket#MAX_FEC_PARITY}
+     */
+    public void setForwardErrorCorrection(int block, int parity) {
+        if (block < 0 || block > 0 && !RudpDatagramPacket.isValidFec(block, parity)) {
+            throw new IllegalArgumentException("Invalid block of " + block + " packets with " + parity + " parity");
+        }
+        fecParity = block == 0 ? 0 : parity;
+        fecBlock = block;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Chooses whether the next connection offers to compress the requests and their replies. The server accepts in
+     * its acknowledgement, except in a stateless handshake. Each request is then compressed on its own, against the
+     * requests the connection sent before, unless it saves too little, see {@link PayloadCodec}. A request may be one
+     * byte shorter, for the byte telling whether it is compressed. Sequenced data is sent as it is.
+     *
+     * @param compressionEnabled true to offer compression
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * Checks if the current connection compresses its requests
+     *
+     * @return true if the server accepted compression
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Checks if the current connection sends parity packets
+     *
+     * @return true if the server accepted the parity packets offered in the connection request
+     */
+    public boolean isFecAccepted() {
+        return acceptedFecBlock > 0;
+    }
+
+    public long getRetransmissions() {
+        return retransmissions;
+    }
+
+    public long getRetransmittedBytes() {
+        return retransmittedBytes;
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    public PacketPool getPacketPool() {
+        return packetPool;
+    }
+
+    public NetworkEmulator getNetworkEmulator() {
+        return emulator;
+    }
+
+    public RudpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the session token the server handed out in the last handshake. A new client for the same server
+     * resumes the session with it, see {@link #setSessionToken(byte[])}.
+     *
+     * @return the token, or null if no handshake completed
+     */
+    public byte[] getSessionToken() {
+        byte[] token = sessionToken;
+        return token == null ? null : token.clone();
+    }
+
+    /**
+     * Makes the next connection resume a session of the server instead of doing the whole handshake. The token can
+     * be used once; the server hands out a new one in every handshake.
+     *
+     * @param sessionToken the token of an earlier connection, or null for a full handshake
+     */
+    public void setSessionToken(byte[] sessionToken) {
+        if (sessionToken != null && sessionToken.length != RudpDatagramPacket.TOKEN_SIZE) {
+            throw new IllegalArgumentException("Invalid session token of " + sessionToken.length + " bytes");
+        }
+        this.sessionToken = sessionToken == null ? null : sessionToken.clone();
+    }
+
+    /**
+     * Creates a UDP packet for requesting a connection
+     *
+     * @return the UDP packet
+     */
+    public DatagramPacket createConnectionRequestPacket() {
+        // the payload is only the reliable header, data is empty
+        byte[] payload = RudpDatagramPacket.createEmptyHeader();
+        RudpHeader reliableHeader = new RudpHeader().wrap(ByteBuffer.wrap(payload));
+        // set the SYN flag
+        reliableHeader.setSYN();
+        // permit selective acknowledgements
+        if (sackEnabled) {
+            reliableHeader.setSACK();
+        }
+        // on a connection request MORE offers compression
+        if (compressionEnabled) {
+            reliableHeader.setMORE();
+        }
+        // and the ACK number offers parity packets
+        if (fecBlock > 0) {
+            reliableHeader.setForwardErrorCorrection(fecBlock, fecParity);
+        }
+        // create random sequence number
+        reliableHeader.setSequenceNumber((short) (Math.random() * Short.MAX_VALUE));
+        // create the rudp datagram packet
+        return new DatagramPacket(payload, payload.length, serverAddress);
+    }
+
+    /**
+     * Creates a UDP packet for resuming a session: a connection request followed by the session token and the data
+     * of the first request
+     *
+     * @param token     the session token
+     * @param earlyData the data sent with the request, may be empty
+     * @return the UDP packet
+     */
+    public DatagramPacket createResumptionRequestPacket(byte[] token, byte[] earlyData) {
+        DatagramPacket requestPacket = createConnectionRequestPacket();
+        byte[] payload = new byte[RudpDatagramPacket.RELIABLE_HEADER_SIZE + token.length + earlyData.length];
+        System.arraycopy(requestPacket.getData(), 0, payload, 0, RudpDatagramPacket.RELIABLE_HEADER_SIZE);
+        System.arraycopy(token, 0, payload, RudpDatagramPacket.RELIABLE_HEADER_SIZE, token.length);
+        System.arraycopy(earlyData, 0, payload, RudpDatagramPacket.RELIABLE_HEADER_SIZE + token.length,
+                earlyData.length);
+        return new DatagramPacket(payload, payload.length, serverAddress);
+    }
+
+    /**
+     * Creates a UDP packet for acknowledging the server's acknowledgement (from the client)
+     *
+     * @param serverAckPacket the packet received on the server's acknowledgement
+     * @return the UDP packet
+     */
+    public DatagramPacket createClientAckPacket(DatagramPacket serverAckPacket) {
+        // create new packet, without the session token
+        DatagramPacket ackPacket = RudpDatagramPacket.copyPacket(serverAckPacket);
+        ackPacket.setLength(RudpDatagramPacket.RELIABLE_HEADER_SIZE);
+        // edit the reliable header in place
+        RudpHeader reliableHeader = new RudpHeader().wrap(ackPacket);
+        // reset the SYN, FIN, SACK and MORE flags
+        reliableHeader.resetSYN();
+        reliableHeader.resetFIN();
+        reliableHeader.resetSACK();
+        reliableHeader.resetMORE();
+        // set the ACK flag
+        reliableHeader.setACK();
+        // the server acknowledged our next sequence number, which a server using SYN cookies checks
+        short acknowledged = reliableHeader.getACKNumber();
+        // set the acknowledgement number
+        reliableHeader.setACKNumber((short) (reliableHeader.getSequenceNumber() + 1));
+        // set the sequence number
+        reliableHeader.setSequenceNumber(acknowledged);
+        // set address and port
+        ackPacket.setSocketAddress(serverAddress);
+        // return the rudp datagram packet
+        return ackPacket;
+    }
+
+    /**
+     * Connect to the server using 3-way handshake, or resume the session of the token set with
+     * {@link #setSessionToken(byte[])}.
+     *
+     * @return a future completed once the handshake is done
+     */
+    public CompletableFuture<Void> connect() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        eventLoop.execute(() -> handshake(null, future));
+        return future;
+    }
+
+    /**
+     * Connect to the server and send a first request. With a session token the request travels in the connection
+     * request itself, so its reply arrives one round trip earlier; without a token, or if the server no longer
+     * knows it, the request is sent once the 3-way handshake is done.
+     *
+     * @param request the first request, which must fit in a single packet
+     * @return a future completed with the reply from the server
+     */
+    public CompletableFuture<byte[]> connect(ByteBuffer request) {
+        byte[] data = new byte[request.remaining()];
+        request.get(data);
+        CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        eventLoop.execute(() -> {
+            if (!fitsInPacket(data, RudpDatagramPacket.RELIABLE_HEADER_SIZE + markerSize(), reply)) {
+                return;
+            }
+            CompletableFuture<Void> connected = new CompletableFuture<>();
+            connected.whenComplete((result, e) -> {
+                if (e != null) {
+                    reply.completeExceptionally(e);
+                }
+            });
+            handshake(new Request<>(data, AsyncRudpClient::copyReply, reply), connected);
+        });
+        return reply;
+    }
+
+    /**
+     * Sends the connection request until the server acknowledges it, on the loop thread
+     *
+     * @param earlyRequest the first request, sent in the connection request if a session is resumed, may be null
+     * @param future       completed once the connection is established
+     */
+    private void handshake(Request<?> earlyRequest, CompletableFuture<Void> future) {
+        byte[] token = sessionToken;
+        sessionToken = null;
+        handshakeAck = null;
+        // every stream of a new connection starts over
+        Arrays.fill(streamSequenceNumbers, (short) 0);
+        compressed = false;
+        codec.reset();
+        acceptedFecBlock = 0;
+        acceptedFecParity = 0;
+        boolean offered = compressionEnabled;
+        // a server resuming a session always accepts compression, the early data is encoded at once
+        byte[] earlyData = earlyRequest == null ? null : offered ? encode(earlyRequest.data) : earlyRequest.data;
+        boolean early = token != null && earlyData != null && RudpDatagramPacket.RELIABLE_HEADER_SIZE +
+                token.length + earlyData.length <= RudpDatagramPacket.PAYLOAD_MAX_SIZE;
+        // create the connection request
+        DatagramPacket requestPacket = token == null ? createConnectionRequestPacket() :
+                createResumptionRequestPacket(token, early ? earlyData : new byte[0]);
+        // data packets continue right after the initial sequence number
+        short ackNumber = (short) (new RudpHeader().wrap(requestPacket).getSequenceNumber() + 1);
+        nextSequenceNumber = ackNumber;
+        long start = System.nanoTime();
+        RudpEvents.Handshake event = new RudpEvents.Handshake();
+        event.begin();
+        // send the request until the acknowledgement is received; it covers the early data if the server took it
+        start(new Exchange<>(requestPacket, reply -> reply.isSYN() && (isAcknowledged(reply, ackNumber) ||
+                early && isAcknowledged(reply, (short) (ackNumber + 1))),
+                ackPacket -> {
+                    RudpLog.info("Connection acknowledgement received.");
+                    compressed = offered && header.isMORE();
+                    if (ackPacket.getLength() >= RudpDatagramPacket.RELIABLE_HEADER_SIZE +
+                            RudpDatagramPacket.TOKEN_SIZE) {
+                        int offset = ackPacket.getOffset() + RudpDatagramPacket.RELIABLE_HEADER_SIZE;
+                        sessionToken = Arrays.copyOfRange(ackPacket.getData(), offset,
+                                offset + RudpDatagramPacket.TOKEN_SIZE);
+                    }
+                    acceptFec(ackPacket, new RudpHeader().wrap(requestPacket));
+                    if (early && isAcknowledged(header, (short) (ackNumber + 1))) {
+                        // the server resumed the session and took the request, which now waits for its reply; it
+                        // enters the history as the first request, the packet to send it again is not decoded
+                        nextSequenceNumber++;
+                        earlyRequest.track(ackNumber, start);
+                    } else {
+                        // send the acknowledgement
+                        handshakeAck = createClientAckPacket(ackPacket);
+                        transport.send(handshakeAck);
+                        RudpLog.info("Connection acknowledgement sent.");
+                        if (earlyRequest != null) {
+                            requests.addFirst(earlyRequest);
+                        }
+                    }
+                    connected = true;
+                    metrics.onHandshake(System.nanoTime() - start);
+                    if (token != null) {
+                        metrics.onResumption();
+                    }
+                    if (event.shouldCommit()) {
+                        event.peer = serverAddress.toString();
+                        event.side = token != null ? "client, resumed" : "client";
+                        event.commit();
+                    }
+                    return null;
+                }, future));
+        RudpLog.info("Connection request sent.");
+    }
+
+    /**
+     * Send a message to the server, completing with the echo. The message must fit in a single packet, larger
+     * messages are sent with {@link #sendMessage(byte[])}.
+     *
+     * @param msg content of the message
+     * @return a future completed with the response from the server
+     */
+    public CompletableFuture<String> sendEcho(String msg) {
+        return submit(msg.getBytes(), response -> {
+            if (RudpLog.isDebugEnabled()) {
+                RudpLog.debug("Message received. " + response.getLength());
+            }
+            // decode the data straight from the receive buffer
+            return new String(response.getData(), response.getOffset() + RudpDatagramPacket.RELIABLE_HEADER_SIZE,
+                    response.getLength() - RudpDatagramPacket.RELIABLE_HEADER_SIZE);
+        });
+    }
+
+    /**
+     * Send a request to the server without waiting for the previous ones. The remaining bytes of the buffer are
+     * copied before this call returns, so the buffer may be reused at once. Requests are sent in order, and the
+     * futures complete on the loop thread as the replies arrive.
+     *
+     * @param request the request, which must fit in a single packet
+     * @return a future completed with the reply from the server
+     */
+    public CompletableFuture<byte[]> send(ByteBuffer request) {
+        byte[] data = new byte[request.remaining()];
+        request.get(data);
+        return submit(data, AsyncRudpClient::copyReply);
+    }
+
+    private static byte[] copyReply(DatagramPacket response) {
+        return Arrays.copyOfRange(response.getData(), response.getOffset() + RudpDatagramPacket.RELIABLE_HEADER_SIZE,
+                response.getOffset() + response.getLength());
+    }
+
+    /**
+     * Queues a request for the pipeline
+     *
+     * @param data    the encoded request
+     * @param handler turns the reply into the result
+     * @return a future completed with the result
+     */
+    private <T> CompletableFuture<T> submit(byte[] data, ResponseHandler<T> handler) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        eventLoop.execute(() -> {
+            if (!fitsInPacket(data, RudpDatagramPacket.RELIABLE_HEADER_SIZE + markerSize(), future)) {
+                return;
+            }
+            requests.add(new Request<>(data, handler, future));
+            sendRequests();
+        });
+        return future;
+    }
+
+    /**
+     * Sends the queued requests while the pipeline has room. A request may only reuse the reply slot of a request
+     * which was answered, so the server still keeps the reply of every request in flight. Requests wait for the
+     * handshake and for a window being sent, whose sequence numbers come first; a window waits in turn for the
+     * requests in flight.
+     */
+    private void sendRequests() {
+        if (exchange != null) {
+            return;
+        }
+        if (window != null) {
+            if (requestCount == 0 && !window.isStarted()) {
+                fillWindow();
+            }
+            return;
+        }
+        int limit = Math.max(1, Math.min(Math.min(windowSize, RudpDatagramPacket.REPLY_SLOTS),
+                Math.min(congestionControl.getWindow(), advertisedWindow)));
+        while (!requests.isEmpty() && requestCount < limit && inFlight[replySlotOf(nextSequenceNumber)] == null) {
+            // a request which does not fit once encoded fails without taking a sequence number
+            if (requests.poll().send(nextSequenceNumber)) {
+                nextSequenceNumber++;
+            }
+        }
+    }
+
+    /**
+     * Fails every request, queued or in flight
+     *
+     * @param e the cause
+     */
+    private void failRequests(IOException e) {
+        Request<?> request;
+        while ((request = requests.poll()) != null) {
+            request.future.completeExceptionally(e);
+        }
+        for (Request<?> sent : inFlight) {
+            if (sent != null) {
+                sent.fail(e);
+            }
+        }
+    }
+
+    private static int replySlotOf(short sequenceNumber) {
+        return sequenceNumber & (RudpDatagramPacket.REPLY_SLOTS - 1);
+    }
+
+    /**
+     * Send several messages to the server using a Go-Back-N sliding window: up to {@link #getWindowSize()}
+     * packets are kept in flight and the window slides on every cumulative acknowledgement. When the oldest
+     * unacknowledged packet times out, every packet in the window is sent again. The packets carry the SEQ flag,
+     * so the server acknowledges them without echoing, and belong to stream 0.
+     *
+     * @param messages the messages to be sent, in order
+     * @return a future completed once every message is acknowledged
+     */
+    public CompletableFuture<Void> sendAll(List<String> messages) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        eventLoop.execute(() -> {
+            // check every message before any sequence number is used
+            byte[][] data = new byte[messages.size()][];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = messages.get(i).getBytes();
+                if (!fitsInPacket(data[i], RudpDatagramPacket.STREAM_HEADER_SIZE + parityRoom(), future)) {
+                    return;
+                }
+            }
+            startWindow(data.length, (index, sequenceNumber) -> {
+                DatagramPacket dataPacket = RudpDatagramPacket.writeStreamPacket(packetPool.acquire(), data[index], 0,
+                        data[index].length, sequenceNumber, 0, streamSequenceNumbers[0]++);
+                dataPacket.setSocketAddress(serverAddress);
+                return dataPacket;
+            }, future);
+        });
+        return future;
+    }
+
+    /**
+     * Send a message of any size to the server. The message is cut into fragments of {@link #getSegmentSize()}
+     * bytes which are sent through the sliding window; every fragment but the last carries the MORE flag, and the
+     * server reassembles them in order. Fragments are copied straight from the message into pooled packets as they
+     * enter the window. The message goes on stream 0.
+     *
+     * @param message the message
+     * @return a future completed once every fragment is acknowledged
+     */
+    public CompletableFuture<Void> sendMessage(byte[] message) {
+        return sendMessage(0, message);
+    }
+
+    /**
+     * Send a message of any size to the server on the given stream, like {@link #sendMessage(byte[])}
+     *
+     * @param stream  the id of the stream, from 0 to {@link RudpDatagramPacket#MAX_STREAMS} - 1
+     * @param message the message
+     * @return a future completed once every fragment is acknowledged
+     */
+    public CompletableFuture<Void> sendMessage(int stream, byte[] message) {
+        return sendStreams(Map.of(stream, message));
+    }
+
+    /**
+     * Send one message on each of several streams through one sliding window. The fragments of the messages are
+     * interleaved, one fragment of each stream in turn, so a short message does not wait behind a long one, and the
+     * server delivers each stream as soon as it has it in order: a packet lost on one stream does not hold back the
+     * messages of the others.
+     *
+     * @param messages the message of each stream, by stream id
+     * @return a future completed once every fragment is acknowledged
+     */
+    public CompletableFuture<Void> sendStreams(Map<Integer, byte[]> messages) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        eventLoop.execute(() -> {
+            int size = segmentLimit();
+            int[] streams = new int[messages.size()];
+            byte[][] data = new byte[streams.length][];
+            int[] fragments = new int[streams.length];
+            int count = 0;
+            int rounds = 0;
+            int i = 0;
+            for (Map.Entry<Integer, byte[]> entry : messages.entrySet()) {
+                streams[i] = entry.getKey();
+                if (streams[i] < 0 || streams[i] >= RudpDatagramPacket.MAX_STREAMS) {
+                    future.completeExceptionally(new IllegalArgumentException("Invalid stream: " + streams[i]));
+                    return;
+                }
+                data[i] = entry.getValue();
+                // an empty message still takes one packet
+                fragments[i] = Math.max(1, (data[i].length + size - 1) / size);
+                count += fragments[i];
+                rounds = Math.max(rounds, fragments[i]);
+                i++;
+            }
+            // the message and the index of the fragment sent at each place of the window, round robin
+            int[] messageAt = new int[count];
+            int[] fragmentAt = new int[count];
+            int index = 0;
+            for (int round = 0; round < rounds; round++) {
+                for (int m = 0; m < streams.length; m++) {
+                    if (round < fragments[m]) {
+                        messageAt[index] = m;
+                        fragmentAt[index++] = round;
+                    }
+                }
+            }
+            startWindow(count, (place, sequenceNumber) -> {
+                int m = messageAt[place];
+                int offset = fragmentAt[place] * size;
+                DatagramPacket fragment = RudpDatagramPacket.writeStreamPacket(packetPool.acquire(), data[m], offset,
+                        Math.min(size, data[m].length - offset), sequenceNumber, streams[m],
+                        streamSequenceNumbers[streams[m]]++);
+                if (fragmentAt[place] < fragments[m] - 1) {
+                    RudpDatagramPacket.setMORE(fragment.getData());
+                }
+                fragment.setSocketAddress(serverAddress);
+                return fragment;
+            }, future);
+        });
+        return future;
+    }
+
+    /**
+     * Send a file to a server whose message listener is a {@link FileReceiver}. The file is memory-mapped and every
+     * segment is copied straight from the mapping into a pooled packet as it enters the sliding window, on
+     * {@link RudpDatagramPacket#FILE_STREAM}. The segments the server acknowledged are recorded in a
+     * {@link TransferBitmap} at the given path, so sending the same file again after an interruption only sends the
+     * segments which are missing; the bitmap is deleted once the whole file is acknowledged. Files up to 2 GB are
+     * supported.
+     *
+     * @param file     the file
+     * @param progress the file of the bitmap of the segments acknowledged
+     * @return a future completed once every segment is acknowledged
+     */
+    public CompletableFuture<Void> sendFile(Path file, Path progress) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        int size = segmentLimit() - RudpDatagramPacket.FILE_HEADER_SIZE;
+        byte[] name = file.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+        MappedByteBuffer data;
+        TransferBitmap sent;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE || size < 1) {
+                future.completeExceptionally(new IllegalArgumentException("Cannot send " + file + " of " +
+                        channel.size() + " bytes in segments of " + size + " bytes"));
+                return future;
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            sent = new TransferBitmap(progress, channel.size(), size);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        // the first message names the file, the server maps it at its full length
+        ByteBuffer open = ByteBuffer.allocate(1 + Long.BYTES + Integer.BYTES + name.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        open.put((byte) RudpDatagramPacket.FILE_OPEN).putLong(data.limit()).putInt(size).put(name);
+        if (!fitsInPacket(open.array(), RudpDatagramPacket.STREAM_HEADER_SIZE + parityRoom(), future)) {
+            return future;
+        }
+        int[] missing = new int[sent.getSegments() - sent.getDone()];
+        for (int segment = 0, i = 0; i < missing.length; segment++) {
+            if (!sent.get(segment)) {
+                missing[i++] = segment;
+            }
+        }
+        eventLoop.execute(() -> startWindow(1 + missing.length, new PacketSource() {
+            @Override
+            public DatagramPacket create(int index, short sequenceNumber) {
+                short streamSequenceNumber = streamSequenceNumbers[RudpDatagramPacket.FILE_STREAM]++;
+                DatagramPacket filePacket;
+                if (index == 0) {
+                    filePacket = RudpDatagramPacket.writeStreamPacket(packetPool.acquire(), open.array(), 0,
+                            open.capacity(), sequenceNumber, RudpDatagramPacket.FILE_STREAM, streamSequenceNumber);
+                } else {
+                    int segment = missing[index - 1];
+                    int offset = segment * size;
+                    int length = Math.min(size, data.limit() - offset);
+                    filePacket = RudpDatagramPacket.writeStreamHeader(packetPool.acquire(),
+                            RudpDatagramPacket.FILE_HEADER_SIZE + length, sequenceNumber,
+                            RudpDatagramPacket.FILE_STREAM, streamSequenceNumber);
+                    byte[] payload = filePacket.getData();
+                    int at = RudpDatagramPacket.STREAM_HEADER_SIZE;
+                    payload[at] = RudpDatagramPacket.FILE_SEGMENT;
+                    for (int i = 0; i < 4; i++) {
+                        payload[at + 1 + i] = (byte) (segment >>> (8 * i));
+                    }
+                    // straight from the mapped file into the packet
+                    data.get(offset, payload, at + RudpDatagramPacket.FILE_HEADER_SIZE, length);
+                }
+                filePacket.setSocketAddress(serverAddress);
+                return filePacket;
+            }
+
+            @Override
+            public void acknowledged(int index) {
+                if (index > 0) {
+                    sent.set(missing[index - 1]);
+                }
+            }
+        }, future));
+        return future.thenRun(() -> {
+            try {
+                sent.delete();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Starts sending packets through the sliding window unless another window is being sent. The window waits for
+     * the requests in flight, if any.
+     *
+     * @param count  the number of packets
+     * @param source builds the packets as they enter the window
+     * @param future completed once every packet is acknowledged
+     */
+    private void startWindow(int count, PacketSource source, CompletableFuture<Void> future) {
+        if (window != null) {
+            future.completeExceptionally(new IllegalStateException("Another window is being sent"));
+            return;
+        }
+        window = new SendWindow(count, source, future);
+        if (requestCount == 0) {
+            fillWindow();
+        }
+    }
+
+    private void fillWindow() {
+        try {
+            window.fill();
+        } catch (IOException e) {
+            window.fail(e);
+        }
+    }
+
+    /**
+     * Close the connection to the server.
+     *
+     * @return a future completed once the connection is closed
+     */
+    public CompletableFuture<Void> close() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        eventLoop.execute(() -> {
+            // send the disconnection request until the server acknowledges it
+            DatagramPacket requestPacket = RudpDatagramPacket.createDisconnectRequestPacket(
+                    serverAddress.getAddress(), serverAddress.getPort());
+            CompletableFuture<Void> acknowledged = new CompletableFuture<>();
+            acknowledged.whenComplete((result, e) -> {
+                if (e != null) {
+                    closeChannel();
+                    future.completeExceptionally(e);
+                }
+            });
+            start(new Exchange<>(requestPacket, RudpHeader::isFIN, closeAck -> {
+                // send the acknowledgement to the server
+                lingerAck = createClientAckPacket(closeAck);
+                transport.send(lingerAck);
+                // linger for a while to acknowledge the server's close acknowledgement again if ours was lost
+                eventLoop.getTimers().schedule(() -> {
+                    closeChannel();
+                    future.complete(null);
+                }, 2 * rttEstimator.getTimeout());
+                return null;
+            }, acknowledged));
+        });
+        return future;
+    }
+
+    /**
+     * Checks if a message fits in a single packet, failing the future if it does not
+     *
+     * @param data       the encoded message
+     * @param headerSize the size of the header in front of the message
+     * @param future     the future of the operation
+     * @return true if the message fits, false otherwise
+     */
+    private boolean fitsInPacket(byte[] data, int headerSize, CompletableFuture<?> future) {
+        if (headerSize + data.length > packetPool.getPacketSize()) {
+            future.completeExceptionally(new IllegalArgumentException("Message of " + data.length +
+                    " bytes does not fit in one packet, use sendMessage"));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the parity packets the server accepted after the token of its acknowledgement. Only the ones offered are
+     * taken, so a server which does not know them, and sends no more than its token, gets none.
+     *
+     * @param ackPacket     the acknowledgement of the connection request
+     * @param requestHeader view of the reliable header of the connection request
+     */
+    private void acceptFec(DatagramPacket ackPacket, RudpHeader requestHeader) {
+        int offset = ackPacket.getOffset() + RudpDatagramPacket.RELIABLE_HEADER_SIZE + RudpDatagramPacket.TOKEN_SIZE;
+        if (requestHeader.getFecBlock() == 0 || ackPacket.getLength() < RudpDatagramPacket.RELIABLE_HEADER_SIZE +
+                RudpDatagramPacket.TOKEN_SIZE + RudpDatagramPacket.FEC_ACCEPT_SIZE) {
+            return;
+        }
+        int block = ackPacket.getData()[offset] & 0xFF;
+        int parity = ackPacket.getData()[offset + 1] & 0xFF;
+        if (block <= requestHeader.getFecBlock() && parity <= requestHeader.getFecParity() &&
+                RudpDatagramPacket.isValidFec(block, parity)) {
+            acceptedFecParity = parity;
+            acceptedFecBlock = block;
+        }
+    }
+
+    /**
+     * Returns the number of bytes a packet leaves for the parity header
+     *
+     * @return the room, 0 without parity packets
+     */
+    private int parityRoom() {
+        return acceptedFecBlock > 0 ? RudpDatagramPacket.PARITY_OVERHEAD : 0;
+    }
+
+    /**
+     * Returns the size of the fragments of the next window, shorter than the segment size if parity packets must
+     * fit in a packet
+     *
+     * @return the number of data bytes of a fragment
+     */
+    private int segmentLimit() {
+        return Math.min(segmentSize,
+                packetPool.getPacketSize() - RudpDatagramPacket.STREAM_HEADER_SIZE - parityRoom());
+    }
+
+    /**
+     * Creates a data packet for the server in a pooled packet
+     *
+     * @param data           the message, which fits in one packet as it is
+     * @param sequenceNumber the sequence number of the packet
+     * @param history        the position of the codec history the message is compressed against
+     * @return the packet, to be released with {@link #releaseDataPacket(DatagramPacket)}, or null if the message
+     * no longer fits once encoded, as a request queued before the server accepted compression may not
+     */
+    private DatagramPacket createDataPacket(byte[] data, short sequenceNumber, long history) {
+        DatagramPacket dataPacket = packetPool.acquire();
+        if (compressed) {
+            // encode straight into the packet, the header is written in front
+            byte[] payload = dataPacket.getData();
+            int length = codec.encode(data, 0, data.length, payload, RudpDatagramPacket.RELIABLE_HEADER_SIZE,
+                    payload.length - RudpDatagramPacket.RELIABLE_HEADER_SIZE, history);
+            if (length < 0) {
+                releaseDataPacket(dataPacket);
+                return null;
+            }
+            RudpDatagramPacket.writeDataPacket(dataPacket, payload, RudpDatagramPacket.RELIABLE_HEADER_SIZE, length,
+                    sequenceNumber);
+        } else {
+            RudpDatagramPacket.writeDataPacket(dataPacket, data, sequenceNumber);
+        }
+        dataPacket.setSocketAddress(serverAddress);
+        return dataPacket;
+    }
+
+    /**
+     * Returns the number of bytes a request leaves for the byte telling whether it is compressed, as negotiated by
+     * the current connection, the same way {@link #createDataPacket(byte[], short, long)} encodes it
+     *
+     * @return the room, 0 without compression
+     */
+    private int markerSize() {
+        return compressed ? PayloadCodec.MARKER_SIZE : 0;
+    }
+
+    /**
+     * Encodes a request which travels in the connection request, as the first of the history
+     *
+     * @param data the request
+     * @return the encoded request
+     */
+    private byte[] encode(byte[] data) {
+        byte[] encoded = new byte[PayloadCodec.MARKER_SIZE + data.length];
+        return Arrays.copyOf(encoded, codec.encode(data, 0, data.length, encoded, 0, encoded.length,
+                codec.getPosition()));
+    }
+
+    /**
+     * Expands a compressed reply into a packet of its own, header included
+     *
+     * @param response the reply as received
+     * @param history  the position of the codec history its request was compressed against
+     * @return the expanded reply, valid until the next reply is expanded
+     */
+    private DatagramPacket decodeReply(DatagramPacket response, long history) throws IOException {
+        byte[] decoded = decodedReply.getData();
+        int offset = response.getOffset() + RudpDatagramPacket.RELIABLE_HEADER_SIZE;
+        System.arraycopy(response.getData(), response.getOffset(), decoded, 0, RudpDatagramPacket.RELIABLE_HEADER_SIZE);
+        int length = codec.decode(response.getData(), offset, response.getLength() -
+                RudpDatagramPacket.RELIABLE_HEADER_SIZE, decoded, RudpDatagramPacket.RELIABLE_HEADER_SIZE,
+                decoded.length - RudpDatagramPacket.RELIABLE_HEADER_SIZE, history);
+        if (length < 0) {
+            throw new IOException("Corrupt reply from " + serverAddress);
+        }
+        decodedReply.setLength(RudpDatagramPacket.RELIABLE_HEADER_SIZE + length);
+        return decodedReply;
+    }
+
+    /**
+     * Hands a data packet back to the pool once it cannot be sent again
+     *
+     * @param dataPacket the packet
+     */
+    private void releaseDataPacket(DatagramPacket dataPacket) {
+        if (dataPacket.getData().length == packetPool.getPacketSize()) {
+            packetPool.release(dataPacket);
+        }
+    }
+
+    /**
+     * Closes the channel and forgets about the server, failing the requests still waiting
+     */
+    private void closeChannel() {
+        connected = false;
+        failRequests(new IOException("Connection closed"));
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts a request unless another one is still waiting for its response
+     *
+     * @param request the request
+     */
+    private void start(Exchange<?> request) {
+        if (exchange != null) {
+            releaseDataPacket(request.retransmission.getPacket());
+            request.future.completeExceptionally(new IllegalStateException("Another request is in progress"));
+            return;
+        }
+        exchange = request;
+        try {
+            request.retransmission.start();
+        } catch (IOException e) {
+            request.fail(e);
+        }
+    }
+
+    /**
+     * Sends the final acknowledgement of the handshake again if the server never answered past it. A server using SYN
+     * cookies keeps no state until that acknowledgement arrives, so it drops our data until then.
+     */
+    private void resendHandshakeAck() throws IOException {
+        if (handshakeAck != null) {
+            transport.send(handshakeAck);
+        }
+    }
+
+    /**
+     * Receives the datagrams waiting on the channel, up to a batch, and hands each to the request or window it
+     * answers. The window sends the packets its acknowledgements made room for once the batch is handled, in one
+     * burst, and so does the pipeline of requests.
+     */
+    private void receive() throws IOException {
+        try {
+            for (int i = 0; i < RudpDatagramPacket.RECEIVE_BATCH; i++) {
+                buffer.clear();
+                if (channel.receive(buffer) == null) {
+                    break;
+                }
+                packet.setLength(buffer.position());
+                metrics.onPacketIn(packet.getLength());
+                if (packet.getLength() < RudpDatagramPacket.RELIABLE_HEADER_SIZE ||
+                        packet.getLength() < header.getHeaderLength()) {
+                    continue;
+                }
+                if (header.isACK() && header.isWND()) {
+                    advertisedWindow = Math.max(1, header.getWindow());
+                }
+                if (handshakeAck != null && !header.isSYN()) {
+                    // the server answered past the handshake, so it got our acknowledgement
+                    handshakeAck = null;
+                }
+                if (lingerAck != null) {
+                    if (header.isFIN()) {
+                        transport.send(lingerAck);
+                    }
+                } else if (exchange != null && exchange.isResponse.test(header)) {
+                    exchange.complete(packet);
+                } else if (isReply(header)) {
+                    inFlight[replySlotOf((short) (header.getACKNumber() - 1))].complete(packet);
+                } else if (requestCount > 0) {
+                    if (header.isACK() && header.isSACK()) {
+                        selectiveAcknowledgeRequests(header.getACKNumber(), header.getSackBitmap());
+                    }
+                } else if (window != null) {
+                    if (header.isACK()) {
+                        if (header.isSACK()) {
+                            window.selectiveAcknowledge(header.getACKNumber(), header.getSackBitmap());
+                        }
+                        window.acknowledge(header.getACKNumber());
+                    }
+                }
+            }
+        } finally {
+            if (window != null) {
+                window.flush();
+            }
+            sendRequests();
+        }
+    }
+
+    /**
+     * Handles the SACK bitmap of a bare acknowledgement while requests are in flight. The server holds the requests
+     * in the bitmap until the one it expects arrives, so their timers are restarted instead of sending them again,
+     * and the missing request is sent again at once when enough requests after it arrived.
+     *
+     * @param ackNumber the sequence number of the request the server is missing
+     * @param bitmap    bit {@code i} is set if the server holds the request {@code ackNumber + 1 + i}
+     */
+    private void selectiveAcknowledgeRequests(short ackNumber, int bitmap) throws IOException {
+        Request<?> missing = inFlight[replySlotOf(ackNumber)];
+        if (missing == null || missing.sequenceNumber != ackNumber) {
+            return;
+        }
+        for (int i = 0; i < RudpDatagramPacket.SACK_BITS; i++) {
+            if ((bitmap & (1 << i)) != 0) {
+                short sequenceNumber = (short) (ackNumber + 1 + i);
+                Request<?> held = inFlight[replySlotOf(sequenceNumber)];
+                if (held != null && held.sequenceNumber == sequenceNumber) {
+                    held.restartTimer();
+                }
+            }
+        }
+        // like three duplicate acknowledgements in TCP, handled once per request
+        if (!missing.fastRetransmitted && Integer.bitCount(bitmap) >= DUPLICATE_THRESHOLD) {
+            missing.fastRetransmitted = true;
+            congestionControl.onLoss();
+            missing.resend();
+        }
+    }
+
+    /**
+     * Checks if the given packet is the reply to a request in flight
+     *
+     * @param header the reliable header of the packet received from the server
+     * @return true if the packet answers a request, false for late duplicates and other packets
+     */
+    private boolean isReply(RudpHeader header) {
+        if (!header.isPSH() || !header.isACK()) {
+            return false;
+        }
+        short requestSequenceNumber = (short) (header.getACKNumber() - 1);
+        Request<?> request = inFlight[replySlotOf(requestSequenceNumber)];
+        return request != null && request.sequenceNumber == requestSequenceNumber;
+    }
+
+    /**
+     * Checks if the given packet acknowledges everything before the given sequence number
+     *
+     * @param header    the reliable header of the packet received from the server
+     * @param ackNumber the expected acknowledgement number
+     * @return true if the packet carries the expected acknowledgement, false otherwise
+     */
+    private static boolean isAcknowledged(RudpHeader header, short ackNumber) {
+        return header.isACK() && header.getACKNumber() == ackNumber;
+    }
+
+    /**
+     * Turns the response of a request into the result of its future, on the loop thread
+     *
+     * @param <T> the type of the result
+     */
+    private interface ResponseHandler<T> {
+        T handle(DatagramPacket response) throws IOException;
+    }
+
+    /**
+     * Builds the packet of one item of a window
+     */
+    private interface PacketSource {
+        /**
+         * Creates the packet of an item, taking it from the pool
+         *
+         * @param index          the index of the item in the window
+         * @param sequenceNumber the sequence number of the packet
+         * @return the packet
+         */
+        DatagramPacket create(int index, short sequenceNumber);
+
+        /**
+         * Called once the server acknowledged the packet of an item
+         *
+         * @param index the index of the item in the window
+         */
+        default void acknowledged(int index) {
+        }
+    }
+
+    /**
+     * A request which is sent until the matching response arrives
+     *
+     * @param <T> the type of the result
+     */
+    private class Exchange<T> {
+        private final Retransmission retransmission;
+        private final Predicate<RudpHeader> isResponse;
+        private final ResponseHandler<T> handler;
+        private final CompletableFuture<T> future;
+
+        Exchange(DatagramPacket request, Predicate<RudpHeader> isResponse, ResponseHandler<T> handler,
+                 CompletableFuture<T> future) {
+            this.isResponse = isResponse;
+            this.handler = handler;
+            this.future = future;
+            retransmission = new Retransmission(transport, request, rttEstimator, eventLoop.getTimers(),
+                    () -> fail(new SocketTimeoutException("No acknowledgement after " +
+                            RudpDatagramPacket.MAX_RETRIES + " retries")), metrics);
+        }
+
+        void complete(DatagramPacket response) {
+            retransmission.acknowledge();
+            finish();
+            try {
+                future.complete(handler.handle(response));
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        void fail(IOException e) {
+            retransmission.cancel();
+            finish();
+            future.completeExceptionally(e);
+            // the queued requests are not held back by a failed handshake
+            sendRequests();
+        }
+
+        private void finish() {
+            retransmissions += retransmission.getRetries();
+            retransmittedBytes += (long) retransmission.getRetries() * retransmission.getPacket().getLength();
+            releaseDataPacket(retransmission.getPacket());
+            exchange = null;
+        }
+    }
+
+    /**
+     * A request of the pipeline. It is queued until the pipeline has room, then its packet is sent until the reply
+     * arrives. Every request backs off on its own timer: a burst of losses across the pipeline must not double the
+     * shared timeout once per lost request.
+     *
+     * @param <T> the type of the result
+     */
+    private class Request<T> implements TimerWheel.Task {
+        private final byte[] data;
+        private final ResponseHandler<T> handler;
+        private final CompletableFuture<T> future;
+        private DatagramPacket packet;              // pooled packet, sent again on every timeout
+        private TimerWheel.Timeout timeout;
+        private long sentAt;                        // time of the first transmission in nanoseconds
+        private int retries;                        // number of retransmissions so far
+        private boolean fastRetransmitted;          // whether a SACK bitmap already made us send it again
+        private short sequenceNumber;
+        private long history;                       // position of the codec history the request is compressed against
+
+        Request(byte[] data, ResponseHandler<T> handler, CompletableFuture<T> future) {
+            this.data = data;
+            this.handler = handler;
+            this.future = future;
+        }
+
+        /**
+         * Sends the request for the first time
+         *
+         * @param sequenceNumber the sequence number of the request
+         * @return true if the request took the sequence number, false if it failed because it does not fit
+         */
+        boolean send(short sequenceNumber) {
+            if (!track(sequenceNumber, System.nanoTime())) {
+                return false;
+            }
+            try {
+                transport.send(packet);
+            } catch (IOException e) {
+                fail(e);
+                return true;
+            }
+            if (RudpLog.isDebugEnabled()) {
+                RudpLog.debug("Message sent. " + packet.getLength());
+            }
+            return true;
+        }
+
+        /**
+         * Puts the request in flight and starts its timer. A request which travelled in the connection request is
+         * only tracked, its packet is built to be sent again if the reply is lost.
+         *
+         * @param sequenceNumber the sequence number of the request
+         * @param sentAt         the time of the first transmission in nanoseconds
+         * @return true if the request is in flight, false if it failed because it does not fit in a packet
+         */
+        boolean track(short sequenceNumber, long sentAt) {
+            history = codec.getPosition();
+            packet = createDataPacket(data, sequenceNumber, history);
+            if (packet == null) {
+                future.completeExceptionally(new IllegalArgumentException("Message of " + data.length +
+                        " bytes does not fit in one packet once encoded, use sendMessage"));
+                return false;
+            }
+            if (compressed) {
+                // the server adds the request to its history as it delivers it, in the order of the sequence numbers
+                codec.append(data, 0, data.length);
+            }
+            this.sequenceNumber = sequenceNumber;
+            this.sentAt = sentAt;
+            inFlight[replySlotOf(sequenceNumber)] = this;
+            requestCount++;
+            timeout = eventLoop.getTimers().schedule(this, rttEstimator.getTimeout());
+            return true;
+        }
+
+        @Override
+        public void expire() throws IOException {
+            timeout = null;
+            if (++retries > RudpDatagramPacket.MAX_RETRIES) {
+                fail(new SocketTimeoutException("No reply after " + RudpDatagramPacket.MAX_RETRIES + " retries"));
+                sendRequests();
+                return;
+            }
+            resendHandshakeAck();
+            resend();
+        }
+
+        /**
+         * Sends the request again and restarts its timer with the doubled timeout
+         */
+        void resend() throws IOException {
+            if (retries == 0) {
+                retries = 1;
+            }
+            transport.send(packet);
+            retransmissions++;
+            retransmittedBytes += packet.getLength();
+            metrics.onRetransmit(1, packet.getLength());
+            restartTimer();
+            RudpEvents.retransmit(packet, 1, backoff());
+        }
+
+        /**
+         * Waits a whole timeout again before sending the request again
+         */
+        void restartTimer() {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            timeout = eventLoop.getTimers().schedule(this, backoff());
+        }
+
+        private long backoff() {
+            return Math.min(RudpDatagramPacket.TIMEOUT, rttEstimator.getTimeout() << Math.min(retries, 16));
+        }
+
+        void complete(DatagramPacket response) {
+            // Karn's rule: only a request sent once gives an RTT sample
+            if (retries == 0) {
+                double rttMillis = (System.nanoTime() - sentAt) / 1e6;
+                rttEstimator.addSample(rttMillis);
+                congestionControl.onRttSample(rttMillis);
+            } else {
+                rttEstimator.resetBackoff();
+            }
+            congestionControl.onAck(1);
+            finish();
+            try {
+                future.complete(handler.handle(compressed ? decodeReply(response, history) : response));
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        void fail(IOException e) {
+            finish();
+            future.completeExceptionally(e);
+        }
+
+        private void finish() {
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+            releaseDataPacket(packet);
+            inFlight[replySlotOf(sequenceNumber)] = null;
+            requestCount--;
+        }
+    }
+
+    /**
+     * The Go-Back-N window of {@link #sendAll(List)} and {@link #sendMessage(byte[])}. A single timer guards the
+     * oldest unacknowledged packet; when it expires every packet in the window is sent again, except those the
+     * server reported in a SACK bitmap. The window holds at most as many packets as the congestion controller and
+     * the server allow; a SACK bitmap showing packets after a gap counts as a loss once per window and the gap is
+     * sent again at once. Packets are taken from the pool when they enter the
+     * window and released as soon as they are acknowledged, so a long batch needs no more than a window of packets.
+     */
+    private class SendWindow implements TimerWheel.Task {
+        private final PacketSource source;
+        private final DatagramPacket[] packets;     // packets in the window, null outside of it
+        private final long[] sentAt;                // time of the first transmission in nanoseconds
+        private final boolean[] retransmitted;      // packets which must not be used as RTT samples
+        private final boolean[] sacked;             // packets the server holds after a gap
+        private final CompletableFuture<Void> future;
+        private final int block;                    // number of packets protected together, 0 without parity
+        private final DatagramPacket[] parity;      // parity of each group of the current block
+        private final int[] parityLengths;          // length of the longest packet of each group
+        private final RudpHeader parityHeader;      // view of the reliable header of a parity packet
+        private short firstSequenceNumber;
+        private boolean started;                    // whether the sequence numbers of the packets are reserved
+        private int base;                           // index of the oldest unacknowledged packet
+        private int next;                           // index of the next packet to be sent
+        private int retries;                        // consecutive timeouts without the window moving
+        private int recovery;                       // index up to which the last loss was handled
+        private boolean slid;                       // whether the window moved during the current batch
+        private TimerWheel.Timeout timeout;
+
+        SendWindow(int count, PacketSource source, CompletableFuture<Void> future) {
+            packets = new DatagramPacket[count];
+            sentAt = new long[count];
+            retransmitted = new boolean[count];
+            sacked = new boolean[count];
+            this.source = source;
+            this.future = future;
+            block = acceptedFecBlock;
+            parity = new DatagramPacket[block == 0 ? 0 : acceptedFecParity];
+            for (int j = 0; j < parity.length; j++) {
+                parity[j] = new DatagramPacket(new byte[packetPool.getPacketSize()], packetPool.getPacketSize(),
+                        serverAddress);
+            }
+            parityLengths = new int[parity.length];
+            parityHeader = new RudpHeader();
+        }
+
+        boolean isStarted() {
+            return started;
+        }
+
+        /**
+         * Sends new packets until the window is full, or completes the future once everything is acknowledged
+         */
+        void fill() throws IOException {
+            if (!started) {
+                // reserve consecutive sequence numbers for all the packets
+                started = true;
+                firstSequenceNumber = nextSequenceNumber;
+                nextSequenceNumber += packets.length;
+            }
+            if (base == packets.length) {
+                cancel();
+                window = null;
+                future.complete(null);
+                sendRequests();
+                return;
+            }
+            int limit = Math.max(1, Math.min(windowSize,
+                    Math.min(congestionControl.getWindow(), advertisedWindow)));
+            metrics.setWindow(limit);
+            while (next < packets.length && next - base < limit) {
+                packets[next] = source.create(next, (short) (firstSequenceNumber + next));
+                sentAt[next] = System.nanoTime();
+                transport.send(packets[next]);
+                if (block > 0) {
+                    protect(next);
+                }
+                next++;
+            }
+            if (timeout == null) {
+                timeout = eventLoop.getTimers().schedule(this, rttEstimator.getTimeout());
+            }
+        }
+
+        /**
+         * Adds a packet sent for the first time to the parity of its group, and sends the parity packets after the
+         * last packet of a block. A parity packet carries the sequence number of the first packet of the block and
+         * the PSH, SEQ and ACK flags, which no data packet combines, so the server tells it apart without taking a
+         * sequence number; its MORE flag, its length field and its data are the XOR of those of the packets of its
+         * group, from the stream byte on.
+         *
+         * @param index the index of the packet
+         */
+        private void protect(int index) throws IOException {
+            int j = index % block % parity.length;
+            byte[] sum = parity[j].getData();
+            byte[] data = packets[index].getData();
+            int offset = packets[index].getOffset();
+            int length = packets[index].getLength();
+            for (int b = RudpDatagramPacket.STREAM_BYTE; b < length; b++) {
+                sum[RudpDatagramPacket.PARITY_DATA_BYTE - RudpDatagramPacket.STREAM_BYTE + b] ^= data[offset + b];
+            }
+            sum[RudpDatagramPacket.PARITY_LENGTH_BYTE] ^= (byte) length;
+            sum[RudpDatagramPacket.PARITY_LENGTH_BYTE + 1] ^= (byte) (length >>> 8);
+            sum[RudpDatagramPacket.FLAGS_BYTE] ^= data[offset + RudpDatagramPacket.FLAGS_BYTE] &
+                    RudpDatagramPacket.MORE_MASK;
+            parityLengths[j] = Math.max(parityLengths[j], length);
+            if (index % block != block - 1 && index != packets.length - 1) {
+                return;
+            }
+            int first = index - index % block;
+            int size = index - first + 1;
+            // a group without packets has no parity
+            for (j = 0; j < Math.min(size, parity.length); j++) {
+                sum = parity[j].getData();
+                parityHeader.wrap(parity[j]);
+                parityHeader.setSequenceNumber((short) (firstSequenceNumber + first));
+                parityHeader.setFlags(parityHeader.getFlags() | RudpDatagramPacket.PSH_MASK |
+                        RudpDatagramPacket.SEQ_MASK | RudpDatagramPacket.ACK_MASK);
+                sum[RudpDatagramPacket.PARITY_BLOCK_BYTE] = (byte) size;
+                sum[RudpDatagramPacket.PARITY_GROUP_BYTE] = (byte) (j | parity.length << 4);
+                parity[j].setLength(RudpDatagramPacket.PARITY_DATA_BYTE - RudpDatagramPacket.STREAM_BYTE +
+                        parityLengths[j]);
+                transport.send(parity[j]);
+                Arrays.fill(sum, (byte) 0);
+                parityLengths[j] = 0;
+            }
+        }
+
+        /**
+         * Slides the window on a cumulative acknowledgement. The new packets are sent by {@link #flush()}.
+         *
+         * @param ackNumber the next sequence number the server expects
+         */
+        void acknowledge(short ackNumber) throws IOException {
+            int acked = base + RudpDatagramPacket.sequenceDistance((short) (firstSequenceNumber + base), ackNumber);
+            if (acked <= base || acked > next) {
+                // duplicate or stale acknowledgement
+                metrics.onDuplicate();
+                return;
+            }
+            if (!retransmitted[acked - 1] && !sacked[acked - 1]) {
+                double rttMillis = (System.nanoTime() - sentAt[acked - 1]) / 1e6;
+                rttEstimator.addSample(rttMillis);
+                congestionControl.onRttSample(rttMillis);
+            } else {
+                rttEstimator.resetBackoff();
+            }
+            congestionControl.onAck(acked - base);
+            for (int i = base; i < acked; i++) {
+                source.acknowledged(i);
+            }
+            release(base, acked);
+            base = acked;
+            retries = 0;
+            // the timer is restarted for the new oldest packet when the window is filled
+            cancel();
+            slid = true;
+        }
+
+        /**
+         * Fills the window once the acknowledgements of a batch are handled
+         */
+        void flush() throws IOException {
+            if (slid) {
+                slid = false;
+                fill();
+            }
+        }
+
+        /**
+         * Marks the packets the server holds after a gap, so they are not sent again
+         *
+         * @param ackNumber the next sequence number the server expects
+         * @param bitmap    bit {@code i} is set if the server holds the packet {@code ackNumber + 1 + i}
+         */
+        void selectiveAcknowledge(short ackNumber, int bitmap) throws IOException {
+            int gap = base + RudpDatagramPacket.sequenceDistance((short) (firstSequenceNumber + base), ackNumber);
+            if (gap >= next) {
+                // stale acknowledgement from before the wrap-around
+                return;
+            }
+            for (int i = 0; i < RudpDatagramPacket.SACK_BITS && gap + 1 + i < next; i++) {
+                if ((bitmap & (1 << i)) != 0) {
+                    sacked[gap + 1 + i] = true;
+                }
+            }
+            // like three duplicate acknowledgements in TCP, handled once per window
+            if (gap == base && gap >= recovery && Integer.bitCount(bitmap) >= DUPLICATE_THRESHOLD) {
+                recovery = next;
+                congestionControl.onLoss();
+                resend(base);
+                RudpEvents.retransmit(packets[base], 1, rttEstimator.getTimeout());
+            }
+        }
+
+        @Override
+        public void expire() throws IOException {
+            timeout = null;
+            if (++retries > RudpDatagramPacket.MAX_RETRIES) {
+                fail(new SocketTimeoutException("No acknowledgement after " + RudpDatagramPacket.MAX_RETRIES +
+                        " retries"));
+                return;
+            }
+            resendHandshakeAck();
+            rttEstimator.backoff();
+            congestionControl.onTimeout();
+            recovery = next;
+            // go back N: send the whole window again, skipping the packets the server already holds; the oldest one
+            // is the gap itself, sending it anyway recovers from a server which lost what it held
+            int resent = 0;
+            for (int i = base; i < next; i++) {
+                if (i > base && sacked[i]) {
+                    continue;
+                }
+                resend(i);
+                resent++;
+            }
+            RudpEvents.retransmit(packets[base], resent, rttEstimator.getTimeout());
+            timeout = eventLoop.getTimers().schedule(this, rttEstimator.getTimeout());
+        }
+
+        /**
+         * Sends a packet of the window again, so it is no longer used as RTT sample
+         *
+         * @param i the index of the packet
+         */
+        private void resend(int i) throws IOException {
+            retransmitted[i] = true;
+            transport.send(packets[i]);
+            retransmissions++;
+            retransmittedBytes += packets[i].getLength();
+            metrics.onRetransmit(1, packets[i].getLength());
+        }
+
+        void fail(IOException e) {
+            cancel();
+            release(base, next);
+            window = null;
+            future.completeExceptionally(e);
+            sendRequests();
+        }
+
+        /**
+         * Hands the packets which left the window back to the pool
+         *
+         * @param from the index of the first packet
+         * @param to   the index after the last packet
+         */
+        private void release(int from, int to) {
+            for (int i = from; i < to; i++) {
+                releaseDataPacket(packets[i]);
+                packets[i] = null;
+            }
+        }
+
+        private void cancel() {
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+        }
+    }
+}
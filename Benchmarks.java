@@ -0,0 +1,60 @@
+import java.io.IOException;
+
+/**
+ * Setup shared by the benchmarks. Those with a main method stay plain programs rather than JMH benchmarks like the
+ * ones under jmh/: each prints a table whose cells are whole runs over a fresh server, and reports what a run
+ * counted, retransmitted bytes, rebuilt packets or bytes on the wire, next to its rates, which a repeated timed
+ * operation does not measure.
+ */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * Prepares the process for a measurement: the per-packet logging would dominate it, and over a lossy link a
+     * packet may need many more attempts than the default
+     *
+     * @param maxRetries the number of times a packet may be sent before the connection gives up
+     */
+    static void prepare(int maxRetries) {
+        RudpDatagramPacket.MAX_RETRIES = maxRetries;
+        RudpLog.LEVEL = RudpLog.OFF;
+    }
+
+    /**
+     * Starts a server on the default port
+     *
+     * @return the running server
+     */
+    static RudpServer startServer() throws IOException {
+        RudpServer server = new RudpServer(Constants.PORT);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Creates a client of the server on the default port sending through a window
+     *
+     * @param windowSize        the max number of packets in flight
+     * @param congestionControl the congestion control, which may keep the window smaller
+     * @return the client, not connected yet
+     */
+    static RudpClient newClient(int windowSize, CongestionControl congestionControl) throws IOException {
+        RudpClient client = new RudpClient(Constants.SERVER_NAME, Constants.PORT);
+        client.setWindowSize(windowSize);
+        client.setCongestionControl(congestionControl);
+        return client;
+    }
+
+    /**
+     * Makes the network emulators of both ends drop the given share of the datagrams they send
+     *
+     * @param server   the server
+     * @param client   the client
+     * @param lossRate the probability of dropping a datagram, 0 for a clean link
+     */
+    static void setLossRate(RudpServer server, RudpClient client, double lossRate) {
+        server.getNetworkEmulator().setLossRate(lossRate);
+        client.getNetworkEmulator().setLossRate(lossRate);
+    }
+}
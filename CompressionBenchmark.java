@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Measures what compressing requests and replies buys and costs. The codec alone is timed first, in CPU
+ * milliseconds per MB of messages encoded and decoded, with both ends building their history as a connection does.
+ * Then the same pipelined requests are sent with compression off and on to a server whose handler sends each one
+ * back, so replies are encoded too, reporting the bytes each request takes on the wire, the goodput in message
+ * bytes per second and per byte sent, and the CPU time of every thread of the process per MB of messages. The text
+ * messages are access log lines, whose only dictionary is the lines sent before them; random ones show what the
+ * automatic skipping leaves of the cost when nothing compresses.
+ */
+public class CompressionBenchmark {
+    private static final int MESSAGES = 1000;                   // distinct messages, sent in turn
+    private static final int CODEC_ROUNDS = 1000;               // passes over the messages when timing the codec
+    private static final int REQUESTS = 100_000;                // requests sent for each run
+    private static final String[] METHODS = {"GET", "GET", "GET", "POST", "PUT", "DELETE"};
+    private static final String[] RESOURCES = {"orders", "users", "carts", "items", "invoices"};
+    private static final int[] CODES = {200, 200, 200, 201, 304, 404, 500};
+
+    public static void main(String[] args) throws IOException {
+        Benchmarks.prepare(50);
+        PrintStream out = System.out;
+        Random random = new Random(23);
+        List<byte[]> text = new ArrayList<>();
+        List<byte[]> noise = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            byte[] message = String.format("10.0.%d.%d %s /api/%s/%d %d %dms web-%d",
+                    random.nextInt(8), random.nextInt(256), METHODS[random.nextInt(METHODS.length)],
+                    RESOURCES[random.nextInt(RESOURCES.length)], random.nextInt(100_000),
+                    CODES[random.nextInt(CODES.length)], random.nextInt(500), random.nextInt(4)).getBytes();
+            text.add(message);
+            byte[] bytes = new byte[message.length];
+            random.nextBytes(bytes);
+            noise.add(bytes);
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        out.printf("%-8s %14s %14s %10s%n", "codec", "encode ms/MB", "decode ms/MB", "ratio");
+        codec(out, threads, "text", text);
+        codec(out, threads, "random", noise);
+        out.println();
+        out.printf("%-8s %6s %12s %12s %14s %12s%n", "requests", "codec", "wire B/req", "goodput MB/s",
+                "msg B/wire B", "cpu ms/MB");
+        for (boolean compression : new boolean[]{false, true}) {
+            run(out, threads, "text", text, compression);
+        }
+        for (boolean compression : new boolean[]{false, true}) {
+            run(out, threads, "random", noise, compression);
+        }
+    }
+
+    /**
+     * Times the codec alone on the thread of the benchmark. The encoder adds each message to its history as a
+     * client does when it sends it, the decoder as a server does when it delivers it, so both code against the
+     * same bytes.
+     */
+    private static void codec(PrintStream out, ThreadMXBean threads, String label, List<byte[]> messages) {
+        PayloadCodec encoder = new PayloadCodec();
+        PayloadCodec decoder = new PayloadCodec();
+        byte[][] encoded = new byte[messages.size()][RudpDatagramPacket.PAYLOAD_MAX_SIZE];
+        int[] lengths = new int[messages.size()];
+        byte[] decoded = new byte[RudpDatagramPacket.PAYLOAD_MAX_SIZE];
+        long bytes = 0;
+        long encodeCpu = 0;
+        long decodeCpu = 0;
+        for (int round = 0; round < CODEC_ROUNDS; round++) {
+            long start = threads.getCurrentThreadCpuTime();
+            for (int i = 0; i < lengths.length; i++) {
+                byte[] message = messages.get(i);
+                lengths[i] = encoder.encode(message, 0, message.length, encoded[i], 0, encoded[i].length,
+                        encoder.getPosition());
+                encoder.append(message, 0, message.length);
+            }
+            encodeCpu += threads.getCurrentThreadCpuTime() - start;
+            start = threads.getCurrentThreadCpuTime();
+            for (int i = 0; i < lengths.length; i++) {
+                int length = decoder.decode(encoded[i], 0, lengths[i], decoded, 0, decoded.length,
+                        decoder.getPosition());
+                if (length != messages.get(i).length) {
+                    throw new IllegalStateException("Message " + i + " decoded to " + length + " bytes");
+                }
+                decoder.append(decoded, 0, length);
+                bytes += length;
+            }
+            decodeCpu += threads.getCurrentThreadCpuTime() - start;
+        }
+        double megabytes = bytes / 1e6;
+        out.printf("%-8s %14.1f %14.1f %10.2f%n", label, encodeCpu / 1e6 / megabytes, decodeCpu / 1e6 / megabytes,
+                (double) encoder.getRawBytes() / encoder.getEncodedBytes());
+        encoder.close();
+        decoder.close();
+    }
+
+    /**
+     * Sends the messages in turn as pipelined requests and prints what they cost on the wire and in CPU, on the
+     * client, the event loops, the server and its workers alike
+     */
+    private static void run(PrintStream out, ThreadMXBean threads, String label, List<byte[]> messages,
+                            boolean compression) throws IOException {
+        RudpServer server = Benchmarks.startServer();
+        try {
+            server.setMessageHandler((address, message) -> message);
+            AsyncRudpClient client = new AsyncRudpClient(Constants.SERVER_NAME, Constants.PORT,
+                    RudpEventLoopGroup.getDefault().next());
+            client.setCompressionEnabled(compression);
+            client.setWindowSize(RudpDatagramPacket.REPLY_SLOTS);
+            client.connect().join();
+            long bytes = 0;
+            List<CompletableFuture<byte[]>> replies = new ArrayList<>(REQUESTS);
+            long bytesOut = client.getMetrics().getBytesOut();
+            Map<Long, Long> cpu = cpuTimes(threads);
+            long begin = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++) {
+                byte[] message = messages.get(i % messages.size());
+                bytes += message.length;
+                replies.add(client.send(ByteBuffer.wrap(message)));
+            }
+            CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).join();
+            long elapsed = System.nanoTime() - begin;
+            long cpuTime = 0;
+            for (Map.Entry<Long, Long> thread : cpuTimes(threads).entrySet()) {
+                // threads started during the run count from 0
+                cpuTime += thread.getValue() - cpu.getOrDefault(thread.getKey(), 0L);
+            }
+            long wire = client.getMetrics().getBytesOut() - bytesOut;
+            client.close().join();
+            out.printf("%-8s %6s %12.1f %12.2f %14.2f %12.1f%n", label, compression ? "on" : "off",
+                    (double) wire / REQUESTS, bytes * 1e3 / elapsed, (double) bytes / wire,
+                    cpuTime / 1e6 / (bytes / 1e6));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Reads the CPU time of every live thread of the process
+     *
+     * @return the CPU time in nanoseconds by thread id
+     */
+    private static Map<Long, Long> cpuTimes(ThreadMXBean threads) {
+        Map<Long, Long> times = new HashMap<>();
+        for (long id : threads.getAllThreadIds()) {
+            long time = threads.getThreadCpuTime(id);
+            if (time >= 0) {
+                times.put(id, time);
+            }
+        }
+        return times;
+    }
+}
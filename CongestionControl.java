@@ -0,0 +1,38 @@
+/**
+ * Decides how many packets a sender may keep in flight. The sender reports every event which tells something about
+ * the path; an implementation may react to losses, like {@link NewRenoCongestionControl}, or to the round trip time,
+ * like a delay based controller would. All the calls come from the event loop of the sender.
+ */
+public interface CongestionControl {
+    /**
+     * Returns the congestion window
+     *
+     * @return the max number of unacknowledged packets, at least 1
+     */
+    int getWindow();
+
+    /**
+     * Called when the cumulative acknowledgement moves forward
+     *
+     * @param packets the number of packets newly acknowledged
+     */
+    void onAck(int packets);
+
+    /**
+     * Called with every round trip time measurement
+     *
+     * @param rttMillis the measured round trip time in milliseconds
+     */
+    void onRttSample(double rttMillis);
+
+    /**
+     * Called once per window of data when the receiver reports packets after a gap, a sign that a packet was lost
+     * while the path still delivers
+     */
+    void onLoss();
+
+    /**
+     * Called when the retransmission timer expires, a sign that the path delivers nothing
+     */
+    void onTimeout();
+}
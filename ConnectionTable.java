@@ -0,0 +1,80 @@
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The connections of a server keyed by the address and port of the peer. Lookups move a connection to the end of
+ * the table, so idle connections gather at the front and can be evicted without scanning the whole table.
+ */
+public class ConnectionTable {
+    private final LinkedHashMap<SocketAddress, RudpConnection> connections =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Returns the connection of the given peer and marks it as active
+     *
+     * @param address the address and port of the peer
+     * @return the connection, or null if the peer is not connected
+     */
+    public RudpConnection get(SocketAddress address) {
+        RudpConnection connection = connections.get(address);
+        if (connection != null) {
+            connection.touch();
+        }
+        return connection;
+    }
+
+    /**
+     * Adds a connection, replacing any previous connection of the same peer
+     *
+     * @param connection the connection
+     */
+    public void put(RudpConnection connection) {
+        RudpConnection previous = connections.put(connection.getAddress(), connection);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Removes a connection if it is still the one registered for its peer
+     *
+     * @param connection the connection
+     */
+    public void remove(RudpConnection connection) {
+        if (connections.remove(connection.getAddress(), connection)) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Removes the connections which received nothing for the given time
+     *
+     * @param idleMillis the max idle time in milliseconds
+     * @return the number of connections removed
+     */
+    public int evictIdle(long idleMillis) {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        int evicted = 0;
+        Iterator<RudpConnection> iterator = connections.values().iterator();
+        while (iterator.hasNext()) {
+            RudpConnection connection = iterator.next();
+            // the table is in access order, the rest of the connections are more recent
+            if (connection.getLastActivity() > cutoff) {
+                break;
+            }
+            iterator.remove();
+            connection.close();
+            evicted++;
+        }
+        return evicted;
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public boolean isEmpty() {
+        return connections.isEmpty();
+    }
+}
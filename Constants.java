@@ -1,4 +1,5 @@
 public class Constants {
     public static int PORT = 4445;                  // communication port
     public static String SERVER_NAME = "localhost"; // server address
+    public static int EVENT_LOOP_THREADS = Runtime.getRuntime().availableProcessors(); // threads of the default group
 }
@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how long a batch of messages takes to be acknowledged over a lossy link with a round trip of 40 ms,
+ * without parity packets and with a few block sizes. A loss the server repairs from a parity packet costs nothing,
+ * a loss the client must send again costs at least one more round trip, which shows in the tail of the latencies.
+ */
+public class FecBenchmark {
+    private static final int BATCHES = 200;                         // batches sent for each run
+    private static final int BATCH_SIZE = 16;                       // messages of a batch
+    private static final int WINDOW_SIZE = 16;
+    private static final long DELAY_MILLIS = 20;                    // one way
+    private static final double[] LOSS_RATES = {0.01, 0.05, 0.1};
+    private static final int[][] CODES = {{0, 0}, {8, 1}, {4, 1}, {8, 2}};  // block and parity packets
+
+    public static void main(String[] args) throws IOException {
+        Benchmarks.prepare(50);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            messages.add("message number " + i);
+        }
+        PrintStream out = System.out;
+        out.printf("%d batches of %d messages, window of %d, %d ms one way%n", BATCHES, BATCH_SIZE, WINDOW_SIZE,
+                DELAY_MILLIS);
+        out.printf("%6s %8s %10s %10s %10s %12s %10s%n", "loss", "fec", "p50 ms", "p99 ms", "max ms",
+                "retransmits", "recovered");
+        for (double lossRate : LOSS_RATES) {
+            for (int[] code : CODES) {
+                RudpServer server = Benchmarks.startServer();
+                RudpClient client = Benchmarks.newClient(WINDOW_SIZE, new FixedWindowCongestionControl(WINDOW_SIZE));
+                client.setForwardErrorCorrection(code[0], code[1]);
+                // the handshake measures the delay, so the timeout does not expire before the acknowledgements
+                server.getNetworkEmulator().setDelay(DELAY_MILLIS, 0);
+                client.getNetworkEmulator().setDelay(DELAY_MILLIS, 0);
+                try {
+                    client.connectToServer();
+                    // the handshake goes through unharmed so every run sends the same packets
+                    client.getNetworkEmulator().setLossRate(lossRate);
+                    LatencyHistogram latencies = new LatencyHistogram();
+                    for (int i = 0; i < BATCHES; i++) {
+                        long start = System.nanoTime();
+                        client.sendAll(messages);
+                        latencies.record(System.nanoTime() - start);
+                    }
+                    server.getNetworkEmulator().reset();
+                    client.getNetworkEmulator().reset();
+                    long retransmits = client.getMetrics().getRetransmits();
+                    client.closeConnection();
+                    out.printf("%5.0f%% %8s %10.1f %10.1f %10.1f %12d %10d%n", lossRate * 100,
+                            code[0] == 0 ? "off" : code[1] + "/" + code[0], latencies.getPercentile(50) / 1e6,
+                            latencies.getPercentile(99) / 1e6, latencies.getMax() / 1e6, retransmits,
+                            server.getMetrics().getRecovered());
+                } finally {
+                    server.shutdown();
+                }
+            }
+        }
+    }
+}
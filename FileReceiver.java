@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receives the files clients send with {@link AsyncRudpClient#sendFile(Path, Path)} into a directory. Set it as the
+ * message listener of a server. The first message of a transfer names the file and gives its length: the file is
+ * created at its full length and memory-mapped, and every segment is written straight from the receive buffer to
+ * its offset in the mapping. The segments received are recorded in a {@link TransferBitmap} next to the file, named
+ * after it with {@code .part}, which is deleted once the file is complete; a transfer which starts the same file again
+ * after an interruption keeps the segments the bitmap records. Each shard of a server only serves its own clients,
+ * so the transfers are kept in a concurrent map by client.
+ */
+public class FileReceiver implements RudpServer.MessageListener {
+    /**
+     * A file being received
+     */
+    private static class Transfer {
+        private final Path file;
+        private final MappedByteBuffer data;    // the whole file
+        private final int segmentSize;
+        private final TransferBitmap received;
+
+        Transfer(Path file, MappedByteBuffer data, int segmentSize, TransferBitmap received) {
+            this.file = file;
+            this.data = data;
+            this.segmentSize = segmentSize;
+            this.received = received;
+        }
+    }
+
+    private final Path directory;
+    private final ConcurrentHashMap<SocketAddress, Transfer> transfers;  // file being received from each client
+
+    public FileReceiver(Path directory) {
+        this.directory = directory.toAbsolutePath().normalize();
+        transfers = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void onMessage(SocketAddress address, ByteBuffer message) {
+        // requests are not part of a transfer
+    }
+
+    @Override
+    public void onMessage(SocketAddress address, int stream, ByteBuffer message) {
+        if (stream != RudpDatagramPacket.FILE_STREAM || !message.hasRemaining()) {
+            return;
+        }
+        message.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (message.get() == RudpDatagramPacket.FILE_OPEN) {
+                open(address, message);
+            } else {
+                receive(address, message);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts receiving a file, or resumes it if its bitmap is left from an interrupted transfer
+     *
+     * @param address the address and port of the client
+     * @param message the length of the file, the size of its segments and its name
+     */
+    private void open(SocketAddress address, ByteBuffer message) throws IOException {
+        long length = message.getLong();
+        int segmentSize = message.getInt();
+        String name = StandardCharsets.UTF_8.decode(message).toString();
+        Path file = directory.resolve(name).normalize();
+        if (!directory.equals(file.getParent()) || length > Integer.MAX_VALUE || segmentSize < 1) {
+            if (RudpLog.isInfoEnabled()) {
+                RudpLog.info("Refused file " + name + " of " + length + " bytes from " + address);
+            }
+            return;
+        }
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (channel.size() > length) {
+                channel.truncate(length);
+            }
+            // mapping past the end grows the file to its full length
+            data = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+        TransferBitmap received = new TransferBitmap(file.resolveSibling(name + ".part"), length, segmentSize);
+        Transfer transfer = new Transfer(file, data, segmentSize, received);
+        transfers.put(address, transfer);
+        if (RudpLog.isInfoEnabled()) {
+            RudpLog.info("Receiving file " + file + " from " + address + ", " + received.getDone() + " of " +
+                    received.getSegments() + " segments already received");
+        }
+        if (received.isComplete()) {
+            finish(address, transfer);
+        }
+    }
+
+    /**
+     * Writes a segment at its offset in the file
+     *
+     * @param address the address and port of the client
+     * @param message the index of the segment and its data
+     */
+    private void receive(SocketAddress address, ByteBuffer message) throws IOException {
+        Transfer transfer = transfers.get(address);
+        if (transfer == null) {
+            return;
+        }
+        int segment = message.getInt();
+        if (segment < 0 || segment >= transfer.received.getSegments() || transfer.received.get(segment)) {
+            return;
+        }
+        // the data first, so the bitmap of a process which dies never claims a segment it did not write; neither
+        // mapping is forced before the file is complete, and after a crash of the system the bit may have reached
+        // the disk without the data
+        transfer.data.put(segment * transfer.segmentSize, message, message.position(), message.remaining());
+        transfer.received.set(segment);
+        if (transfer.received.isComplete()) {
+            finish(address, transfer);
+        }
+    }
+
+    private void finish(SocketAddress address, Transfer transfer) throws IOException {
+        transfer.data.force();
+        transfer.received.delete();
+        transfers.remove(address);
+        if (RudpLog.isInfoEnabled()) {
+            RudpLog.info("Received file " + transfer.file + " from " + address);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * A window which never changes, for links whose capacity is known and for comparing against adaptive controllers
+ */
+public class FixedWindowCongestionControl implements CongestionControl {
+    private final int window;
+
+    public FixedWindowCongestionControl(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Invalid window: " + window);
+        }
+        this.window = window;
+    }
+
+    @Override
+    public int getWindow() {
+        return window;
+    }
+
+    @Override
+    public void onAck(int packets) {
+    }
+
+    @Override
+    public void onRttSample(double rttMillis) {
+    }
+
+    @Override
+    public void onLoss() {
+    }
+
+    @Override
+    public void onTimeout() {
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the {@link RudpServer.MessageHandler} of a server on a fixed pool of worker threads, so a slow handler never
+ * stalls the event loop which receives the datagrams. The event loop copies every complete message into a task;
+ * a worker runs the handler and hands its reply back to the event loop, which sends it as the answer of the request,
+ * matched by the connection and the sequence number of the request. The messages queued or being handled are
+ * counted: the server advertises only the free part of the queue as receive window, and drops new data packets
+ * while it is full, so the clients slow down and send them again instead of the queue growing without bound.
+ * Messages of one connection may be handled by several workers at once.
+ */
+public class HandlerPipeline {
+    private final RudpServer server;
+    private final RudpServer.MessageHandler handler;
+    private final ThreadPoolExecutor workers;
+    private final int capacity;                 // max number of messages queued or being handled
+    private final AtomicInteger pending;        // messages queued or being handled
+
+    /**
+     * Starts the worker threads
+     *
+     * @param server   the server whose event loop sends the replies
+     * @param handler  the handler
+     * @param threads  the number of worker threads
+     * @param capacity the max number of messages queued or being handled
+     */
+    HandlerPipeline(RudpServer server, RudpServer.MessageHandler handler, int threads, int capacity) {
+        if (threads < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Invalid pipeline of " + threads + " threads and " + capacity +
+                    " messages");
+        }
+        this.server = server;
+        this.handler = handler;
+        this.capacity = capacity;
+        pending = new AtomicInteger();
+        AtomicInteger count = new AtomicInteger();
+        // the queue is only bounded by the count of pending messages, the event loop must never block on it
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                task -> {
+                    Thread thread = new Thread(task, "rudp-worker-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Checks if the workers fell behind, on the event loop. A packet which unblocks packets held after a gap may
+     * still add up to {@link RudpDatagramPacket#SACK_BITS} messages beyond the capacity.
+     *
+     * @return true if new messages must be refused
+     */
+    public boolean isFull() {
+        return pending.get() >= capacity;
+    }
+
+    /**
+     * Returns the number of messages which can still be queued
+     *
+     * @return the free part of the capacity
+     */
+    public int getFree() {
+        return Math.max(0, capacity - pending.get());
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Queues a complete message of a client, on the event loop
+     *
+     * @param connection     the connection of the client
+     * @param data           the array holding the message
+     * @param offset         the index of the message in the array
+     * @param length         the length of the message
+     * @param sequenceNumber the sequence number of its last packet
+     * @param sequenced      whether the message was sent with the SEQ flag and expects no reply
+     * @return true if the message was queued, false if the workers were stopped
+     */
+    boolean submit(RudpConnection connection, byte[] data, int offset, int length, short sequenceNumber,
+                   boolean sequenced) {
+        byte[] message = new byte[length];
+        System.arraycopy(data, offset, message, 0, length);
+        pending.incrementAndGet();
+        try {
+            workers.execute(() -> handle(connection, message, sequenceNumber, sequenced));
+            return true;
+        } catch (RejectedExecutionException e) {
+            // the workers were stopped, the message must not count against the window
+            pending.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Runs the handler on a message and hands its reply to the event loop, on a worker. The request was delivered and
+     * the client does not send it again, so it is answered even when the handler has no reply for it or fails: with
+     * an empty reply, which completes the request at the client instead of leaving it to time out. The connection
+     * checks the reply fits in a packet once it is encoded.
+     */
+    private void handle(RudpConnection connection, byte[] message, short sequenceNumber, boolean sequenced) {
+        byte[] reply;
+        try {
+            reply = handler.handle(connection.getAddress(), message);
+        } catch (IOException | RuntimeException e) {
+            // a failing handler must not stop the workers
+            e.printStackTrace();
+            reply = null;
+        } finally {
+            pending.decrementAndGet();
+        }
+        if (!sequenced) {
+            byte[] answer = reply == null ? RudpConnection.EMPTY_REPLY : reply;
+            server.execute(() -> connection.reply(sequenceNumber, answer));
+        }
+    }
+
+    /**
+     * Stops the workers once they handled the messages already queued
+     */
+    void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Stops the workers, dropping the messages not handled yet
+     */
+    void shutdownNow() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Records latencies in nanoseconds into log-linear buckets, the way HdrHistogram does: every power of two is split
+ * into {@value #SUB_BUCKETS} buckets, so a percentile is off by less than 2% of its value while recording stays a
+ * few instructions with no allocation. It is not thread safe.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * Records a latency
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts[indexOf(nanos)]++;
+        count++;
+        sum += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * Returns the latency below which the given share of the recorded latencies are
+     *
+     * @param percentile the share, between 0 and 100
+     * @return the upper bound of the bucket holding the percentile in nanoseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    /**
+     * Prints a row with the mean, p50, p99, p999 and max in microseconds
+     *
+     * @param out   the stream to print to
+     * @param label the name of the row
+     */
+    public void print(PrintStream out, String label) {
+        out.printf("%-20s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", label, count, getMean() / 1000,
+                getPercentile(50) / 1000.0, getPercentile(99) / 1000.0, getPercentile(99.9) / 1000.0, max / 1000.0);
+    }
+
+    /**
+     * Prints the header of the rows printed by {@link #print(PrintStream, String)}
+     *
+     * @param out the stream to print to
+     */
+    public static void printHeader(PrintStream out) {
+        out.printf("%-20s %10s %10s %10s %10s %10s %10s%n", "us", "count", "mean", "p50", "p99", "p999", "max");
+    }
+
+    private static int indexOf(long value) {
+        // values below 2 * SUB_BUCKETS have exact buckets, above that the low bits are dropped
+        int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1);
+        return (magnitude << SUB_BUCKET_BITS) + (int) (value >>> magnitude);
+    }
+
+    private static long upperBoundOf(int index) {
+        int magnitude = Math.max(0, (index >>> SUB_BUCKET_BITS) - 1);
+        long subBucket = index - ((long) magnitude << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.Random;
+
+/**
+ * Impairs the packets an endpoint sends, in process and without privileges, the way {@code tc netem} would: packets
+ * may be lost, delayed by a fixed latency plus random jitter, duplicated, or held back so later packets overtake
+ * them. Every decision is drawn from a seeded random generator, so a run with the same seed and the same traffic
+ * makes the same decisions. Each endpoint impairs its outgoing packets, so setting both sides covers both
+ * directions. Until something is configured packets go straight to the socket.
+ */
+public class NetworkEmulator implements RudpTransport {
+    public static final long DEFAULT_SEED = 42;
+
+    private final RudpTransport transport;      // the transport which really sends
+    private final TimerWheel timers;            // timers of the endpoint's event loop, for delayed packets
+    private final Random random;
+    private volatile double lossRate;           // probability of dropping a packet
+    private volatile double duplicationRate;    // probability of sending a packet twice
+    private volatile double reorderRate;        // probability of holding a packet back
+    private volatile long delayMillis;          // latency added to every packet
+    private volatile long jitterMillis;         // max random latency added on top of the delay
+    private volatile long reorderMillis;        // extra latency of a held back packet
+    private volatile boolean impaired;          // whether anything is configured
+    private volatile long dropped;
+    private volatile long duplicated;
+    private volatile long reordered;
+
+    public NetworkEmulator(RudpTransport transport, TimerWheel timers) {
+        this.transport = transport;
+        this.timers = timers;
+        random = new Random(DEFAULT_SEED);
+        reorderMillis = 10;
+    }
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException {
+        if (!impaired) {
+            transport.send(packet);
+            return;
+        }
+        if (random.nextDouble() < lossRate) {
+            dropped++;
+            return;
+        }
+        int copies = 1;
+        if (random.nextDouble() < duplicationRate) {
+            duplicated++;
+            copies = 2;
+        }
+        for (int i = 0; i < copies; i++) {
+            long latency = delayMillis;
+            if (jitterMillis > 0) {
+                latency += (long) (random.nextDouble() * (jitterMillis + 1));
+            }
+            if (random.nextDouble() < reorderRate) {
+                reordered++;
+                latency += reorderMillis;
+            }
+            if (latency == 0) {
+                transport.send(packet);
+            } else {
+                // the endpoint reuses its buffers, send a copy later
+                DatagramPacket copy = RudpDatagramPacket.copyPacket(packet);
+                timers.schedule(() -> transport.send(copy), latency);
+            }
+        }
+    }
+
+    /**
+     * Restarts the random generator, so the next packets see the same decisions as after a previous reset
+     *
+     * @param seed the seed
+     */
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    public void setLossRate(double lossRate) {
+        this.lossRate = checkRate(lossRate);
+        update();
+    }
+
+    public void setDuplicationRate(double duplicationRate) {
+        this.duplicationRate = checkRate(duplicationRate);
+        update();
+    }
+
+    /**
+     * Sets how often a packet is held back so the packets sent after it arrive first
+     *
+     * @param reorderRate   the probability of holding a packet back
+     * @param reorderMillis how long a packet is held back in milliseconds
+     */
+    public void setReordering(double reorderRate, long reorderMillis) {
+        this.reorderRate = checkRate(reorderRate);
+        this.reorderMillis = checkMillis(reorderMillis);
+        update();
+    }
+
+    /**
+     * Sets the latency of every packet
+     *
+     * @param delayMillis  the fixed latency in milliseconds
+     * @param jitterMillis the max random latency added on top in milliseconds
+     */
+    public void setDelay(long delayMillis, long jitterMillis) {
+        this.delayMillis = checkMillis(delayMillis);
+        this.jitterMillis = checkMillis(jitterMillis);
+        update();
+    }
+
+    /**
+     * Stops impairing packets
+     */
+    public void reset() {
+        lossRate = 0;
+        duplicationRate = 0;
+        reorderRate = 0;
+        delayMillis = 0;
+        jitterMillis = 0;
+        update();
+    }
+
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getDuplicated() {
+        return duplicated;
+    }
+
+    public long getReordered() {
+        return reordered;
+    }
+
+    private void update() {
+        impaired = lossRate > 0 || duplicationRate > 0 || reorderRate > 0 || delayMillis > 0 || jitterMillis > 0;
+    }
+
+    private static double checkRate(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Invalid rate: " + rate);
+        }
+        return rate;
+    }
+
+    private static long checkMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Invalid time: " + millis);
+        }
+        return millis;
+    }
+}
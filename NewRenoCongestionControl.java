@@ -0,0 +1,55 @@
+/**
+ * Additive increase, multiplicative decrease as in TCP NewReno (RFC 5681, RFC 6582). The window doubles every round
+ * trip during slow start, then grows by one packet per round trip. A loss halves it and a timeout starts over from
+ * one packet.
+ */
+public class NewRenoCongestionControl implements CongestionControl {
+    public static final int INITIAL_WINDOW = 4;     // window before the first acknowledgement, in packets
+    private static final int MIN_THRESHOLD = 2;     // smallest slow start threshold, in packets
+
+    private double window;          // cwnd in packets, fractional during congestion avoidance
+    private double threshold;       // ssthresh in packets
+
+    public NewRenoCongestionControl() {
+        window = INITIAL_WINDOW;
+        threshold = Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public int getWindow() {
+        return (int) window;
+    }
+
+    @Override
+    public void onAck(int packets) {
+        if (window < threshold) {
+            // slow start
+            window = Math.min(window + packets, Math.max(threshold, window));
+        } else {
+            // congestion avoidance
+            window += (double) packets / window;
+        }
+        window = Math.min(window, 0xFFFF);
+    }
+
+    @Override
+    public void onRttSample(double rttMillis) {
+        // loss based, the round trip time does not matter
+    }
+
+    @Override
+    public void onLoss() {
+        threshold = Math.max(window / 2, MIN_THRESHOLD);
+        window = threshold;
+    }
+
+    @Override
+    public void onTimeout() {
+        threshold = Math.max(window / 2, MIN_THRESHOLD);
+        window = 1;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+}
@@ -0,0 +1,86 @@
+import java.net.DatagramPacket;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of packets of {@link RudpDatagramPacket#PAYLOAD_MAX_SIZE} bytes. Packets are taken with
+ * {@link #acquire()} and handed back with {@link #release(DatagramPacket)} once nothing refers to them anymore. When
+ * the pool is empty a new packet is allocated, and packets released to a full pool are left to the garbage
+ * collector, so the counters show whether a steady workload runs without allocating. Like the timers, a pool
+ * belongs to one event loop and may only be used from its thread.
+ */
+public class PacketPool {
+    private final ArrayDeque<DatagramPacket> packets;   // idle packets
+    private final int capacity;                         // max number of idle packets kept
+    private final int packetSize;                       // size of the array of every packet
+    private volatile long acquired;                     // number of packets handed out
+    private volatile long allocated;                    // number of packets created because the pool was empty
+    private volatile long dropped;                      // number of packets released to a full pool
+
+    public PacketPool() {
+        this(RudpDatagramPacket.POOL_SIZE, RudpDatagramPacket.PAYLOAD_MAX_SIZE);
+    }
+
+    public PacketPool(int capacity, int packetSize) {
+        if (capacity < 0 || packetSize < RudpDatagramPacket.RELIABLE_HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid pool: " + capacity + " packets of " + packetSize + " bytes");
+        }
+        this.capacity = capacity;
+        this.packetSize = packetSize;
+        packets = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Takes a packet from the pool, or allocates one if the pool is empty. The packet covers its whole array and
+     * its address is the one it was last sent to.
+     *
+     * @return the packet
+     */
+    public DatagramPacket acquire() {
+        acquired++;
+        DatagramPacket packet = packets.poll();
+        if (packet == null) {
+            allocated++;
+            return new DatagramPacket(new byte[packetSize], packetSize);
+        }
+        packet.setLength(packetSize);
+        return packet;
+    }
+
+    /**
+     * Hands a packet back to the pool. The caller must not use it afterwards.
+     *
+     * @param packet a packet taken from this pool
+     */
+    public void release(DatagramPacket packet) {
+        if (packet.getData().length != packetSize || packets.size() == capacity) {
+            dropped++;
+            return;
+        }
+        packets.push(packet);
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * Returns the number of idle packets in the pool
+     *
+     * @return the number of packets
+     */
+    public int size() {
+        return packets.size();
+    }
+
+    public long getAcquired() {
+        return acquired;
+    }
+
+    public long getAllocated() {
+        return allocated;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+}
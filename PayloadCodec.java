@@ -0,0 +1,226 @@
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the requests of a connection and their replies, with DEFLATE primed by the requests the connection
+ * carried before. Both ends keep the same history: the requests in the order of their sequence numbers, added by the
+ * client as it sends them and by the server as it delivers them, which it does in that order anyway. A request is
+ * compressed against the last {@link #DICTIONARY_SIZE} bytes of history before it, and so is its reply, so a reply
+ * is decoded whatever the order the replies arrive in. The dictionary is thus the connection's own traffic, and a
+ * short message finds the context a stream would give it while still being compressed on its own.
+ * <p>
+ * The first byte of an encoded message tells whether the rest is compressed. A message is only sent compressed when
+ * it saves at least {@link RudpDatagramPacket#COMPRESSION_MIN_GAIN} bytes; after one which does not, the next
+ * messages are sent as they are, without trying, for a number of messages which doubles up to {@link #MAX_SKIP}, so
+ * traffic which does not compress costs almost no CPU. Each end of a connection has its own codec, used by one
+ * thread.
+ * <p>
+ * Sequenced data, streams and files are not compressed: streams are delivered out of the order of the sequence
+ * numbers, on purpose, so both ends would not agree on a history, and files are mostly compressed already.
+ */
+public class PayloadCodec {
+    public static final int RAW = 0;            // the message follows as it is
+    public static final int DEFLATED = 1;       // the message follows compressed
+    public static final int MARKER_SIZE = 1;
+    public static final int MAX_SKIP = 64;      // max number of messages sent without trying after a poor gain
+    public static final int DICTIONARY_SIZE = 1024; // bytes of history a message is compressed against
+
+    private final byte[] history;               // the last requests of the connection, a ring
+    private final byte[] dictionary;            // the part of the history a message is coded against, in one piece
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private long position;                      // bytes of requests added to the history
+    private int skip;                           // messages left to send without trying
+    private int backoff;                        // messages to skip after the next poor gain
+    private long rawBytes;                      // bytes of the messages encoded
+    private long encodedBytes;                  // bytes of the encoded messages, markers included
+
+    public PayloadCodec() {
+        // a reply is coded against the history before its request, which up to a window of requests may follow
+        history = new byte[DICTIONARY_SIZE + RudpDatagramPacket.REPLY_SLOTS * RudpDatagramPacket.PAYLOAD_MAX_SIZE];
+        dictionary = new byte[DICTIONARY_SIZE];
+        // raw DEFLATE: the zlib header and checksum would cost 6 bytes of a packet, UDP already checks the data
+        deflater = new Deflater(Deflater.BEST_SPEED, true);
+        inflater = new Inflater(true);
+    }
+
+    /**
+     * Returns the end of the history, the position the next request is coded against
+     *
+     * @return the number of bytes of requests added to the history
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Adds a request to the history. Both ends add the same requests, in the order of their sequence numbers.
+     *
+     * @param src    the array holding the request, as it was before being encoded
+     * @param offset the index of the request in the array
+     * @param length the length of the request
+     */
+    public void append(byte[] src, int offset, int length) {
+        int skipped = Math.max(0, length - history.length);
+        position += skipped;
+        for (int i = skipped; i < length; ) {
+            int at = (int) (position % history.length);
+            int chunk = Math.min(length - i, history.length - at);
+            System.arraycopy(src, offset + i, history, at, chunk);
+            position += chunk;
+            i += chunk;
+        }
+    }
+
+    /**
+     * Forgets the history and the gains of the messages so far, for a new connection
+     */
+    public void reset() {
+        position = 0;
+        skip = 0;
+        backoff = 0;
+    }
+
+    /**
+     * Encodes a message, compressed if it saves enough
+     *
+     * @param src       the array holding the message
+     * @param offset    the index of the message in the array
+     * @param length    the length of the message
+     * @param dst       the array receiving the encoded message
+     * @param dstOffset the index where the encoded message starts
+     * @param capacity  the max length of the encoded message
+     * @param end       the position of the history the dictionary ends at, the one of the request
+     * @return the length of the encoded message, or -1 if it does not fit
+     */
+    public int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset, int capacity, long end) {
+        int encoded = -1;
+        if (skip > 0) {
+            skip--;
+        } else if (length > RudpDatagramPacket.COMPRESSION_MIN_GAIN) {
+            // a history which lost the dictionary sends the message as it is, the other end could not decode it
+            int dictionaryLength = dictionary(end);
+            encoded = dictionaryLength < 0 ? -1 :
+                    deflate(src, offset, length, dst, dstOffset, capacity, dictionaryLength);
+            if (encoded < 0) {
+                // too little gain, leave the next messages alone for a while
+                skip = backoff;
+                backoff = Math.min(MAX_SKIP, Math.max(1, 2 * backoff));
+            } else {
+                backoff = 0;
+            }
+        }
+        if (encoded < 0) {
+            if (MARKER_SIZE + length > capacity) {
+                return -1;
+            }
+            dst[dstOffset] = RAW;
+            System.arraycopy(src, offset, dst, dstOffset + MARKER_SIZE, length);
+            encoded = MARKER_SIZE + length;
+        }
+        rawBytes += length;
+        encodedBytes += encoded;
+        return encoded;
+    }
+
+    /**
+     * Compresses a message behind its marker
+     *
+     * @param dictionaryLength the number of bytes of the dictionary
+     * @return the length of the encoded message, or -1 if it saves less than the minimum gain or does not fit
+     */
+    private int deflate(byte[] src, int offset, int length, byte[] dst, int dstOffset, int capacity,
+                        int dictionaryLength) {
+        int limit = Math.min(capacity, length - RudpDatagramPacket.COMPRESSION_MIN_GAIN) - MARKER_SIZE;
+        if (limit <= 0) {
+            return -1;
+        }
+        deflater.reset();
+        if (dictionaryLength > 0) {
+            deflater.setDictionary(dictionary, 0, dictionaryLength);
+        }
+        deflater.setInput(src, offset, length);
+        deflater.finish();
+        int compressed = deflater.deflate(dst, dstOffset + MARKER_SIZE, limit);
+        if (!deflater.finished()) {
+            return -1;
+        }
+        dst[dstOffset] = DEFLATED;
+        return MARKER_SIZE + compressed;
+    }
+
+    /**
+     * Decodes a message encoded by the codec at the other end
+     *
+     * @param src       the array holding the encoded message
+     * @param offset    the index of the encoded message in the array
+     * @param length    the length of the encoded message
+     * @param dst       the array receiving the message
+     * @param dstOffset the index where the message starts
+     * @param capacity  the max length of the message
+     * @param end       the position of the history the dictionary ends at, the one of the request
+     * @return the length of the message, or -1 if it is corrupt or does not fit
+     */
+    public int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset, int capacity, long end) {
+        if (length < MARKER_SIZE) {
+            return -1;
+        }
+        if (src[offset] == RAW) {
+            if (length - MARKER_SIZE > capacity) {
+                return -1;
+            }
+            System.arraycopy(src, offset + MARKER_SIZE, dst, dstOffset, length - MARKER_SIZE);
+            return length - MARKER_SIZE;
+        }
+        int dictionaryLength = dictionary(end);
+        if (src[offset] != DEFLATED || dictionaryLength < 0) {
+            return -1;
+        }
+        inflater.reset();
+        if (dictionaryLength > 0) {
+            inflater.setDictionary(dictionary, 0, dictionaryLength);
+        }
+        inflater.setInput(src, offset + MARKER_SIZE, length - MARKER_SIZE);
+        try {
+            int inflated = inflater.inflate(dst, dstOffset, capacity);
+            return inflater.finished() ? inflated : -1;
+        } catch (DataFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Copies the dictionary of a message out of the history
+     *
+     * @param end the position of the history the dictionary ends at
+     * @return the number of bytes of the dictionary, or -1 if the history no longer holds them
+     */
+    private int dictionary(long end) {
+        int length = (int) Math.min(DICTIONARY_SIZE, end);
+        if (end > position || position - end + length > history.length) {
+            return -1;
+        }
+        int start = (int) ((end - length) % history.length);
+        int first = Math.min(length, history.length - start);
+        System.arraycopy(history, start, dictionary, 0, first);
+        System.arraycopy(history, 0, dictionary, first, length - first);
+        return length;
+    }
+
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /**
+     * Frees the native memory of the compressor
+     */
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+}
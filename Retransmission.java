@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Sends a packet and sends it again every time its retransmission timeout expires, until it is acknowledged.
+ * The timeout comes from the connection's {@link RttEstimator} and doubles on every retransmission. Following
+ * Karn's rule, only packets which were sent exactly once produce RTT samples.
+ */
+public class Retransmission implements TimerWheel.Task {
+    private final RudpTransport transport;
+    private final DatagramPacket packet;
+    private final RttEstimator rttEstimator;
+    private final TimerWheel timers;
+    private final TimerWheel.Task onGiveUp;     // run when the retries are exhausted
+    private final RudpMetrics metrics;          // counts the retransmissions, may be null
+    private TimerWheel.Timeout timeout;
+    private long sentAt;            // time of the first transmission in nanoseconds
+    private int retries;            // number of retransmissions so far
+
+    public Retransmission(RudpTransport transport, DatagramPacket packet, RttEstimator rttEstimator,
+                          TimerWheel timers) {
+        this(transport, packet, rttEstimator, timers, () -> {
+            throw new SocketTimeoutException("No acknowledgement after " + RudpDatagramPacket.MAX_RETRIES +
+                    " retries");
+        });
+    }
+
+    public Retransmission(RudpTransport transport, DatagramPacket packet, RttEstimator rttEstimator,
+                          TimerWheel timers, TimerWheel.Task onGiveUp) {
+        this(transport, packet, rttEstimator, timers, onGiveUp, null);
+    }
+
+    public Retransmission(RudpTransport transport, DatagramPacket packet, RttEstimator rttEstimator,
+                          TimerWheel timers, TimerWheel.Task onGiveUp, RudpMetrics metrics) {
+        this.transport = transport;
+        this.packet = packet;
+        this.rttEstimator = rttEstimator;
+        this.timers = timers;
+        this.onGiveUp = onGiveUp;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sends the packet for the first time and starts the timer
+     */
+    public void start() throws IOException {
+        sentAt = System.nanoTime();
+        transport.send(packet);
+        timeout = timers.schedule(this, rttEstimator.getTimeout());
+    }
+
+    @Override
+    public void expire() throws IOException {
+        if (++retries > RudpDatagramPacket.MAX_RETRIES) {
+            onGiveUp.expire();
+            return;
+        }
+        rttEstimator.backoff();
+        transport.send(packet);
+        if (metrics != null) {
+            metrics.onRetransmit(1, packet.getLength());
+        }
+        RudpEvents.retransmit(packet, 1, rttEstimator.getTimeout());
+        timeout = timers.schedule(this, rttEstimator.getTimeout());
+    }
+
+    /**
+     * Stops the retransmissions once the packet is acknowledged and samples the round trip time
+     */
+    public void acknowledge() {
+        cancel();
+        if (retries == 0) {
+            rttEstimator.addSample((System.nanoTime() - sentAt) / 1e6);
+        } else {
+            rttEstimator.resetBackoff();
+        }
+    }
+
+    /**
+     * Stops the retransmissions without sampling the round trip time
+     */
+    public void cancel() {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    public DatagramPacket getPacket() {
+        return packet;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+}
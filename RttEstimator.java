@@ -0,0 +1,89 @@
+/**
+ * Estimates the round trip time of a connection and derives the retransmission timeout (RTO) from it using the
+ * Jacobson/Karels algorithm from RFC 6298.
+ */
+public class RttEstimator {
+    private static final double ALPHA = 1.0 / 8;    // gain of the smoothed RTT
+    private static final double BETA = 1.0 / 4;     // gain of the RTT variation
+    private static final int K = 4;                 // weight of the RTT variation in the RTO
+
+    private final RudpMetrics metrics;  // receives the samples and timeouts, may be null
+    private double smoothedRtt;     // SRTT in milliseconds
+    private double rttVariation;    // RTTVAR in milliseconds
+    private double timeout;         // RTO in milliseconds
+    private int backoffs;           // number of times the RTO was doubled since the last acknowledgement
+    private boolean sampled;        // whether at least one sample was taken
+
+    public RttEstimator() {
+        this(null);
+    }
+
+    public RttEstimator(RudpMetrics metrics) {
+        this.metrics = metrics;
+        timeout = RudpDatagramPacket.INITIAL_TIMEOUT;
+    }
+
+    /**
+     * Updates the estimation with a new round trip time measurement. Following Karn's rule, the caller must not
+     * sample packets which were retransmitted.
+     *
+     * @param rttMillis the measured round trip time in milliseconds
+     */
+    public void addSample(double rttMillis) {
+        if (!sampled) {
+            smoothedRtt = rttMillis;
+            rttVariation = rttMillis / 2;
+            sampled = true;
+        } else {
+            rttVariation = (1 - BETA) * rttVariation + BETA * Math.abs(smoothedRtt - rttMillis);
+            smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rttMillis;
+        }
+        timeout = clamp(smoothedRtt + Math.max(TimerWheel.TICK_MILLIS, K * rttVariation));
+        backoffs = 0;
+        if (metrics != null) {
+            metrics.onRttSample(rttMillis, getTimeout());
+        }
+    }
+
+    /**
+     * Doubles the timeout after a retransmission
+     */
+    public void backoff() {
+        if (timeout * (1L << backoffs) < RudpDatagramPacket.TIMEOUT) {
+            backoffs++;
+        }
+        if (metrics != null) {
+            metrics.setTimeout(getTimeout());
+        }
+    }
+
+    /**
+     * Drops the backoff once new data is acknowledged. The path is alive again even if the acknowledgement cannot
+     * be used as a sample, and keeping the doubled timeout would stall a window whose every packet was
+     * retransmitted.
+     */
+    public void resetBackoff() {
+        backoffs = 0;
+    }
+
+    /**
+     * Returns the current retransmission timeout
+     *
+     * @return the timeout in milliseconds
+     */
+    public long getTimeout() {
+        return (long) Math.ceil(clamp(timeout * (1L << backoffs)));
+    }
+
+    public double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    public double getRttVariation() {
+        return rttVariation;
+    }
+
+    private static double clamp(double timeout) {
+        return Math.max(RudpDatagramPacket.MIN_TIMEOUT, Math.min(RudpDatagramPacket.TIMEOUT, timeout));
+    }
+}
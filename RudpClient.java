@@ -1,93 +1,148 @@
 import java.io.IOException;
-import java.net.*;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
- * This is a Reliable UDP client which sends messages to the echo server and prints the response
+ * This is a Reliable UDP client which sends messages to the echo server and prints the response. It is a blocking
+ * facade over an {@link AsyncRudpClient} running on an event loop of the default group.
  */
 public class RudpClient {
-    private final DatagramSocket socket;  // udp socket
-    private final InetAddress serverAddress;    // ipv4 address of the server
-    private final int serverPort;
-    private boolean connected;
+    private final AsyncRudpClient client;
 
-    public RudpClient() throws SocketException, UnknownHostException {
-        socket = new DatagramSocket();
-        serverAddress = InetAddress.getByName(Constants.SERVER_NAME);
-        serverPort = Constants.PORT;
-        connected = false;
+    public RudpClient() throws IOException {
+        this(Constants.SERVER_NAME, Constants.PORT);
+    }
+
+    public RudpClient(String serverName, int serverPort) throws IOException {
+        this(serverName, serverPort, RudpEventLoopGroup.getDefault().next());
+    }
+
+    public RudpClient(String serverName, int serverPort, RudpEventLoop eventLoop) throws IOException {
+        client = new AsyncRudpClient(serverName, serverPort, eventLoop);
     }
 
     public boolean isConnected() {
-        return connected;
+        return client.isConnected();
     }
 
-    /**
-     * Creates a UDP packet for requesting a connection
-     *
-     * @return the UDP packet
-     */
-    public DatagramPacket createConnectionRequestPacket() {
-        // create the reliable header for connection request
-        byte[] reliableHeader = RudpDatagramPacket.createEmptyHeader();
-        // set the SYN flag
-        RudpDatagramPacket.setSYN(reliableHeader);
-        // create random sequence number
-        RudpDatagramPacket.setSequenceNumber(reliableHeader, (short) (Math.random() * Short.MAX_VALUE));
-        // data is empty
-        byte[] data = new byte[0];
-        // assemble the payload
-        byte[] payload = RudpDatagramPacket.assemblePayload(reliableHeader, data);
-        // create the rudp datagram packet
-        return new DatagramPacket(payload, payload.length, serverAddress, serverPort);
+    public int getWindowSize() {
+        return client.getWindowSize();
     }
 
-    /**
-     * Creates a UDP packet for acknowledging the server's acknowledgement (from the client)
-     *
-     * @param serverAckPacket the packet received on the server's acknowledgement
-     * @return the UDP packet
-     */
-    public DatagramPacket createClientAckPacket(DatagramPacket serverAckPacket) {
-        // create new packet
-        DatagramPacket ackPacket = RudpDatagramPacket.copyPacket(serverAckPacket);
-        // create the reliable header for connection request
-        byte[] reliableHeader = RudpDatagramPacket.getReliableHeader(ackPacket.getData());
-        // reset the SYN flag
-        RudpDatagramPacket.resetSYN(reliableHeader);
-        // set the ACK flag
-        RudpDatagramPacket.setACK(reliableHeader);
-        // set the acknowledgement number
-        RudpDatagramPacket.setACKNumber(reliableHeader,
-                (short) (RudpDatagramPacket.getSequenceNumber(reliableHeader) + 1));
-        // reset the sequence number
-        RudpDatagramPacket.setSequenceNumber(reliableHeader, (short) 0);
-        // add the new reliable header to the data
-        RudpDatagramPacket.modifyReliableHeader(reliableHeader, ackPacket.getData());
-        // set address and port
-        ackPacket.setAddress(serverAddress);
-        ackPacket.setPort(serverPort);
-        // return the rudp datagram packet
-        return ackPacket;
+    public void setWindowSize(int windowSize) {
+        client.setWindowSize(windowSize);
+    }
+
+    public CongestionControl getCongestionControl() {
+        return client.getCongestionControl();
+    }
+
+    public void setCongestionControl(CongestionControl congestionControl) {
+        client.setCongestionControl(congestionControl);
+    }
+
+    public int getAdvertisedWindow() {
+        return client.getAdvertisedWindow();
+    }
+
+    public int getSegmentSize() {
+        return client.getSegmentSize();
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        client.setSegmentSize(segmentSize);
+    }
+
+    public boolean isSackEnabled() {
+        return client.isSackEnabled();
+    }
+
+    public void setSackEnabled(boolean sackEnabled) {
+        client.setSackEnabled(sackEnabled);
+    }
+
+    public boolean isCompressionEnabled() {
+        return client.isCompressionEnabled();
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        client.setCompressionEnabled(compressionEnabled);
+    }
+
+    public boolean isCompressed() {
+        return client.isCompressed();
+    }
+
+    public int getFecBlock() {
+        return client.getFecBlock();
+    }
+
+    public int getFecParity() {
+        return client.getFecParity();
+    }
+
+    public void setForwardErrorCorrection(int block, int parity) {
+        client.setForwardErrorCorrection(block, parity);
+    }
+
+    public boolean isFecAccepted() {
+        return client.isFecAccepted();
+    }
+
+    public long getRetransmissions() {
+        return client.getRetransmissions();
+    }
+
+    public long getRetransmittedBytes() {
+        return client.getRetransmittedBytes();
+    }
+
+    public RttEstimator getRttEstimator() {
+        return client.getRttEstimator();
+    }
+
+    public PacketPool getPacketPool() {
+        return client.getPacketPool();
+    }
+
+    public NetworkEmulator getNetworkEmulator() {
+        return client.getNetworkEmulator();
+    }
+
+    public RudpMetrics getMetrics() {
+        return client.getMetrics();
+    }
+
+    public byte[] getSessionToken() {
+        return client.getSessionToken();
+    }
+
+    public void setSessionToken(byte[] sessionToken) {
+        client.setSessionToken(sessionToken);
     }
 
     /**
      * Connect to the server using 3-way handshake.
      */
     public void connectToServer() throws IOException {
-        // create the connection request
-        DatagramPacket requestPacket = createConnectionRequestPacket();
-        socket.send(requestPacket);
-        System.out.println("Connection request sent.");
-        // receive the acknowledgement
-        DatagramPacket ackPacket = RudpDatagramPacket.createEmptyPacket();
-        // verify the acknowledgement
-        socket.receive(ackPacket);
-        System.out.println("Connection acknowledgement received.");
-        // send the acknowledgement
-        socket.send(createClientAckPacket(ackPacket));
-        System.out.println("Connection acknowledgement sent.");
-        // set the connected flag
-        connected = true;
+        await(client.connect());
+    }
+
+    /**
+     * Connect to the server and send a first request, waiting for its reply. With a session token the request
+     * travels in the connection request.
+     *
+     * @param request the first request, which must fit in a single packet
+     * @return the reply from the server
+     * @see AsyncRudpClient#connect(ByteBuffer)
+     */
+    public byte[] connectToServer(ByteBuffer request) throws IOException {
+        return await(client.connect(request));
     }
 
     /**
@@ -97,34 +152,99 @@ public class RudpClient {
      * @return the response from the server
      */
     public String sendEcho(String msg) throws IOException {
-        // extract the message bytes
-        byte[] data = msg.getBytes();
-        // create a datagram packet with the reliable header
-        DatagramPacket packet = RudpDatagramPacket.createDataPacket(data, serverAddress, serverPort);
-        // send the packet
-        socket.send(packet);
-        System.out.println("Message sent. " + packet.getLength());
-        // receive the response
-        socket.receive(packet);
-        System.out.println("Message received. " + packet.getLength());
-        // return the response message
-        byte[] receivedMsg = RudpDatagramPacket.getData(packet);
-        return new String(receivedMsg, 0, receivedMsg.length);
+        return await(client.sendEcho(msg));
+    }
+
+    /**
+     * Send a request to the server, waiting for its reply. Use {@link AsyncRudpClient#send(ByteBuffer)} to keep
+     * many requests in flight.
+     *
+     * @param request the request, which must fit in a single packet
+     * @return the reply from the server
+     */
+    public byte[] send(ByteBuffer request) throws IOException {
+        return await(client.send(request));
+    }
+
+    /**
+     * Send several messages to the server using a Go-Back-N sliding window, waiting until all of them are
+     * acknowledged.
+     *
+     * @param messages the messages to be sent, in order
+     * @see AsyncRudpClient#sendAll(List)
+     */
+    public void sendAll(List<String> messages) throws IOException {
+        await(client.sendAll(messages));
+    }
+
+    /**
+     * Send a message of any size to the server, waiting until all of its fragments are acknowledged.
+     *
+     * @param message the message
+     * @see AsyncRudpClient#sendMessage(byte[])
+     */
+    public void sendMessage(byte[] message) throws IOException {
+        await(client.sendMessage(message));
+    }
+
+    /**
+     * Send a message of any size to the server on the given stream, waiting until all of its fragments are
+     * acknowledged.
+     *
+     * @param stream  the id of the stream
+     * @param message the message
+     * @see AsyncRudpClient#sendMessage(int, byte[])
+     */
+    public void sendMessage(int stream, byte[] message) throws IOException {
+        await(client.sendMessage(stream, message));
+    }
+
+    /**
+     * Send one message on each of several streams, waiting until all of their fragments are acknowledged.
+     *
+     * @param messages the message of each stream, by stream id
+     * @see AsyncRudpClient#sendStreams(Map)
+     */
+    public void sendStreams(Map<Integer, byte[]> messages) throws IOException {
+        await(client.sendStreams(messages));
+    }
+
+    /**
+     * Send a file to a server receiving files, waiting until all of its segments are acknowledged. Sending it again
+     * after an interruption only sends the segments the progress bitmap does not record.
+     *
+     * @param file     the file
+     * @param progress the file of the bitmap of the segments acknowledged
+     * @see AsyncRudpClient#sendFile(Path, Path)
+     */
+    public void sendFile(Path file, Path progress) throws IOException {
+        await(client.sendFile(file, progress));
     }
 
     /**
      * Close the connection to the server.
      */
     public void closeConnection() throws IOException {
-        // send the disconnection request
-        socket.send(RudpDatagramPacket.createDisconnectRequestPacket(serverAddress, serverPort));
-        // receive the acknowledgement from the server
-        DatagramPacket packet = RudpDatagramPacket.createEmptyPacket();
-        socket.receive(packet);
-        // send the acknowledgement to the server
-        socket.send(createClientAckPacket(packet));
-        // close the socket
-        connected = false;
-        socket.close();
+        await(client.close());
+    }
+
+    /**
+     * Waits for an operation of the asynchronous client
+     *
+     * @param future the future of the operation
+     * @return the result of the operation
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
     }
 }
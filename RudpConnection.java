@@ -0,0 +1,988 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The state a server keeps for one client: the sequence numbers of both sides, the control packet waiting for the
+ * client's acknowledgement, the last replies, which are sent again when the client retransmits a request, and the
+ * message being reassembled from fragments.
+ * <p>
+ * Every request is answered at once by its own echo, so a client can keep many requests in flight and match the
+ * replies by their acknowledgement numbers. Sequenced data, sent with the SEQ flag, is acknowledged once the server
+ * has handled the whole batch of datagrams it received, so a burst from the client is answered by one cumulative
+ * acknowledgement instead of one datagram per packet.
+ * <p>
+ * When the client permits selective acknowledgements in its connection request, packets which arrive ahead of a gap
+ * are held and reported in a SACK bitmap, so the client only resends what is missing.
+ * <p>
+ * A connection served by a {@link RudpSession} does not echo: its messages are acknowledged with the batch and
+ * answered with the reply the session writes. So are the messages of a server with a {@link HandlerPipeline}, which
+ * refuses new data while its workers fall behind.
+ * <p>
+ * Sequenced data belongs to one of several streams, each ordered and reassembled on its own: a packet held after a
+ * gap is delivered at once if its stream misses nothing, so a loss on one stream does not delay the others.
+ * <p>
+ * A client whose parity packets the acknowledgement of its connection request accepted follows blocks of sequenced
+ * data with them, flagged PSH, SEQ and ACK and outside of the sequence numbers. The connection keeps its last packets
+ * of sequenced data from the moment it is established, and a packet missing from a parity group is rebuilt from the
+ * others without waiting for the client to send it again.
+ * <p>
+ * A client which offered compression in its connection request sends its requests encoded by a {@link PayloadCodec}:
+ * they are expanded before they are delivered and added to the history of the codec, echoed as they came, and
+ * replies are encoded against the history their request was expanded with.
+ */
+public class RudpConnection {
+    static final byte[] EMPTY_REPLY = new byte[0];
+
+    /**
+     * The states of a connection on the server side, named after their TCP counterparts
+     */
+    public enum State {
+        SYN_RECEIVED,       // connection request acknowledged, waiting for the client's acknowledgement
+        ESTABLISHED,        // data is being exchanged
+        LAST_ACK            // close request acknowledged, waiting for the client's last acknowledgement
+    }
+
+    private final RudpServer server;
+    private final RudpTransport transport;
+    private final TimerWheel timers;
+    private final SocketAddress address;        // address and port of the client
+    private final short initialSequenceNumber;  // the client's initial sequence number
+    private final boolean sackPermitted;        // whether the client asked for selective acknowledgements
+    private final RttEstimator rttEstimator;    // round trip time of the connection
+    private final RudpMetrics metrics;          // counters of the connection, summed by the server's
+    private final long openedAt;                // time of the connection request in nanoseconds
+    private final RudpEvents.Handshake handshakeEvent;
+    private State state;
+    private short sequenceNumber;               // sequence number of the next packet sent to the client
+    private short expectedSequenceNumber;       // sequence number of the next in-order packet from the client
+    private DatagramPacket connectionAck;       // acknowledgement of the connection request, sent again on duplicates
+    private final DatagramPacket replyPacket;   // sends one of the replies
+    private final DatagramPacket ackPacket;     // bare cumulative acknowledgement, rewritten in place
+    private final RudpHeader ackHeader;         // view of the reliable header of the bare acknowledgement
+    private byte[] replies;                     // last replies, one slot per request sequence number
+    private int[] replyLengths;                 // length of the reply in each slot, 0 if the slot is empty
+    private short[] repliedSequenceNumbers;     // sequence number of the request each slot answers
+    private ByteBuffer replyBuffer;             // the replies seen by replyHeader
+    private RudpHeader replyHeader;             // view of the reliable header of a reply
+    private boolean closed;                     // whether the connection was closed, replies are dropped then
+    private boolean ackPending;                 // whether a bare acknowledgement is sent when the batch is flushed
+    private boolean flushScheduled;             // whether the server flushes this connection after the batch
+    private Stream[] streams;                   // receive state of each stream, allocated with its first packet
+    private Stream requestFragments;            // reassembly of a request sent in fragments without the SEQ flag
+    private byte[] held;                        // packets received ahead of a gap, one slot per sequence number
+    private int[] heldLengths;                  // length of the packet in each slot, 0 if the slot is empty
+    private boolean[] heldDelivered;            // held packets already delivered because their stream had the rest
+    private int heldPending;                    // held packets of a stream which still misses earlier packets
+    private byte[] recent;                      // last packets of sequenced data, kept to rebuild a lost one
+    private int[] recentLengths;                // length of the packet in each slot, 0 if the slot is empty
+    private short[] recentSequenceNumbers;      // sequence number of the packet in each slot
+    private DatagramPacket rebuiltPacket;       // packet rebuilt from a parity packet
+    private RudpHeader rebuiltHeader;           // view of the reliable header of the rebuilt packet
+    private ByteBuffer heldBuffer;              // the held packets seen by heldHeader
+    private RudpHeader heldHeader;              // view of the reliable header of a held packet
+    private Retransmission retransmission;      // control packet waiting for the client's acknowledgement
+    private long lastActivity;                  // time of the last packet from the client in milliseconds
+    private RudpSession session;                // handler of the messages instead of the echo, may be null
+    private final boolean compression;          // whether requests and replies carry messages encoded by a codec
+    private final boolean fecAccepted;          // whether the acknowledgement accepted the client's parity packets
+    private PayloadCodec codec;                 // expands the requests and compresses the replies
+    private byte[] decoded;                     // request expanded by the codec
+    private long[] replyHistories;              // position of the codec history each request was expanded against
+
+    /**
+     * Creates the connection of a connection request
+     *
+     * @param requestPacket the connection request
+     * @param requestHeader view of the reliable header of the connection request, the one the server reads it with
+     */
+    public RudpConnection(RudpServer server, RudpTransport transport, TimerWheel timers,
+                          DatagramPacket requestPacket, RudpHeader requestHeader) {
+        this(server, transport, timers, requestPacket.getSocketAddress(), requestHeader.getSequenceNumber(),
+                requestHeader.isSACK(), requestHeader.isMORE(), server.createServerAckPacket(requestPacket));
+        metrics.onPacketIn(requestPacket.getLength());
+    }
+
+    /**
+     * Creates the connection of a handshake whose acknowledgement was already built, as for a SYN cookie
+     *
+     * @param address               the address and port of the client
+     * @param initialSequenceNumber the client's initial sequence number
+     * @param sackPermitted         whether the client asked for selective acknowledgements
+     * @param compression           whether the client offered compression and the acknowledgement accepts it
+     * @param connectionAck         the acknowledgement of the connection request
+     */
+    public RudpConnection(RudpServer server, RudpTransport transport, TimerWheel timers, SocketAddress address,
+                          short initialSequenceNumber, boolean sackPermitted, boolean compression,
+                          DatagramPacket connectionAck) {
+        this.server = server;
+        metrics = new RudpMetrics(server.getMetrics());
+        this.transport = RudpTransport.metered(transport, metrics);
+        this.timers = timers;
+        this.address = address;
+        this.initialSequenceNumber = initialSequenceNumber;
+        this.sackPermitted = sackPermitted;
+        this.compression = compression;
+        fecAccepted = connectionAck.getLength() >= RudpDatagramPacket.RELIABLE_HEADER_SIZE +
+                RudpDatagramPacket.TOKEN_SIZE + RudpDatagramPacket.FEC_ACCEPT_SIZE;
+        // the client's data starts right after its initial sequence number
+        expectedSequenceNumber = (short) (initialSequenceNumber + 1);
+        rttEstimator = new RttEstimator(metrics);
+        openedAt = System.nanoTime();
+        handshakeEvent = new RudpEvents.Handshake();
+        handshakeEvent.begin();
+        this.connectionAck = connectionAck;
+        sequenceNumber = (short) (new RudpHeader().wrap(connectionAck).getSequenceNumber() + 1);
+        replyPacket = new DatagramPacket(new byte[0], 0, address);
+        ackPacket = new DatagramPacket(new byte[RudpDatagramPacket.MAX_ACK_SIZE],
+                RudpDatagramPacket.RELIABLE_HEADER_SIZE, address);
+        ackHeader = new RudpHeader().wrap(ackPacket);
+        ackHeader.setACK();
+        ackHeader.setWND();
+        state = State.SYN_RECEIVED;
+        touch();
+    }
+
+    /**
+     * Sends the acknowledgement of the connection request until the client acknowledges it back
+     */
+    public void open() throws IOException {
+        retransmission = new Retransmission(transport, connectionAck, rttEstimator, timers, this::timeOut, metrics);
+        retransmission.start();
+        if (RudpLog.isInfoEnabled()) {
+            RudpLog.info("Sent acknowledgement to " + address);
+        }
+    }
+
+    /**
+     * Accepts a connection request with a valid session token. The connection is established at once, without
+     * waiting for the client's acknowledgement, and the data following the token is delivered as the client's first
+     * packet. The acknowledgement of the request then acknowledges that packet too, so the client knows its data
+     * arrived.
+     *
+     * @param requestPacket the connection request
+     */
+    public void resume(DatagramPacket requestPacket) throws IOException {
+        int earlyLength = requestPacket.getLength() - RudpDatagramPacket.TOKEN_SIZE;
+        boolean early = earlyLength > RudpDatagramPacket.RELIABLE_HEADER_SIZE;
+        if (early) {
+            new RudpHeader().wrap(connectionAck).setACKNumber((short) (initialSequenceNumber + 2));
+        }
+        established("server, resumed");
+        metrics.onResumption();
+        transport.send(connectionAck);
+        if (RudpLog.isInfoEnabled()) {
+            RudpLog.info("Resumed session of " + address);
+        }
+        if (early) {
+            // rewrite the end of the token into the header of a data packet in front of the data
+            int offset = requestPacket.getOffset() + RudpDatagramPacket.TOKEN_SIZE;
+            RudpHeader earlyHeader = new RudpHeader().wrap(ByteBuffer.wrap(requestPacket.getData()), offset).clear();
+            earlyHeader.setPSH();
+            earlyHeader.setSequenceNumber(expectedSequenceNumber);
+            if (!deliver(requestPacket.getData(), offset, earlyLength, earlyHeader)) {
+                ackPending = true;
+                scheduleFlush();
+            }
+        }
+    }
+
+    /**
+     * Checks if the given connection request is a retransmission of the one which opened this connection
+     *
+     * @param header the reliable header of the connection request
+     * @return true if the request is a duplicate, false if the client opens a new connection
+     */
+    public boolean isDuplicateRequest(RudpHeader header) {
+        return header.getSequenceNumber() == initialSequenceNumber;
+    }
+
+    /**
+     * Dispatches a packet received from the client by its flags
+     *
+     * @param packet the packet received
+     * @param header view of the reliable header of the packet
+     */
+    public void handlePacket(DatagramPacket packet, RudpHeader header) throws IOException {
+        metrics.onPacketIn(packet.getLength());
+        if (header.isSYN()) {
+            // the client did not get our acknowledgement yet
+            metrics.onDuplicate();
+            transport.send(connectionAck);
+        } else if (header.isFIN()) {
+            handleDisconnect(packet);
+        } else if (header.isPSH()) {
+            if (state != State.LAST_ACK) {
+                handleData(packet, header);
+            }
+        } else if (header.isACK()) {
+            handleAck();
+        }
+    }
+
+    /**
+     * Handles the acknowledgement which completes the handshake or the connection close
+     */
+    private void handleAck() {
+        if (retransmission == null) {
+            return;
+        }
+        retransmission.acknowledge();
+        retransmission = null;
+        if (state == State.LAST_ACK) {
+            // the client got our close acknowledgement, forget it
+            server.removeConnection(this);
+            return;
+        }
+        if (RudpLog.isInfoEnabled()) {
+            RudpLog.info("Received acknowledgement from " + address);
+        }
+        established("server");
+    }
+
+    /**
+     * Establishes a connection whose client returned a valid SYN cookie. The handshake is already complete.
+     */
+    public void establish() {
+        established("server, cookie");
+    }
+
+    /**
+     * Records the end of the handshake
+     *
+     * @param side how the handshake completed, for the Flight Recorder
+     */
+    private void established(String side) {
+        state = State.ESTABLISHED;
+        if (fecAccepted) {
+            // keep the packets from the first one on, so the first block can be rebuilt too
+            recent = new byte[RudpDatagramPacket.SACK_BITS * RudpDatagramPacket.PAYLOAD_MAX_SIZE];
+            recentLengths = new int[RudpDatagramPacket.SACK_BITS];
+            recentSequenceNumbers = new short[RudpDatagramPacket.SACK_BITS];
+            rebuiltPacket = new DatagramPacket(new byte[RudpDatagramPacket.PAYLOAD_MAX_SIZE],
+                    RudpDatagramPacket.PAYLOAD_MAX_SIZE);
+            rebuiltHeader = new RudpHeader().wrap(rebuiltPacket);
+        }
+        metrics.onHandshake(System.nanoTime() - openedAt);
+        if (handshakeEvent.shouldCommit()) {
+            handshakeEvent.peer = address.toString();
+            handshakeEvent.side = side;
+            handshakeEvent.commit();
+        }
+    }
+
+    /**
+     * Handles a data packet. An in-order packet is delivered together with the held packets it unblocks; a packet
+     * ahead of a gap is held if the client permits selective acknowledgements, and dropped otherwise. A request
+     * which was already answered gets its reply again; acknowledgements are sent by {@link #flush()}.
+     *
+     * @param packet the packet received
+     * @param header view of the reliable header of the packet
+     */
+    private void handleData(DatagramPacket packet, RudpHeader header) throws IOException {
+        // the client's last acknowledgement of the handshake was lost, its data completes the handshake
+        if (state == State.SYN_RECEIVED) {
+            handleAck();
+        }
+        if (header.isSEQ() && header.isACK()) {
+            recover(packet, header);
+            return;
+        }
+        short packetSequenceNumber = header.getSequenceNumber();
+        HandlerPipeline pipeline = server.getHandlerPipeline();
+        if (session == null && pipeline != null && pipeline.isFull() &&
+                RudpDatagramPacket.sequenceDistance(expectedSequenceNumber, packetSequenceNumber) < 0x8000) {
+            // the workers fell behind: drop new data like a full socket buffer, the client sends it again
+            metrics.onOverload();
+            ackPending = true;
+            scheduleFlush();
+            return;
+        }
+        if (recent != null && header.isSEQ()) {
+            remember(packet, packetSequenceNumber);
+        }
+        if (packetSequenceNumber != expectedSequenceNumber) {
+            if (hasReply(packetSequenceNumber)) {
+                // the reply was lost, send it again
+                metrics.onDuplicate();
+                sendReply(replySlotOf(packetSequenceNumber));
+                return;
+            }
+            if (RudpDatagramPacket.sequenceDistance(expectedSequenceNumber, packetSequenceNumber) < 0x8000) {
+                metrics.onOutOfOrder();
+            } else {
+                metrics.onDuplicate();
+            }
+            // hold or drop out of order packets, repeating the cumulative acknowledgement
+            if (sackPermitted && hold(packet, packetSequenceNumber) && header.isSEQ()) {
+                // its stream may miss nothing, the gap is on another stream
+                if (deliverStream(packet.getData(), packet.getOffset(), packet.getLength(), header)) {
+                    heldDelivered[slotOf(packetSequenceNumber)] = true;
+                    heldPending--;
+                }
+            }
+            ackPending = true;
+            scheduleFlush();
+            return;
+        }
+        boolean echoed = deliver(packet.getData(), packet.getOffset(), packet.getLength(), header);
+        if (held != null) {
+            int slot;
+            while (heldLengths[slot = slotOf(expectedSequenceNumber)] > 0) {
+                int length = heldLengths[slot];
+                heldLengths[slot] = 0;
+                if (heldDelivered[slot]) {
+                    // its stream already had it
+                    heldDelivered[slot] = false;
+                    expectedSequenceNumber++;
+                    continue;
+                }
+                heldPending--;
+                int offset = slot * RudpDatagramPacket.PAYLOAD_MAX_SIZE;
+                echoed = deliver(held, offset, length, heldHeader.wrap(heldBuffer, offset));
+            }
+        }
+        // an echo carries the cumulative acknowledgement, anything else is acknowledged with the batch
+        if (!echoed) {
+            ackPending = true;
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Rebuilds the packet missing from the group of a parity packet, when the group misses exactly one packet and
+     * every other one is kept, and handles it as if it had arrived. The parity packet holds the XOR of the packets
+     * of its group from their stream byte on, the XOR of their lengths and the XOR of their MORE flags; its sequence
+     * number is the one of the first packet of its block, packet {@code group + i * groups} of the block belongs to
+     * the group.
+     *
+     * @param packet the parity packet
+     * @param header view of the reliable header of the parity packet
+     */
+    private void recover(DatagramPacket packet, RudpHeader header) throws IOException {
+        if (recent == null) {
+            // the parity packets were not accepted in the handshake
+            return;
+        }
+        byte[] parity = packet.getData();
+        int base = packet.getOffset();
+        short first = header.getSequenceNumber();
+        int blockSize = parity[base + RudpDatagramPacket.PARITY_BLOCK_BYTE] & 0xFF;
+        int group = parity[base + RudpDatagramPacket.PARITY_GROUP_BYTE] & 0x0F;
+        int groups = (parity[base + RudpDatagramPacket.PARITY_GROUP_BYTE] >> 4) & 0x0F;
+        if (groups == 0 || blockSize > RudpDatagramPacket.MAX_FEC_BLOCK ||
+                packet.getLength() - RudpDatagramPacket.PARITY_OVERHEAD > RudpDatagramPacket.PAYLOAD_MAX_SIZE) {
+            return;
+        }
+        short missing = 0;
+        int missingCount = 0;
+        for (int i = group; i < blockSize; i += groups) {
+            short sequenceNumber = (short) (first + i);
+            if (isRecent(sequenceNumber)) {
+                continue;
+            }
+            int distance = RudpDatagramPacket.sequenceDistance(expectedSequenceNumber, sequenceNumber);
+            if (distance >= 0x8000 || distance > 0 && held != null && heldLengths[slotOf(sequenceNumber)] > 0) {
+                // received, but not kept
+                return;
+            }
+            missing = sequenceNumber;
+            missingCount++;
+        }
+        if (missingCount != 1) {
+            // nothing to rebuild, or too many losses in the group
+            return;
+        }
+        byte[] rebuilt = rebuiltPacket.getData();
+        Arrays.fill(rebuilt, (byte) 0);
+        System.arraycopy(parity, base + RudpDatagramPacket.PARITY_DATA_BYTE, rebuilt, RudpDatagramPacket.STREAM_BYTE,
+                packet.getLength() - RudpDatagramPacket.PARITY_DATA_BYTE);
+        int length = (parity[base + RudpDatagramPacket.PARITY_LENGTH_BYTE] & 0xFF) |
+                (parity[base + RudpDatagramPacket.PARITY_LENGTH_BYTE + 1] & 0xFF) << 8;
+        int more = header.getFlags() & RudpDatagramPacket.MORE_MASK;
+        for (int i = group; i < blockSize; i += groups) {
+            short sequenceNumber = (short) (first + i);
+            if (sequenceNumber == missing) {
+                continue;
+            }
+            int slot = slotOf(sequenceNumber);
+            int offset = slot * RudpDatagramPacket.PAYLOAD_MAX_SIZE;
+            for (int b = RudpDatagramPacket.STREAM_BYTE; b < recentLengths[slot]; b++) {
+                rebuilt[b] ^= recent[offset + b];
+            }
+            length ^= recentLengths[slot];
+            more ^= recent[offset + RudpDatagramPacket.FLAGS_BYTE] & RudpDatagramPacket.MORE_MASK;
+        }
+        if (length < RudpDatagramPacket.STREAM_HEADER_SIZE || length > RudpDatagramPacket.PAYLOAD_MAX_SIZE) {
+            return;
+        }
+        rebuiltHeader.setSequenceNumber(missing);
+        rebuiltHeader.setACKNumber((short) 0);
+        rebuiltHeader.setFlags(RudpDatagramPacket.PSH_MASK | RudpDatagramPacket.SEQ_MASK | more);
+        rebuiltPacket.setLength(length);
+        metrics.onRecovery();
+        handleData(rebuiltPacket, rebuiltHeader);
+    }
+
+    /**
+     * Keeps a packet of sequenced data for the parity packets which may follow
+     *
+     * @param packet         the packet received
+     * @param sequenceNumber the sequence number of the packet
+     */
+    private void remember(DatagramPacket packet, short sequenceNumber) {
+        int slot = slotOf(sequenceNumber);
+        System.arraycopy(packet.getData(), packet.getOffset(), recent, slot * RudpDatagramPacket.PAYLOAD_MAX_SIZE,
+                packet.getLength());
+        recentLengths[slot] = packet.getLength();
+        recentSequenceNumbers[slot] = sequenceNumber;
+    }
+
+    private boolean isRecent(short sequenceNumber) {
+        int slot = slotOf(sequenceNumber);
+        return recentLengths[slot] > 0 && recentSequenceNumbers[slot] == sequenceNumber;
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            server.scheduleFlush(this);
+        }
+    }
+
+    /**
+     * Sends the bare acknowledgement held during the batch, if packets were held or not echoed
+     */
+    public void flush() throws IOException {
+        flushScheduled = false;
+        if (closed) {
+            // closed during the batch
+            return;
+        }
+        if (ackPending) {
+            ackPending = false;
+            sendAck();
+        }
+    }
+
+    /**
+     * Delivers the next in-order packet and, for a request, sends its echo with a cumulative acknowledgement. The
+     * header is rewritten where the packet is and the echo is copied into the reply slot of the request, so nothing
+     * is allocated once the slots exist. Fragments of a larger message and sequenced data are not echoed, the
+     * message is delivered once its last fragment arrives. Sequenced data goes to its stream.
+     *
+     * @param data   the array holding the packet
+     * @param offset the index of the packet in the array
+     * @param length the length of the packet
+     * @param header view of the reliable header of the packet
+     * @return true if the packet was echoed, false if it still has to be acknowledged
+     */
+    private boolean deliver(byte[] data, int offset, int length, RudpHeader header) throws IOException {
+        expectedSequenceNumber++;
+        if (header.isSEQ()) {
+            // the stream may already have it, if it was held after a gap
+            deliverStream(data, offset, length, header);
+            return false;
+        }
+        int dataOffset = offset + RudpDatagramPacket.RELIABLE_HEADER_SIZE;
+        int dataLength = length - RudpDatagramPacket.RELIABLE_HEADER_SIZE;
+        short requestSequenceNumber = header.getSequenceNumber();
+        if (header.isMORE() || requestFragments != null && requestFragments.reassembling) {
+            if (requestFragments == null) {
+                requestFragments = new Stream(-1);
+            }
+            requestFragments.receive(data, dataOffset, dataLength, header.isMORE(), requestSequenceNumber);
+            return false;
+        }
+        byte[] message = data;
+        if (compression) {
+            // the echo sends the request back as it came, the listener and the handlers get it expanded
+            codec();
+            long history = codec.getPosition();
+            dataLength = codec.decode(data, dataOffset, dataLength, decoded, 0, decoded.length, history);
+            if (dataLength < 0) {
+                if (RudpLog.isInfoEnabled()) {
+                    RudpLog.info("Dropped corrupt request from " + address);
+                }
+                return false;
+            }
+            // the client added the request to its history as it sent it, its reply is coded against the same bytes
+            codec.append(decoded, 0, dataLength);
+            replyHistories[replySlotOf(requestSequenceNumber)] = history;
+            message = decoded;
+            dataOffset = 0;
+        }
+        server.deliverMessage(address, message, dataOffset, dataLength);
+        if (handOff(message, dataOffset, dataLength, requestSequenceNumber, false)) {
+            // the session or the workers answer later, acknowledge the packet now
+            return false;
+        }
+
+        // acknowledge the packet and send the data back to the client
+        header.setACK();
+        header.setACKNumber(expectedSequenceNumber);
+        header.setSequenceNumber(sequenceNumber++);
+        int slot = replySlotOf(requestSequenceNumber);
+        System.arraycopy(data, offset, replySlots(), slot * RudpDatagramPacket.PAYLOAD_MAX_SIZE, length);
+        replyLengths[slot] = length;
+        repliedSequenceNumbers[slot] = requestSequenceNumber;
+        sendReply(slot);
+        return true;
+    }
+
+    /**
+     * Hands a complete message to the session of the connection or to the handler pipeline of the server, which
+     * answer it later
+     *
+     * @param data           the array holding the message
+     * @param offset         the index of the message in the array
+     * @param length         the length of the message
+     * @param sequenceNumber the sequence number of its last packet
+     * @param sequenced      whether the message was sent with the SEQ flag and expects no reply
+     * @return true if the message was handed off, false if the connection answers it with the echo
+     */
+    private boolean handOff(byte[] data, int offset, int length, short sequenceNumber, boolean sequenced) {
+        if (session != null) {
+            session.deliver(data, offset, length, sequenceNumber, sequenced);
+            return true;
+        }
+        HandlerPipeline pipeline = server.getHandlerPipeline();
+        // a pipeline stopped by the server shutting down refuses the message, which is then answered like without one
+        return pipeline != null && pipeline.submit(this, data, offset, length, sequenceNumber, sequenced);
+    }
+
+    /**
+     * Delivers a packet of sequenced data if it is the next one of its stream, followed by the packets of the stream
+     * held after a gap which come next
+     *
+     * @param data   the array holding the packet
+     * @param offset the index of the packet in the array
+     * @param length the length of the packet
+     * @param header view of the reliable header of the packet
+     * @return true if the packet was delivered, false if its stream misses an earlier packet
+     */
+    private boolean deliverStream(byte[] data, int offset, int length, RudpHeader header) {
+        if (streams == null) {
+            streams = new Stream[RudpDatagramPacket.MAX_STREAMS];
+        }
+        int id = header.getStream();
+        Stream stream = streams[id];
+        if (stream == null) {
+            stream = streams[id] = new Stream(id);
+        }
+        if (header.getStreamSequenceNumber() != stream.expectedSequenceNumber) {
+            return false;
+        }
+        stream.receive(data, offset + RudpDatagramPacket.STREAM_HEADER_SIZE,
+                length - RudpDatagramPacket.STREAM_HEADER_SIZE, header.isMORE(), header.getSequenceNumber());
+        int slot;
+        while ((slot = nextHeldSlot(stream)) >= 0) {
+            heldDelivered[slot] = true;
+            heldPending--;
+            int heldOffset = slot * RudpDatagramPacket.PAYLOAD_MAX_SIZE;
+            heldHeader.wrap(heldBuffer, heldOffset);
+            stream.receive(held, heldOffset + RudpDatagramPacket.STREAM_HEADER_SIZE,
+                    heldLengths[slot] - RudpDatagramPacket.STREAM_HEADER_SIZE, heldHeader.isMORE(),
+                    heldHeader.getSequenceNumber());
+        }
+        return true;
+    }
+
+    /**
+     * Finds the held packet which comes next in the given stream
+     *
+     * @param stream the stream
+     * @return the slot of the packet, or -1 if it is not held
+     */
+    private int nextHeldSlot(Stream stream) {
+        if (heldPending == 0) {
+            return -1;
+        }
+        for (int slot = 0; slot < RudpDatagramPacket.SACK_BITS; slot++) {
+            if (heldLengths[slot] > 0 && !heldDelivered[slot]) {
+                heldHeader.wrap(heldBuffer, slot * RudpDatagramPacket.PAYLOAD_MAX_SIZE);
+                if (heldHeader.isSEQ() && heldHeader.getStream() == stream.id &&
+                        heldHeader.getStreamSequenceNumber() == stream.expectedSequenceNumber) {
+                    return slot;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the reply slots, allocating them with the first reply
+     *
+     * @return the array holding the replies
+     */
+    private byte[] replySlots() {
+        if (replies == null) {
+            replies = new byte[RudpDatagramPacket.REPLY_SLOTS * RudpDatagramPacket.PAYLOAD_MAX_SIZE];
+            replyLengths = new int[RudpDatagramPacket.REPLY_SLOTS];
+            repliedSequenceNumbers = new short[RudpDatagramPacket.REPLY_SLOTS];
+            replyBuffer = ByteBuffer.wrap(replies);
+            replyHeader = new RudpHeader();
+        }
+        return replies;
+    }
+
+    /**
+     * Checks if the reply to the given request is still kept
+     *
+     * @param requestSequenceNumber the sequence number of the request
+     * @return true if the request was answered and its slot was not reused since
+     */
+    private boolean hasReply(short requestSequenceNumber) {
+        int slot = replySlotOf(requestSequenceNumber);
+        return replies != null && replyLengths[slot] > 0 && repliedSequenceNumbers[slot] == requestSequenceNumber;
+    }
+
+    /**
+     * Sends the reply kept in a slot
+     *
+     * @param slot the slot of the reply
+     */
+    private void sendReply(int slot) throws IOException {
+        replyPacket.setData(replies, slot * RudpDatagramPacket.PAYLOAD_MAX_SIZE, replyLengths[slot]);
+        transport.send(replyPacket);
+        if (RudpLog.isDebugEnabled()) {
+            RudpLog.debug("Sent reply to " + address + " " + replyLengths[slot]);
+        }
+    }
+
+    private static int replySlotOf(short sequenceNumber) {
+        return sequenceNumber & (RudpDatagramPacket.REPLY_SLOTS - 1);
+    }
+
+    /**
+     * Keeps a packet which arrived ahead of a gap until the gap is filled. Packets too far ahead to be reported in
+     * the SACK bitmap are dropped. The slots are allocated with the first packet held.
+     *
+     * @param packet         the packet received
+     * @param sequenceNumber the sequence number of the packet
+     * @return true if the packet is held, false if it was dropped or is already held
+     */
+    private boolean hold(DatagramPacket packet, short sequenceNumber) {
+        int distance = RudpDatagramPacket.sequenceDistance(expectedSequenceNumber, sequenceNumber);
+        if (distance == 0 || distance > RudpDatagramPacket.SACK_BITS) {
+            // an old duplicate, or too far ahead
+            return false;
+        }
+        if (held == null) {
+            held = new byte[RudpDatagramPacket.SACK_BITS * RudpDatagramPacket.PAYLOAD_MAX_SIZE];
+            heldLengths = new int[RudpDatagramPacket.SACK_BITS];
+            heldDelivered = new boolean[RudpDatagramPacket.SACK_BITS];
+            heldBuffer = ByteBuffer.wrap(held);
+            heldHeader = new RudpHeader();
+        }
+        int slot = slotOf(sequenceNumber);
+        if (heldLengths[slot] > 0) {
+            return false;
+        }
+        System.arraycopy(packet.getData(), packet.getOffset(), held, slot * RudpDatagramPacket.PAYLOAD_MAX_SIZE,
+                packet.getLength());
+        heldLengths[slot] = packet.getLength();
+        heldPending++;
+        return true;
+    }
+
+    /**
+     * Returns the bitmap of the packets held after the expected sequence number
+     *
+     * @return the bitmap, bit {@code i} for the packet {@code expectedSequenceNumber + 1 + i}
+     */
+    private int sackBitmap() {
+        int bitmap = 0;
+        if (held != null) {
+            for (int i = 0; i < RudpDatagramPacket.SACK_BITS; i++) {
+                if (heldLengths[slotOf((short) (expectedSequenceNumber + 1 + i))] > 0) {
+                    bitmap |= 1 << i;
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    private static int slotOf(short sequenceNumber) {
+        return sequenceNumber & (RudpDatagramPacket.SACK_BITS - 1);
+    }
+
+    /**
+     * Answers a message of the client with the reply of the session or of a handler, which is sent again if the
+     * client retransmits the message. A reply which does not fit in a packet, encoded if the connection is
+     * compressed, is logged and replaced by an empty one, so the request still completes at the client. Replies to a
+     * closed connection are dropped.
+     *
+     * @param requestSequenceNumber the sequence number of the message, or of its last fragment
+     * @param data                  the reply
+     */
+    public void reply(short requestSequenceNumber, byte[] data) {
+        if (closed) {
+            return;
+        }
+        int slot = replySlotOf(requestSequenceNumber);
+        int offset = slot * RudpDatagramPacket.PAYLOAD_MAX_SIZE;
+        byte[] slots = replySlots();
+        int capacity = RudpDatagramPacket.PAYLOAD_MAX_SIZE - RudpDatagramPacket.RELIABLE_HEADER_SIZE;
+        int length = data.length;
+        if (compression) {
+            length = codec().encode(data, 0, data.length, slots, offset + RudpDatagramPacket.RELIABLE_HEADER_SIZE,
+                    capacity, replyHistories[slot]);
+        } else if (length <= capacity) {
+            System.arraycopy(data, 0, slots, offset + RudpDatagramPacket.RELIABLE_HEADER_SIZE, data.length);
+        } else {
+            length = -1;
+        }
+        if (length < 0) {
+            if (RudpLog.isInfoEnabled()) {
+                RudpLog.info("Reply of " + data.length + " bytes to " + address + " does not fit in a packet, " +
+                        "answered with an empty one");
+            }
+            reply(requestSequenceNumber, EMPTY_REPLY);
+            return;
+        }
+        replyHeader.wrap(replyBuffer, offset);
+        replyHeader.setFlags(RudpDatagramPacket.PSH_MASK | RudpDatagramPacket.ACK_MASK);
+        replyHeader.setSequenceNumber(sequenceNumber++);
+        replyHeader.setACKNumber((short) (requestSequenceNumber + 1));
+        replyLengths[slot] = RudpDatagramPacket.RELIABLE_HEADER_SIZE + length;
+        repliedSequenceNumbers[slot] = requestSequenceNumber;
+        try {
+            sendReply(slot);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the largest reply which fits in a packet
+     *
+     * @return the number of bytes, one less if the reply is encoded
+     */
+    public int getMaxReplySize() {
+        return RudpDatagramPacket.PAYLOAD_MAX_SIZE - RudpDatagramPacket.RELIABLE_HEADER_SIZE -
+                (compression ? PayloadCodec.MARKER_SIZE : 0);
+    }
+
+    public boolean isCompressed() {
+        return compression;
+    }
+
+    /**
+     * Returns the codec, creating it with the first compressed message
+     *
+     * @return the codec
+     */
+    private PayloadCodec codec() {
+        if (codec == null) {
+            codec = new PayloadCodec();
+            decoded = new byte[RudpDatagramPacket.PAYLOAD_MAX_SIZE];
+            replyHistories = new long[RudpDatagramPacket.REPLY_SLOTS];
+        }
+        return codec;
+    }
+
+    /**
+     * Sends a bare cumulative acknowledgement of everything received in order, followed by the SACK bitmap when
+     * packets are held after a gap and by the advertised window
+     */
+    private void sendAck() throws IOException {
+        ackHeader.setSequenceNumber(sequenceNumber);
+        ackHeader.setACKNumber(expectedSequenceNumber);
+        int bitmap = sackBitmap();
+        if (bitmap != 0) {
+            ackHeader.setSACK();
+            ackHeader.setSackBitmap(bitmap);
+        } else {
+            ackHeader.resetSACK();
+        }
+        int window = getReceiveWindow();
+        metrics.setWindow(window);
+        ackHeader.setWindow(window);
+        ackPacket.setLength(ackHeader.getHeaderLength());
+        transport.send(ackPacket);
+    }
+
+    /**
+     * Returns the number of packets the client may send beyond the cumulative acknowledgement. Only the packets
+     * which fit in the slots for packets after a gap are kept, the others would be dropped on a loss.
+     *
+     * @return the window in packets
+     */
+    public int getReceiveWindow() {
+        int window = server.getReceiveWindow();
+        return sackPermitted ? Math.min(window, RudpDatagramPacket.SACK_BITS) : window;
+    }
+
+    /**
+     * Accepts a connection close request from the client
+     *
+     * @param packet the packet received
+     */
+    private void handleDisconnect(DatagramPacket packet) throws IOException {
+        if (state == State.LAST_ACK) {
+            // the client did not get our acknowledgement yet
+            transport.send(retransmission.getPacket());
+            return;
+        }
+        close();
+        // send acknowledgement to client until it acknowledges it back
+        retransmission = new Retransmission(transport, server.createServerCloseAckPacket(packet), rttEstimator, timers,
+                this::timeOut, metrics);
+        retransmission.start();
+        state = State.LAST_ACK;
+    }
+
+    /**
+     * Drops the connection when the client stops answering
+     */
+    private void timeOut() {
+        if (RudpLog.isInfoEnabled()) {
+            RudpLog.info("Connection to " + address + " timed out.");
+        }
+        retransmission = null;
+        server.removeConnection(this);
+    }
+
+    /**
+     * Stops the pending retransmission, if any, and forgets the replies. The first close reports the totals of the
+     * connection to the Flight Recorder.
+     */
+    public void close() {
+        if (retransmission != null) {
+            retransmission.cancel();
+            retransmission = null;
+        }
+        if (!closed) {
+            closed = true;
+            replies = null;
+            replyBuffer = null;
+            ackPending = false;
+            if (session != null) {
+                session.close();
+            }
+            RudpEvents.ConnectionClosed event = new RudpEvents.ConnectionClosed();
+            if (event.shouldCommit()) {
+                event.peer = address.toString();
+                event.packetsIn = metrics.getPacketsIn();
+                event.packetsOut = metrics.getPacketsOut();
+                event.retransmits = metrics.getRetransmits();
+                event.duplicates = metrics.getDuplicates();
+                event.outOfOrder = metrics.getOutOfOrder();
+                event.commit();
+            }
+        }
+        if (codec != null) {
+            codec.close();
+            codec = null;
+        }
+        streams = null;
+        requestFragments = null;
+        recent = null;
+        held = null;
+        heldBuffer = null;
+    }
+
+    /**
+     * Records activity from the client
+     */
+    public void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    public RudpMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setSession(RudpSession session) {
+        this.session = session;
+    }
+
+    /**
+     * The receive state of one stream: the sequence number of its next packet and the message being reassembled from
+     * its fragments. The reassembly buffer grows by doubling and is kept, so a stream which keeps carrying messages
+     * of the same size stops allocating after the first one.
+     */
+    private class Stream {
+        private final int id;                   // id of the stream, -1 for the fragments of requests
+        private short expectedSequenceNumber;   // sequence number of the next packet within the stream
+        private byte[] message;                 // reassembly buffer, kept for the next messages
+        private int messageLength;              // number of bytes reassembled so far
+        private boolean reassembling;           // whether fragments of a message are being received
+        private boolean discarding;             // whether the message being received is too large
+
+        Stream(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Receives the next packet of the stream. A message in one packet is delivered where it is; a fragment is
+         * appended to the message being reassembled, which is delivered after its last fragment.
+         *
+         * @param data           the array holding the data of the packet
+         * @param offset         the index of the data in the array
+         * @param length         the length of the data
+         * @param more           whether more fragments of the message follow
+         * @param sequenceNumber the sequence number of the packet
+         */
+        void receive(byte[] data, int offset, int length, boolean more, short sequenceNumber) {
+            expectedSequenceNumber++;
+            if (!more && !reassembling) {
+                deliverMessage(data, offset, length, sequenceNumber);
+                return;
+            }
+            reassembling = more;
+            int size = messageLength + length;
+            if (size > RudpDatagramPacket.MESSAGE_MAX_SIZE) {
+                // keep acknowledging the fragments, but forget the message
+                discarding = true;
+            }
+            if (!discarding) {
+                if (message == null || size > message.length) {
+                    int capacity = message == null ? RudpDatagramPacket.PAYLOAD_MAX_SIZE : message.length;
+                    while (capacity < size) {
+                        capacity = (int) Math.min(2L * capacity, RudpDatagramPacket.MESSAGE_MAX_SIZE);
+                    }
+                    message = message == null ? new byte[capacity] : Arrays.copyOf(message, capacity);
+                }
+                System.arraycopy(data, offset, message, messageLength, length);
+                messageLength = size;
+            }
+            if (!more) {
+                if (discarding) {
+                    if (RudpLog.isInfoEnabled()) {
+                        RudpLog.info("Dropped a message larger than " + RudpDatagramPacket.MESSAGE_MAX_SIZE +
+                                " bytes from " + address);
+                    }
+                } else {
+                    deliverMessage(message, 0, messageLength, sequenceNumber);
+                }
+                messageLength = 0;
+                discarding = false;
+            }
+        }
+
+        private void deliverMessage(byte[] data, int offset, int length, short sequenceNumber) {
+            server.deliverMessage(address, id, data, offset, length);
+            handOff(data, offset, length, sequenceNumber, id >= 0);
+        }
+    }
+}
@@ -2,21 +2,64 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 
 /**
- * This class defines operations for creating and modifying reliable UDP packets
+ * This class defines operations for creating and modifying reliable UDP packets. The header helpers taking a
+ * {@code byte[]} work in place on any array whose reliable header starts at index 0, which is the case for every
+ * payload built here; {@link RudpHeader} does the same on a buffer at any offset.
  */
 public class RudpDatagramPacket {
     public static final int RELIABLE_HEADER_SIZE = 5;
     public static final int SEQ_NUM_BYTE = 0;
     public static final int ACK_NUM_BYTE = 2;
     public static final int FLAGS_BYTE = 4;
+    public static final int SACK_BYTE = 5;          // start of the SACK bitmap, present when SACK is set
+    public static final int SACK_BITS = 32;         // number of sequence numbers covered by the SACK bitmap
+    public static final int SACK_HEADER_SIZE = RELIABLE_HEADER_SIZE + SACK_BITS / 8;
+    public static final int WND_SIZE = 2;           // size of the advertised window, after the SACK bitmap if any
+    public static final int MAX_ACK_SIZE = SACK_HEADER_SIZE + WND_SIZE;
+    public static final int REPLY_SLOTS = 32;       // replies kept by the server, max number of requests in flight
+    public static final int TOKEN_SIZE = 8;         // session token after the header of a SYN, to resume a session
+    public static final int STREAM_BYTE = 5;        // stream of sequenced data, present when SEQ is set
+    public static final int STREAM_SEQ_NUM_BYTE = 6;    // sequence number of the packet within its stream
+    public static final int STREAM_HEADER_SIZE = STREAM_SEQ_NUM_BYTE + 2;
+    public static final int MAX_STREAMS = 256;      // number of streams of a connection, the id takes one byte
+    public static final int FILE_STREAM = MAX_STREAMS - 1;  // stream carrying file transfers
+    public static final int FILE_OPEN = 0;          // file message naming the file, its length and segment size
+    public static final int FILE_SEGMENT = 1;       // file message carrying a segment after its index
+    public static final int FILE_HEADER_SIZE = 5;   // kind of a file message and index of its segment
+    public static final int PARITY_BLOCK_BYTE = 2;  // in a parity packet, the size of its block, in the ACK number
+    public static final int PARITY_GROUP_BYTE = 3;  // in a parity packet, its group and the number of groups
+    public static final int PARITY_LENGTH_BYTE = 5; // in a parity packet, the XOR of the lengths of its group
+    public static final int PARITY_DATA_BYTE = 7;   // in a parity packet, the XOR of its group from the stream byte on
+    public static final int PARITY_OVERHEAD = PARITY_DATA_BYTE - STREAM_BYTE;   // room a protected packet leaves
+    public static final int MAX_FEC_BLOCK = SACK_BITS / 2;  // max number of data packets protected by one block
+    public static final int MAX_FEC_PARITY = 15;    // max number of parity packets of a block
+    public static final int FEC_BLOCK_BYTE = 2;     // on a SYN, the block size of the parity packets offered
+    public static final int FEC_PARITY_BYTE = 3;    // on a SYN, the number of parity packets of a block offered
+    public static final int FEC_ACCEPT_SIZE = 2;    // block size and parity packets accepted, after the token
     public static final int SYN_MASK = 0x80;
-    public static final int SEQ_MASK = 0x40;
+    public static final int SEQ_MASK = 0x40;        // data of a stream, answered by cumulative acknowledgements only
     public static final int ACK_MASK = 0x20;
     public static final int PSH_MASK = 0x10;
     public static final int FIN_MASK = 0x08;
-    public static int PAYLOAD_MAX_SIZE = 100;       // max number of bytes in a message
-    public static int TIMEOUT = 10000;               // timeout in milliseconds
-    public static int MAX_RETRIES = 3;              // max number of retries
+    public static final int MORE_MASK = 0x04;       // more fragments of the same message follow
+    public static final int SACK_MASK = 0x02;       // on a SYN SACK is permitted, on an ACK a bitmap follows
+    public static final int WND_MASK = 0x01;        // the receiver's advertised window follows
+    public static int PAYLOAD_MAX_SIZE = 100;       // max number of bytes in a datagram, ~1200 fits any path MTU
+    public static int TIMEOUT = 10000;               // max retransmission timeout in milliseconds
+    public static int INITIAL_TIMEOUT = 1000;       // retransmission timeout before the first RTT sample
+    public static int MIN_TIMEOUT = 10;             // min retransmission timeout in milliseconds
+    public static int MAX_RETRIES = 10;             // max number of retries
+    public static int IDLE_TIMEOUT = 30000;         // time in milliseconds after which a silent peer is dropped
+    public static int WINDOW_SIZE = 8;              // max number of unacknowledged packets in flight
+    public static int POOL_SIZE = 256;              // max number of idle packets kept by a packet pool
+    public static int MESSAGE_MAX_SIZE = 16 << 20;  // max number of bytes in a reassembled message
+    public static int RECEIVE_BATCH = 64;           // max number of datagrams handled before replies are flushed
+    public static int TOKEN_CACHE_SIZE = 65536;     // max number of session tokens a server keeps
+    public static int TOKEN_LIFETIME = 600000;      // time in milliseconds after which a session token expires
+    public static int COOKIE_LIFETIME = 64000;      // time slot in milliseconds of a SYN cookie, valid for two
+    public static int HANDLER_THREADS = Runtime.getRuntime().availableProcessors(); // workers of a message handler
+    public static int HANDLER_QUEUE_SIZE = 1024;    // max number of messages queued or being handled by the workers
+    public static int COMPRESSION_MIN_GAIN = 8;     // min number of bytes compression must save on a message
 
 
     /**
@@ -59,7 +102,9 @@ public class RudpDatagramPacket {
      *
      * @param reliableHeader the new reliable header
      * @param data           the data to be modified
+     * @deprecated edit the header in place with {@link RudpHeader} instead
      */
+    @Deprecated
     public static void modifyReliableHeader(byte[] reliableHeader, byte[] data) {
         System.arraycopy(reliableHeader, 0, data, 0, RELIABLE_HEADER_SIZE);
     }
@@ -69,7 +114,9 @@ public class RudpDatagramPacket {
      *
      * @param data the packet payload
      * @return the reliable header
+     * @deprecated read the header in place with {@link RudpHeader} instead
      */
+    @Deprecated
     public static byte[] getReliableHeader(byte[] data) {
         byte[] reliableHeader = new byte[RELIABLE_HEADER_SIZE];
         System.arraycopy(data, 0, reliableHeader, 0, RELIABLE_HEADER_SIZE);
@@ -86,17 +133,17 @@ public class RudpDatagramPacket {
     }
 
     public static boolean verifyConnectionRequest(DatagramPacket requestPacket) {
-        return isSYN(getReliableHeader(requestPacket.getData()));
+        return isSYN(requestPacket.getData());
     }
 
     public static boolean verifyClientAck(DatagramPacket ackPacket) {
-        return isACK(getReliableHeader(ackPacket.getData()));
+        return isACK(ackPacket.getData());
     }
 
     public static boolean verifyServerAck(DatagramPacket requestPacket, DatagramPacket ackPacket) {
-        return isSYN(getReliableHeader(ackPacket.getData())) && isACK(getReliableHeader(ackPacket.getData())) &&
-                (getSequenceNumber(getReliableHeader(requestPacket.getData())) + 1 ==
-                        getACKNumber(getReliableHeader(ackPacket.getData())));
+        byte[] ackHeader = ackPacket.getData();
+        return isSYN(ackHeader) && isACK(ackHeader) &&
+                (short) (getSequenceNumber(requestPacket.getData()) + 1) == getACKNumber(ackHeader);
     }
 
     /**
@@ -108,19 +155,162 @@ public class RudpDatagramPacket {
      * @return the payload with the reliable header
      */
     public static DatagramPacket createDataPacket(byte[] data, InetAddress destinationAddress, int destinationPort) {
-        // create reliable header
-        byte[] reliableHeader = createEmptyHeader();
+        // leave room for the reliable header in front of the data
+        byte[] payload = new byte[RELIABLE_HEADER_SIZE + data.length];
+        System.arraycopy(data, 0, payload, RELIABLE_HEADER_SIZE, data.length);
         // set PSH flag
-        setPSH(reliableHeader);
-        // assemble payload
-        byte[] payload = assemblePayload(reliableHeader, data);
+        setPSH(payload);
         // create packet
         return new DatagramPacket(payload, payload.length, destinationAddress, destinationPort);
     }
 
+    /**
+     * Creates the payload with given data and sequence number by adding the reliable header
+     *
+     * @param data               the UDP payload
+     * @param sequenceNumber     the sequence number of the packet
+     * @param destinationAddress the destination address
+     * @param destinationPort    the destination port
+     * @return the payload with the reliable header
+     */
+    public static DatagramPacket createDataPacket(byte[] data, short sequenceNumber, InetAddress destinationAddress,
+                                                  int destinationPort) {
+        DatagramPacket packet = createDataPacket(data, destinationAddress, destinationPort);
+        // the reliable header sits at the start of the payload
+        setSequenceNumber(packet.getData(), sequenceNumber);
+        return packet;
+    }
+
+    /**
+     * Writes a data packet with the given sequence number into an existing packet, reusing its array
+     *
+     * @param packet         the packet, whose array must hold the reliable header and the data
+     * @param data           the UDP payload
+     * @param sequenceNumber the sequence number of the packet
+     * @return the packet
+     */
+    public static DatagramPacket writeDataPacket(DatagramPacket packet, byte[] data, short sequenceNumber) {
+        return writeDataPacket(packet, data, 0, data.length, sequenceNumber);
+    }
+
+    /**
+     * Writes a data packet carrying a slice of the given data into an existing packet, reusing its array
+     *
+     * @param packet         the packet, whose array must hold the reliable header and the slice
+     * @param data           the data holding the UDP payload
+     * @param offset         the index of the slice in the data
+     * @param length         the length of the slice
+     * @param sequenceNumber the sequence number of the packet
+     * @return the packet
+     */
+    public static DatagramPacket writeDataPacket(DatagramPacket packet, byte[] data, int offset, int length,
+                                                 short sequenceNumber) {
+        byte[] payload = packet.getData();
+        if (RELIABLE_HEADER_SIZE + length > payload.length) {
+            throw new IllegalArgumentException("Data of " + length + " bytes does not fit in the packet");
+        }
+        System.arraycopy(data, offset, payload, RELIABLE_HEADER_SIZE, length);
+        setSequenceNumber(payload, sequenceNumber);
+        setACKNumber(payload, (short) 0);
+        payload[FLAGS_BYTE] = 0;
+        setPSH(payload);
+        packet.setData(payload, 0, RELIABLE_HEADER_SIZE + length);
+        return packet;
+    }
+
+    /**
+     * Writes a packet of sequenced data carrying a slice of the given data into an existing packet, reusing its
+     * array. The stream id and the sequence number of the packet within its stream follow the reliable header.
+     *
+     * @param packet               the packet, whose array must hold the stream header and the slice
+     * @param data                 the data holding the UDP payload
+     * @param offset               the index of the slice in the data
+     * @param length               the length of the slice
+     * @param sequenceNumber       the sequence number of the packet
+     * @param stream               the id of the stream
+     * @param streamSequenceNumber the sequence number of the packet within its stream
+     * @return the packet
+     */
+    public static DatagramPacket writeStreamPacket(DatagramPacket packet, byte[] data, int offset, int length,
+                                                   short sequenceNumber, int stream, short streamSequenceNumber) {
+        writeStreamHeader(packet, length, sequenceNumber, stream, streamSequenceNumber);
+        System.arraycopy(data, offset, packet.getData(), STREAM_HEADER_SIZE, length);
+        return packet;
+    }
+
+    /**
+     * Writes the headers of a packet of sequenced data into an existing packet, whose data the caller writes after
+     * the stream header
+     *
+     * @param packet               the packet, whose array must hold the stream header and the data
+     * @param length               the length of the data
+     * @param sequenceNumber       the sequence number of the packet
+     * @param stream               the id of the stream
+     * @param streamSequenceNumber the sequence number of the packet within its stream
+     * @return the packet
+     */
+    public static DatagramPacket writeStreamHeader(DatagramPacket packet, int length, short sequenceNumber, int stream,
+                                                   short streamSequenceNumber) {
+        byte[] payload = packet.getData();
+        if (STREAM_HEADER_SIZE + length > payload.length) {
+            throw new IllegalArgumentException("Data of " + length + " bytes does not fit in the packet");
+        }
+        setSequenceNumber(payload, sequenceNumber);
+        setACKNumber(payload, (short) 0);
+        payload[FLAGS_BYTE] = 0;
+        setPSH(payload);
+        setSEQ(payload);
+        payload[STREAM_BYTE] = (byte) stream;
+        payload[STREAM_SEQ_NUM_BYTE] = (byte) streamSequenceNumber;
+        payload[STREAM_SEQ_NUM_BYTE + 1] = (byte) (streamSequenceNumber >> 8);
+        packet.setData(payload, 0, STREAM_HEADER_SIZE + length);
+        return packet;
+    }
+
+    /**
+     * Creates a packet carrying only a cumulative acknowledgement (no data)
+     *
+     * @param sequenceNumber     the sequence number of the sender
+     * @param ackNumber          the next sequence number expected from the peer
+     * @param destinationAddress the destination address
+     * @param destinationPort    the destination port
+     * @return the UDP packet
+     */
+    public static DatagramPacket createAckPacket(short sequenceNumber, short ackNumber, InetAddress destinationAddress,
+                                                 int destinationPort) {
+        byte[] reliableHeader = createEmptyHeader();
+        setACK(reliableHeader);
+        setSequenceNumber(reliableHeader, sequenceNumber);
+        setACKNumber(reliableHeader, ackNumber);
+        return new DatagramPacket(reliableHeader, reliableHeader.length, destinationAddress, destinationPort);
+    }
+
+    /**
+     * Returns how many sequence numbers {@code to} is ahead of {@code from}, taking the 16-bit wrap-around into
+     * account
+     *
+     * @param from the older sequence number
+     * @param to   the newer sequence number
+     * @return the distance, between 0 and 65535
+     */
+    public static int sequenceDistance(short from, short to) {
+        return (to - from) & 0xFFFF;
+    }
+
+    /**
+     * Checks a block size and a number of parity packets of forward error correction
+     *
+     * @param block  the number of data packets of a block
+     * @param parity the number of parity packets of a block
+     * @return true if both ends can protect blocks of this size with this many parity packets
+     */
+    public static boolean isValidFec(int block, int parity) {
+        return block > 0 && block <= MAX_FEC_BLOCK && parity > 0 && parity <= block && parity <= MAX_FEC_PARITY;
+    }
+
     public static DatagramPacket copyPacket(DatagramPacket packet) {
         byte[] data = new byte[packet.getLength()];
-        System.arraycopy(packet.getData(), 0, data, 0, packet.getLength());
+        System.arraycopy(packet.getData(), packet.getOffset(), data, 0, packet.getLength());
         return new DatagramPacket(data, data.length, packet.getAddress(), packet.getPort());
     }
 
@@ -132,21 +322,12 @@ public class RudpDatagramPacket {
      * @return the UDP packet
      */
     public static DatagramPacket createDisconnectRequestPacket(InetAddress destinationAddress, int destinationPort) {
-        // create empty packet
-        DatagramPacket newPacket = createEmptyPacket();
-        // create the reliable header for connection request
-        byte[] reliableHeader = RudpDatagramPacket.createEmptyHeader();
+        // the payload is only the reliable header, data is empty
+        byte[] payload = createEmptyHeader();
         // set the FIN flag
-        RudpDatagramPacket.setFIN(reliableHeader);
-        // data is empty
-        byte[] data = new byte[0];
-        // assemble the payload
-        newPacket.setData(RudpDatagramPacket.assemblePayload(reliableHeader, data));
-        // set the destination address and port
-        newPacket.setAddress(destinationAddress);
-        newPacket.setPort(destinationPort);
+        setFIN(payload);
         // return the rudp datagram packet
-        return newPacket;
+        return new DatagramPacket(payload, payload.length, destinationAddress, destinationPort);
     }
 
     /**
@@ -156,9 +337,7 @@ public class RudpDatagramPacket {
      * @return true if the packet is a disconnect request, false otherwise
      */
     public static boolean isDisconnectRequest(DatagramPacket packet) {
-        byte[] data = packet.getData();
-        byte[] reliableHeader = RudpDatagramPacket.getReliableHeader(data);
-        return RudpDatagramPacket.isFIN(reliableHeader);
+        return isFIN(packet.getData());
     }
 
     /**
@@ -179,7 +358,7 @@ public class RudpDatagramPacket {
      * @return the sequence number (in host byte order)
      */
     public static short getSequenceNumber(byte[] reliableHeader) {
-        return (short) ((reliableHeader[SEQ_NUM_BYTE + 1] << 8) | reliableHeader[SEQ_NUM_BYTE]);
+        return (short) ((reliableHeader[SEQ_NUM_BYTE + 1] << 8) | (reliableHeader[SEQ_NUM_BYTE] & 0xFF));
     }
 
     /**
@@ -200,7 +379,7 @@ public class RudpDatagramPacket {
      * @return the ACK number (in host byte order)
      */
     public static short getACKNumber(byte[] reliableHeader) {
-        return (short) ((reliableHeader[ACK_NUM_BYTE + 1] << 8) | reliableHeader[ACK_NUM_BYTE]);
+        return (short) ((reliableHeader[ACK_NUM_BYTE + 1] << 8) | (reliableHeader[ACK_NUM_BYTE] & 0xFF));
     }
 
     public static void setSYN(byte[] reliableHeader) {
@@ -243,6 +422,30 @@ public class RudpDatagramPacket {
         reliableHeader[FLAGS_BYTE] &= ~FIN_MASK;
     }
 
+    public static void setSACK(byte[] reliableHeader) {
+        reliableHeader[FLAGS_BYTE] |= SACK_MASK;
+    }
+
+    public static void resetSACK(byte[] reliableHeader) {
+        reliableHeader[FLAGS_BYTE] &= ~SACK_MASK;
+    }
+
+    public static void setWND(byte[] reliableHeader) {
+        reliableHeader[FLAGS_BYTE] |= WND_MASK;
+    }
+
+    public static void resetWND(byte[] reliableHeader) {
+        reliableHeader[FLAGS_BYTE] &= ~WND_MASK;
+    }
+
+    public static void setMORE(byte[] reliableHeader) {
+        reliableHeader[FLAGS_BYTE] |= MORE_MASK;
+    }
+
+    public static void resetMORE(byte[] reliableHeader) {
+        reliableHeader[FLAGS_BYTE] &= ~MORE_MASK;
+    }
+
     public static boolean isSYN(byte[] reliableHeader) {
         return (reliableHeader[FLAGS_BYTE] & SYN_MASK) != 0;
     }
@@ -262,4 +465,16 @@ public class RudpDatagramPacket {
     public static boolean isFIN(byte[] reliableHeader) {
         return (reliableHeader[FLAGS_BYTE] & FIN_MASK) != 0;
     }
+
+    public static boolean isSACK(byte[] reliableHeader) {
+        return (reliableHeader[FLAGS_BYTE] & SACK_MASK) != 0;
+    }
+
+    public static boolean isWND(byte[] reliableHeader) {
+        return (reliableHeader[FLAGS_BYTE] & WND_MASK) != 0;
+    }
+
+    public static boolean isMORE(byte[] reliableHeader) {
+        return (reliableHeader[FLAGS_BYTE] & MORE_MASK) != 0;
+    }
 }
@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single threaded event loop which waits on a {@link Selector} for readable channels and runs the retransmission
+ * timers of every endpoint registered on it. All the protocol state of those endpoints is only touched from the loop
+ * thread; other threads hand work over with {@link #execute(Runnable)}.
+ */
+public class RudpEventLoop implements Runnable {
+    /**
+     * Called on the loop thread when a registered channel has datagrams to read
+     */
+    public interface Handler {
+        void onReadable() throws IOException;
+    }
+
+    private final Selector selector;
+    private final TimerWheel timers;
+    private final PacketPool packetPool;    // packets shared by the endpoints of the loop
+    private final Queue<Runnable> tasks;    // work handed over by other threads
+    private volatile boolean running;
+    private volatile Thread thread;         // the loop thread, once running
+
+    public RudpEventLoop() throws IOException {
+        selector = Selector.open();
+        timers = new TimerWheel();
+        packetPool = new PacketPool();
+        tasks = new ConcurrentLinkedQueue<>();
+        running = true;
+    }
+
+    /**
+     * Registers a non-blocking channel, the handler is called whenever it becomes readable
+     *
+     * @param channel the channel
+     * @param handler the handler
+     */
+    public void register(DatagramChannel channel, Handler handler) {
+        execute(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, handler);
+            } catch (ClosedChannelException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the loop thread
+     *
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Returns the timers of the loop, which may only be used from the loop thread
+     *
+     * @return the timer wheel
+     */
+    public TimerWheel getTimers() {
+        return timers;
+    }
+
+    /**
+     * Returns the packet pool of the loop, which may only be used from the loop thread
+     *
+     * @return the packet pool
+     */
+    public PacketPool getPacketPool() {
+        return packetPool;
+    }
+
+    /**
+     * Stops the loop, closing every channel registered on it
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (running) {
+                // sleep until a channel is readable or the next timer is due, 0 waits forever
+                if (tasks.isEmpty()) {
+                    selector.select(timers.timeUntilNextTimer());
+                } else {
+                    selector.selectNow();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            ((Handler) key.attachment()).onReadable();
+                        }
+                    } catch (IOException e) {
+                        if (running) {
+                            e.printStackTrace();
+                        }
+                    } catch (RuntimeException e) {
+                        // a failing endpoint must not stop the others on the loop
+                        e.printStackTrace();
+                    }
+                }
+                selector.selectedKeys().clear();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                try {
+                    timers.advance();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
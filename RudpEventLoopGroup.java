@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of event loops, each on its own daemon thread. Endpoints are spread over the loops round robin so the
+ * work of many connections is shared by several cores.
+ */
+public class RudpEventLoopGroup {
+    private static RudpEventLoopGroup defaultGroup;     // shared by the endpoints created without a group
+
+    private final RudpEventLoop[] eventLoops;
+    private final AtomicInteger next;                   // index of the loop handed out next
+
+    public RudpEventLoopGroup(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        eventLoops = new RudpEventLoop[threads];
+        next = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            eventLoops[i] = new RudpEventLoop();
+            Thread thread = new Thread(eventLoops[i], "rudp-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Returns the group shared by every endpoint which does not bring its own, creating it on first use with
+     * {@link Constants#EVENT_LOOP_THREADS} threads
+     *
+     * @return the default group
+     */
+    public static synchronized RudpEventLoopGroup getDefault() throws IOException {
+        if (defaultGroup == null) {
+            defaultGroup = new RudpEventLoopGroup(Constants.EVENT_LOOP_THREADS);
+        }
+        return defaultGroup;
+    }
+
+    /**
+     * Returns the next event loop of the group
+     *
+     * @return the event loop
+     */
+    public RudpEventLoop next() {
+        return eventLoops[Math.floorMod(next.getAndIncrement(), eventLoops.length)];
+    }
+
+    public int size() {
+        return eventLoops.length;
+    }
+
+    /**
+     * Stops every loop of the group
+     */
+    public void shutdown() {
+        for (RudpEventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+}
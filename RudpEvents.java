@@ -0,0 +1,87 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.net.DatagramPacket;
+
+/**
+ * The Flight Recorder events of the protocol. They cost nothing unless a recording enables them, e.g. with
+ * {@code -XX:StartFlightRecording}.
+ */
+public final class RudpEvents {
+    private RudpEvents() {
+    }
+
+    @Name("rudp.Handshake")
+    @Label("RUDP Handshake")
+    @Category("RUDP")
+    @Description("A 3-way handshake, from the connection request until the connection is established")
+    public static class Handshake extends Event {
+        @Label("Peer")
+        public String peer;
+
+        @Label("Side")
+        @Description("client or server")
+        public String side;
+    }
+
+    @Name("rudp.Retransmit")
+    @Label("RUDP Retransmit")
+    @Category("RUDP")
+    @Description("Packets sent again after a timeout or a loss reported by the peer")
+    public static class Retransmit extends Event {
+        @Label("Peer")
+        public String peer;
+
+        @Label("Packets")
+        public int packets;
+
+        @Label("Timeout")
+        @Timespan(Timespan.MILLISECONDS)
+        public long timeout;
+    }
+
+    @Name("rudp.ConnectionClosed")
+    @Label("RUDP Connection Closed")
+    @Category("RUDP")
+    @Description("Totals of a connection when the server forgets it")
+    public static class ConnectionClosed extends Event {
+        @Label("Peer")
+        public String peer;
+
+        @Label("Packets In")
+        public long packetsIn;
+
+        @Label("Packets Out")
+        public long packetsOut;
+
+        @Label("Retransmits")
+        public long retransmits;
+
+        @Label("Duplicates")
+        public long duplicates;
+
+        @Label("Out Of Order")
+        public long outOfOrder;
+    }
+
+    /**
+     * Emits a retransmit event if a recording enables it
+     *
+     * @param packet  a packet sent again, which holds the address of the peer
+     * @param packets the number of packets sent again
+     * @param timeout the current retransmission timeout in milliseconds
+     */
+    public static void retransmit(DatagramPacket packet, int packets, long timeout) {
+        Retransmit event = new Retransmit();
+        if (event.shouldCommit()) {
+            event.peer = String.valueOf(packet.getSocketAddress());
+            event.packets = packets;
+            event.timeout = timeout;
+            event.commit();
+        }
+    }
+}
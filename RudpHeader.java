@@ -0,0 +1,300 @@
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight view of the reliable header at the start of a packet. It reads and writes the sequence number, the ACK
+ * number, the flags, the optional SACK bitmap, the optional advertised window and the stream of sequenced data in
+ * place on the underlying buffer, which may be a heap or a direct buffer, so one instance can be pointed at packet
+ * after packet without copying or allocating. The layout is the one of {@link RudpDatagramPacket}.
+ */
+public class RudpHeader {
+    private ByteBuffer buffer;      // buffer holding the packet
+    private int offset;             // index of the header in the buffer
+    private byte[] array;           // backing array of the last wrapped DatagramPacket
+
+    /**
+     * Points the view at the header starting at the current position of the buffer
+     *
+     * @param buffer the buffer
+     * @return this view
+     */
+    public RudpHeader wrap(ByteBuffer buffer) {
+        return wrap(buffer, buffer.position());
+    }
+
+    /**
+     * Points the view at the header starting at the given index of the buffer
+     *
+     * @param buffer the buffer
+     * @param offset the index of the header
+     * @return this view
+     */
+    public RudpHeader wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        array = null;
+        return this;
+    }
+
+    /**
+     * Points the view at the header of the packet. The buffer over the packet's array is kept, so wrapping packets
+     * which share a receive buffer does not allocate.
+     *
+     * @param packet the packet
+     * @return this view
+     */
+    public RudpHeader wrap(DatagramPacket packet) {
+        if (packet.getData() != array) {
+            array = packet.getData();
+            buffer = ByteBuffer.wrap(array);
+        }
+        offset = packet.getOffset();
+        return this;
+    }
+
+    /**
+     * Resets the sequence number, the ACK number and every flag
+     *
+     * @return this view
+     */
+    public RudpHeader clear() {
+        for (int i = 0; i < RudpDatagramPacket.RELIABLE_HEADER_SIZE; i++) {
+            buffer.put(offset + i, (byte) 0);
+        }
+        return this;
+    }
+
+    public short getSequenceNumber() {
+        return getShort(RudpDatagramPacket.SEQ_NUM_BYTE);
+    }
+
+    public void setSequenceNumber(short sequenceNumber) {
+        putShort(RudpDatagramPacket.SEQ_NUM_BYTE, sequenceNumber);
+    }
+
+    public short getACKNumber() {
+        return getShort(RudpDatagramPacket.ACK_NUM_BYTE);
+    }
+
+    public void setACKNumber(short ackNumber) {
+        putShort(RudpDatagramPacket.ACK_NUM_BYTE, ackNumber);
+    }
+
+    /**
+     * Returns the SACK bitmap which follows the header of an acknowledgement with the SACK flag. Bit {@code i} is
+     * set when the packet {@code ACK number + 1 + i} was received.
+     *
+     * @return the bitmap
+     */
+    public int getSackBitmap() {
+        return (getShort(RudpDatagramPacket.SACK_BYTE + 2) << 16) | (getShort(RudpDatagramPacket.SACK_BYTE) & 0xFFFF);
+    }
+
+    public void setSackBitmap(int bitmap) {
+        putShort(RudpDatagramPacket.SACK_BYTE, (short) bitmap);
+        putShort(RudpDatagramPacket.SACK_BYTE + 2, (short) (bitmap >>> 16));
+    }
+
+    /**
+     * Returns the id of the stream of a packet of sequenced data
+     *
+     * @return the stream id, from 0 to {@link RudpDatagramPacket#MAX_STREAMS} - 1
+     */
+    public int getStream() {
+        return buffer.get(offset + RudpDatagramPacket.STREAM_BYTE) & 0xFF;
+    }
+
+    public void setStream(int stream) {
+        buffer.put(offset + RudpDatagramPacket.STREAM_BYTE, (byte) stream);
+    }
+
+    /**
+     * Returns the sequence number of a packet of sequenced data within its stream. Every stream counts its packets
+     * from 0, so the receiver orders each stream on its own.
+     *
+     * @return the sequence number within the stream
+     */
+    public short getStreamSequenceNumber() {
+        return getShort(RudpDatagramPacket.STREAM_SEQ_NUM_BYTE);
+    }
+
+    public void setStreamSequenceNumber(short streamSequenceNumber) {
+        putShort(RudpDatagramPacket.STREAM_SEQ_NUM_BYTE, streamSequenceNumber);
+    }
+
+    /**
+     * Returns the block size of the parity packets a connection request offers in its ACK number, which a connection
+     * request does not use otherwise
+     *
+     * @return the number of data packets of a block, 0 if no parity packets are offered
+     */
+    public int getFecBlock() {
+        return buffer.get(offset + RudpDatagramPacket.FEC_BLOCK_BYTE) & 0xFF;
+    }
+
+    public int getFecParity() {
+        return buffer.get(offset + RudpDatagramPacket.FEC_PARITY_BYTE) & 0xFF;
+    }
+
+    /**
+     * Offers parity packets in the ACK number of a connection request
+     *
+     * @param block  the number of data packets of a block
+     * @param parity the number of parity packets of a block
+     */
+    public void setForwardErrorCorrection(int block, int parity) {
+        buffer.put(offset + RudpDatagramPacket.FEC_BLOCK_BYTE, (byte) block);
+        buffer.put(offset + RudpDatagramPacket.FEC_PARITY_BYTE, (byte) parity);
+    }
+
+    /**
+     * Returns the receiver's advertised window which follows the header, and the SACK bitmap if there is one, when
+     * the WND flag is set
+     *
+     * @return the number of packets the receiver accepts beyond the ACK number
+     */
+    public int getWindow() {
+        return getShort(windowIndex()) & 0xFFFF;
+    }
+
+    /**
+     * Sets the advertised window. The SACK flag must already be set or reset, since the bitmap comes first.
+     *
+     * @param window the number of packets the receiver accepts beyond the ACK number
+     */
+    public void setWindow(int window) {
+        putShort(windowIndex(), (short) Math.min(window, 0xFFFF));
+    }
+
+    /**
+     * Returns the length of the header with the extensions announced by its flags
+     *
+     * @return the length in bytes
+     */
+    public int getHeaderLength() {
+        if (isSEQ()) {
+            // sequenced data carries its stream, and no acknowledgement
+            return RudpDatagramPacket.STREAM_HEADER_SIZE;
+        }
+        return windowIndex() + (isWND() ? RudpDatagramPacket.WND_SIZE : 0);
+    }
+
+    // the SACK bitmap only follows an acknowledgement, on a connection request the flag just permits SACK
+    private int windowIndex() {
+        return isSACK() && !isSYN() ? RudpDatagramPacket.SACK_HEADER_SIZE : RudpDatagramPacket.RELIABLE_HEADER_SIZE;
+    }
+
+    public int getFlags() {
+        return buffer.get(offset + RudpDatagramPacket.FLAGS_BYTE) & 0xFF;
+    }
+
+    public void setFlags(int flags) {
+        buffer.put(offset + RudpDatagramPacket.FLAGS_BYTE, (byte) flags);
+    }
+
+    public boolean isSYN() {
+        return (getFlags() & RudpDatagramPacket.SYN_MASK) != 0;
+    }
+
+    public boolean isSEQ() {
+        return (getFlags() & RudpDatagramPacket.SEQ_MASK) != 0;
+    }
+
+    public boolean isACK() {
+        return (getFlags() & RudpDatagramPacket.ACK_MASK) != 0;
+    }
+
+    public boolean isPSH() {
+        return (getFlags() & RudpDatagramPacket.PSH_MASK) != 0;
+    }
+
+    public boolean isFIN() {
+        return (getFlags() & RudpDatagramPacket.FIN_MASK) != 0;
+    }
+
+    public boolean isSACK() {
+        return (getFlags() & RudpDatagramPacket.SACK_MASK) != 0;
+    }
+
+    public boolean isWND() {
+        return (getFlags() & RudpDatagramPacket.WND_MASK) != 0;
+    }
+
+    public boolean isMORE() {
+        return (getFlags() & RudpDatagramPacket.MORE_MASK) != 0;
+    }
+
+    public void setSYN() {
+        setFlags(getFlags() | RudpDatagramPacket.SYN_MASK);
+    }
+
+    public void setSEQ() {
+        setFlags(getFlags() | RudpDatagramPacket.SEQ_MASK);
+    }
+
+    public void setACK() {
+        setFlags(getFlags() | RudpDatagramPacket.ACK_MASK);
+    }
+
+    public void setPSH() {
+        setFlags(getFlags() | RudpDatagramPacket.PSH_MASK);
+    }
+
+    public void setFIN() {
+        setFlags(getFlags() | RudpDatagramPacket.FIN_MASK);
+    }
+
+    public void setSACK() {
+        setFlags(getFlags() | RudpDatagramPacket.SACK_MASK);
+    }
+
+    public void setWND() {
+        setFlags(getFlags() | RudpDatagramPacket.WND_MASK);
+    }
+
+    public void setMORE() {
+        setFlags(getFlags() | RudpDatagramPacket.MORE_MASK);
+    }
+
+    public void resetSYN() {
+        setFlags(getFlags() & ~RudpDatagramPacket.SYN_MASK);
+    }
+
+    public void resetSEQ() {
+        setFlags(getFlags() & ~RudpDatagramPacket.SEQ_MASK);
+    }
+
+    public void resetACK() {
+        setFlags(getFlags() & ~RudpDatagramPacket.ACK_MASK);
+    }
+
+    public void resetPSH() {
+        setFlags(getFlags() & ~RudpDatagramPacket.PSH_MASK);
+    }
+
+    public void resetFIN() {
+        setFlags(getFlags() & ~RudpDatagramPacket.FIN_MASK);
+    }
+
+    public void resetSACK() {
+        setFlags(getFlags() & ~RudpDatagramPacket.SACK_MASK);
+    }
+
+    public void resetWND() {
+        setFlags(getFlags() & ~RudpDatagramPacket.WND_MASK);
+    }
+
+    public void resetMORE() {
+        setFlags(getFlags() & ~RudpDatagramPacket.MORE_MASK);
+    }
+
+    // the numbers are stored low byte first, like RudpDatagramPacket does
+    private short getShort(int index) {
+        return (short) ((buffer.get(offset + index + 1) << 8) | (buffer.get(offset + index) & 0xFF));
+    }
+
+    private void putShort(int index, short value) {
+        buffer.put(offset + index, (byte) value);
+        buffer.put(offset + index + 1, (byte) (value >> 8));
+    }
+}
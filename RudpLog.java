@@ -0,0 +1,35 @@
+/**
+ * The console logging of the endpoints. Connection events are logged at {@link #INFO}; every packet sent or
+ * received is logged at {@link #DEBUG} only, because a synchronized print per packet costs more than the protocol.
+ * Callers check {@link #isDebugEnabled()} first, so no message is built when it would not be printed.
+ */
+public final class RudpLog {
+    public static final int OFF = 0;                // nothing is printed
+    public static final int INFO = 1;               // connections opened, closed and dropped
+    public static final int DEBUG = 2;              // every packet
+
+    public static volatile int LEVEL = INFO;        // current level
+
+    private RudpLog() {
+    }
+
+    public static boolean isInfoEnabled() {
+        return LEVEL >= INFO;
+    }
+
+    public static boolean isDebugEnabled() {
+        return LEVEL >= DEBUG;
+    }
+
+    public static void info(String message) {
+        if (isInfoEnabled()) {
+            System.out.println(message);
+        }
+    }
+
+    public static void debug(String message) {
+        if (isDebugEnabled()) {
+            System.out.println(message);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of an endpoint or of one connection. Every update is also applied to the parent,
+ * so a server sums its connections and {@link #GLOBAL} sums every endpoint in the process. Counters may be updated
+ * from several event loops and read from any thread; the histograms are guarded by their metrics object, which is
+ * only contended when a snapshot is taken while samples are recorded.
+ */
+public class RudpMetrics {
+    public static final RudpMetrics GLOBAL = new RudpMetrics(null);
+
+    private final RudpMetrics parent;
+    private final LongAdder packetsIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder packetsOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();          // packets sent again
+    private final LongAdder retransmittedBytes = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();           // packets received more than once
+    private final LongAdder outOfOrder = new LongAdder();           // packets received ahead of a gap
+    private final LongAdder recovered = new LongAdder();            // lost packets rebuilt from parity packets
+    private final LongAdder overloads = new LongAdder();            // packets dropped while the handlers fell behind
+    private final LongAdder handshakes = new LongAdder();           // completed handshakes
+    private final LongAdder resumptions = new LongAdder();          // handshakes which redeemed a session token
+    private final LatencyHistogram rtt = new LatencyHistogram();            // round trip samples
+    private final LatencyHistogram handshakeTime = new LatencyHistogram();  // connection request to established
+    private volatile long timeout;      // current retransmission timeout in milliseconds, of a connection only
+    private volatile int window;        // current window in packets, of a connection only
+
+    public RudpMetrics() {
+        this(GLOBAL);
+    }
+
+    public RudpMetrics(RudpMetrics parent) {
+        this.parent = parent;
+    }
+
+    public void onPacketIn(int bytes) {
+        for (RudpMetrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.packetsIn.increment();
+            metrics.bytesIn.add(bytes);
+        }
+    }
+
+    public void onPacketOut(int bytes) {
+        for (RudpMetrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.packetsOut.increment();
+            metrics.bytesOut.add(bytes);
+        }
+    }
+
+    public void onRetransmit(int packets, long bytes) {
+        for (RudpMetrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.retransmits.add(packets);
+            metrics.retransmittedBytes.add(bytes);
+        }
+    }
+
+    public void onDuplicate() {
+        for (RudpMetrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.duplicates.increment();
+        }
+    }
+
+    public void onOutOfOrder() {
+        for (RudpMetrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.outOfOrder.increment();
+        }
+    }
+
+    /**
+     * Records a round trip time sample and the timeout derived from it
+     *
+     * @param rttMillis     the round trip time in milliseconds
+     * @param timeoutMillis the new retransmission timeout in milliseconds
+     */
+    public void onRttSample(double rttMillis, long timeoutMillis) {
+        timeout = timeoutMillis;
+        long nanos = (long) (rttMillis * 1e6);
+        for (RudpMetrics metrics = this; metrics != null; metrics = metrics.parent) {
+            synchronized (metrics) {
+                metrics.rtt.record(nanos);
+            }
+        }
+    }
+
+    /**
+     * Records a completed handshake
+     *
+     * @param nanos the time from the connection request until the connection was established
+     */
+    public void onHandshake(long nanos) {
+        for (RudpMetrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.handshakes.increment();
+            synchronized (metrics) {
+                metrics.handshakeTime.record(nanos);
+            }
+        }
+    }
+
+    /**
+     * Records a lost packet rebuilt from a parity packet, without waiting for it to be sent again
+     */
+    public void onRecovery() {
+        for (RudpMetrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.recovered.increment();
+        }
+    }
+
+    /**
+     * Records a data packet dropped because the queue of the message handler is full
+     */
+    public void onOverload() {
+        for (RudpMetrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.overloads.increment();
+        }
+    }
+
+    /**
+     * Records a connection resumed with a session token, which also counts as a handshake
+     */
+    public void onResumption() {
+        for (RudpMetrics metrics = this; metrics != null; metrics = metrics.parent) {
+            metrics.resumptions.increment();
+        }
+    }
+
+    public void setTimeout(long timeoutMillis) {
+        timeout = timeoutMillis;
+    }
+
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    public long getPacketsIn() {
+        return packetsIn.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getPacketsOut() {
+        return packetsOut.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    public long getRetransmittedBytes() {
+        return retransmittedBytes.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    public long getOutOfOrder() {
+        return outOfOrder.sum();
+    }
+
+    public long getRecovered() {
+        return recovered.sum();
+    }
+
+    public long getOverloads() {
+        return overloads.sum();
+    }
+
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    public long getResumptions() {
+        return resumptions.sum();
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Returns a percentile of the round trip time samples
+     *
+     * @param percentile the share, between 0 and 100
+     * @return the round trip time in nanoseconds, 0 if nothing was sampled
+     */
+    public synchronized long getRttPercentile(double percentile) {
+        return rtt.getPercentile(percentile);
+    }
+
+    /**
+     * Returns a percentile of the handshake times
+     *
+     * @param percentile the share, between 0 and 100
+     * @return the handshake time in nanoseconds, 0 if no handshake completed
+     */
+    public synchronized long getHandshakePercentile(double percentile) {
+        return handshakeTime.getPercentile(percentile);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("packets in %d (%d B), out %d (%d B), retransmits %d (%d B), duplicates %d, " +
+                        "out of order %d, recovered %d, overloads %d, handshakes %d (%d resumed), " +
+                        "rtt p50 %.3f ms p99 %.3f ms, rto %d ms, window %d",
+                getPacketsIn(), getBytesIn(), getPacketsOut(), getBytesOut(), getRetransmits(),
+                getRetransmittedBytes(), getDuplicates(), getOutOfOrder(), getRecovered(), getOverloads(),
+                getHandshakes(), getResumptions(),
+                getRttPercentile(50) / 1e6, getRttPercentile(99) / 1e6, timeout, window);
+    }
+}
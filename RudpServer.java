@@ -1,43 +1,390 @@
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * This is a Reliable UDP server which echoes the messages it receives back to the client.
+ * This is a Reliable UDP server which echoes the messages it receives back to its clients. Packets from every client
+ * arrive on one non-blocking channel and are dispatched to the client's connection by the address and port they
+ * come from. The server thread runs the event loop which drives the channel and every connection's timers. Every
+ * handshake hands the client a session token; a client which sends it back in a later connection request is
+ * connected at once, and the data following the token is delivered as its first message. A {@link MessageHandler}
+ * answers the messages instead of the echo, on worker threads which keep the event loop free to receive.
  */
 public class RudpServer extends Thread {
-    private final DatagramSocket socket;      // udp socket
-    private boolean connected;                // flag for connection status
-    private boolean running;                  // flag for running status
+    private static final int DATAGRAM_OVERHEAD = 512;   // rough bytes the kernel charges a queued datagram
 
-    public RudpServer() throws SocketException {
-        socket = new DatagramSocket(Constants.PORT);
+    /**
+     * Receives the messages of the clients, on the thread of the server
+     */
+    public interface MessageListener {
+        /**
+         * Called for every complete message, whether it came in one packet or was reassembled from fragments
+         *
+         * @param address the address and port of the client
+         * @param message the message, which is only valid during the call
+         */
+        void onMessage(SocketAddress address, ByteBuffer message);
+
+        /**
+         * Called for every complete message of a stream, as soon as the stream has it in order, even when packets
+         * of other streams sent earlier are still missing
+         *
+         * @param address the address and port of the client
+         * @param stream  the id of the stream
+         * @param message the message, which is only valid during the call
+         */
+        default void onMessage(SocketAddress address, int stream, ByteBuffer message) {
+            onMessage(address, message);
+        }
+    }
+
+    /**
+     * Answers the messages of the clients, on the worker threads of a {@link HandlerPipeline}
+     */
+    public interface MessageHandler {
+        /**
+         * Called for every complete message, possibly for several messages at once
+         *
+         * @param address the address and port of the client
+         * @param message the message, owned by the handler
+         * @return the reply, which must fit in one packet, or null for an empty one; a handler which throws, or
+         * whose reply does not fit, is answered with an empty reply too, so the request always completes at the
+         * client. Messages sent with the SEQ flag expect no reply and their replies are not sent.
+         */
+        byte[] handle(SocketAddress address, byte[] message) throws IOException;
+    }
+
+    /**
+     * Serves one connection with blocking reads and writes, on a thread of its own
+     */
+    public interface ConnectionHandler {
+        /**
+         * Called once for every connection, on a new thread. The connection stays open after the call returns,
+         * but its messages are no longer answered.
+         *
+         * @param session the connection
+         */
+        void serve(RudpSession session) throws IOException;
+    }
+
+    private final DatagramChannel channel;    // non-blocking udp channel
+    private final NetworkEmulator transport;  // sends packets, impaired if configured
+    private final RudpEventLoop eventLoop;    // loop run by the server thread
+    private final ConnectionTable connections; // connections by client address
+    private final TimerWheel timers;          // retransmission and eviction timers
+    private final DatagramPacket packet;      // receive buffer
+    private final ByteBuffer buffer;          // the receive buffer seen by the channel
+    private final RudpHeader header;          // view of the reliable header in the receive buffer
+    private final RudpMetrics metrics;        // sum of the metrics of every connection
+    private final SessionTokenCache tokens;   // session tokens handed out in handshakes
+    private final SynCookies cookies;         // initial sequence numbers of stateless handshakes
+    private final DatagramPacket cookieAck;   // acknowledgement of a connection request with a cookie
+    private final RudpHeader cookieHeader;    // view of the reliable header of the cookie acknowledgement
+    private volatile boolean synCookies;      // whether connections are only created by a valid final ACK
+    private final ArrayDeque<RudpConnection> pendingFlushes; // connections with replies held until the batch ends
+    private volatile MessageListener messageListener;
+    private volatile ConnectionHandler connectionHandler;   // serves each connection instead of the echo, may be null
+    private volatile ThreadFactory handlerThreads;          // threads of the connection handlers
+    private volatile HandlerPipeline handlerPipeline;       // answers the messages instead of the echo, may be null
+    private final int receiveBufferPackets;   // datagrams the socket receive buffer holds
+    private volatile RudpServer[] shards;     // servers owning the peers, when this server reads for all of them
+    private ForwardBatch[] forwarding;        // datagrams of the current pass by shard, null for none or this one
+    private final ArrayDeque<ForwardBatch> idleBatches; // batches back from the shards, ready for the next pass
+
+    public RudpServer() throws IOException {
+        this(Constants.PORT);
+    }
+
+    public RudpServer(int port) throws IOException {
+        this(openChannel(port, false), RudpMetrics.GLOBAL, new SessionTokenCache(), true);
+    }
+
+    /**
+     * Creates a server over a bound channel, as one shard of a {@link ShardedRudpServer}
+     *
+     * @param channel the non-blocking channel
+     * @param parent  the metrics which sum those of this server
+     * @param tokens  the session tokens, shared by the shards
+     * @param read    whether this server reads the channel, false if another shard reads it and forwards
+     */
+    RudpServer(DatagramChannel channel, RudpMetrics parent, SessionTokenCache tokens, boolean read)
+            throws IOException {
+        this.channel = channel;
+        this.tokens = tokens;
+        receiveBufferPackets = channel.getOption(StandardSocketOptions.SO_RCVBUF) /
+                (RudpDatagramPacket.PAYLOAD_MAX_SIZE + DATAGRAM_OVERHEAD);
+        eventLoop = new RudpEventLoop();
+        metrics = new RudpMetrics(parent);
+        connections = new ConnectionTable();
+        pendingFlushes = new ArrayDeque<>();
+        idleBatches = new ArrayDeque<>();
+        timers = eventLoop.getTimers();
+        transport = new NetworkEmulator(RudpTransport.of(channel), timers);
+        packet = RudpDatagramPacket.createEmptyPacket();
+        buffer = ByteBuffer.wrap(packet.getData());
+        header = new RudpHeader().wrap(buffer, 0);
+        cookies = new SynCookies();
+        cookieAck = new DatagramPacket(new byte[RudpDatagramPacket.RELIABLE_HEADER_SIZE],
+                RudpDatagramPacket.RELIABLE_HEADER_SIZE);
+        cookieHeader = new RudpHeader().wrap(cookieAck);
+        if (read) {
+            eventLoop.register(channel, this::receive);
+        }
+        eventLoop.execute(() -> timers.schedule(this::evictIdleConnections, RudpDatagramPacket.IDLE_TIMEOUT / 2));
+    }
+
+    /**
+     * Opens a non-blocking channel bound to a port
+     *
+     * @param port      the port
+     * @param reusePort whether other channels may bind the same port, each receiving a share of the peers
+     * @return the channel
+     */
+    static DatagramChannel openChannel(int port, boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
     }
 
+    /**
+     * Checks if at least one client is connected
+     *
+     * @return true if a client is connected, false otherwise
+     */
     public boolean isConnected() {
-        return connected;
+        return !connections.isEmpty();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    public PacketPool getPacketPool() {
+        return eventLoop.getPacketPool();
+    }
+
+    public NetworkEmulator getNetworkEmulator() {
+        return transport;
+    }
+
+    public RudpMetrics getMetrics() {
+        return metrics;
+    }
+
+    public SessionTokenCache getSessionTokens() {
+        return tokens;
+    }
+
+    public boolean isSynCookies() {
+        return synCookies;
+    }
+
+    /**
+     * Switches the stateless handshake on or off. With SYN cookies a connection request costs the server no memory:
+     * its acknowledgement carries a cookie as initial sequence number, and the connection is created once the
+     * client's final acknowledgement returns a valid cookie. Connection requests with a session token still create
+     * the connection at once, the token already proves the client. Clients get no new session token in a stateless
+     * handshake.
+     *
+     * @param synCookies true to answer connection requests without keeping state
+     */
+    public void setSynCookies(boolean synCookies) {
+        this.synCookies = synCookies;
+    }
+
+    /**
+     * Returns the window each client is advertised: an equal share of the socket receive buffer, so clients which
+     * all send at their window cannot overrun it, and of the free part of the handler queue, so they slow down when
+     * the handlers fall behind
+     *
+     * @return the number of packets
+     */
+    public int getReceiveWindow() {
+        int window = receiveBufferPackets;
+        HandlerPipeline pipeline = handlerPipeline;
+        if (pipeline != null) {
+            window = Math.min(window, pipeline.getFree());
+        }
+        return Math.max(1, Math.min(0xFFFF, window / Math.max(1, connections.size())));
+    }
+
+    public void setMessageListener(MessageListener messageListener) {
+        this.messageListener = messageListener;
+    }
+
+    /**
+     * Serves every new connection with the given handler on a virtual thread of its own, instead of echoing its
+     * messages. The virtual threads all wait on the queues the event loop fills, so tens of thousands of
+     * connections need no more than a few carrier threads. On a runtime without virtual threads, platform daemon
+     * threads are used.
+     *
+     * @param connectionHandler the handler, or null to echo again
+     */
+    public void setConnectionHandler(ConnectionHandler connectionHandler) {
+        setConnectionHandler(connectionHandler, newVirtualThreadFactory());
+    }
+
+    /**
+     * Serves every new connection with the given handler on a thread of the given factory, instead of echoing its
+     * messages
+     *
+     * @param connectionHandler the handler, or null to echo again
+     * @param threadFactory     creates the thread of each connection
+     */
+    public void setConnectionHandler(ConnectionHandler connectionHandler, ThreadFactory threadFactory) {
+        this.handlerThreads = threadFactory;
+        this.connectionHandler = connectionHandler;
+    }
+
+    /**
+     * Answers the messages of every connection with the given handler on {@link RudpDatagramPacket#HANDLER_THREADS}
+     * worker threads, instead of echoing them. At most {@link RudpDatagramPacket#HANDLER_QUEUE_SIZE} messages are
+     * queued or being handled.
+     *
+     * @param messageHandler the handler, or null to echo again
+     * @see HandlerPipeline
+     */
+    public void setMessageHandler(MessageHandler messageHandler) {
+        setMessageHandler(messageHandler, RudpDatagramPacket.HANDLER_THREADS, RudpDatagramPacket.HANDLER_QUEUE_SIZE);
+    }
+
+    /**
+     * Answers the messages of every connection with the given handler on a pool of worker threads, instead of
+     * echoing them. The workers of the previous handler are stopped from the event loop once it hands every new
+     * message to the new ones, after they answered the messages already queued. A connection served by a
+     * {@link ConnectionHandler} is answered by its session instead.
+     *
+     * @param messageHandler the handler, or null to echo again
+     * @param threads        the number of worker threads
+     * @param queueSize      the max number of messages queued or being handled
+     */
+    public void setMessageHandler(MessageHandler messageHandler, int threads, int queueSize) {
+        HandlerPipeline previous = handlerPipeline;
+        handlerPipeline = messageHandler == null ? null :
+                new HandlerPipeline(this, messageHandler, threads, queueSize);
+        if (previous != null) {
+            // the loop may be submitting to the previous workers right now
+            execute(previous::shutdown);
+        }
+    }
+
+    public HandlerPipeline getHandlerPipeline() {
+        return handlerPipeline;
+    }
+
+    /**
+     * Creates a factory of virtual threads, found by reflection so the server still runs where they do not exist
+     *
+     * @return the factory
+     */
+    static ThreadFactory newVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return task -> {
+                Thread thread = new Thread(task);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    /**
+     * Runs a task on the thread of the server
+     *
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        eventLoop.execute(task);
+    }
+
+    /**
+     * Hands a complete message of a client to the listener, if any
+     *
+     * @param address the address and port of the client
+     * @param data    the array holding the message
+     * @param offset  the index of the message in the array
+     * @param length  the length of the message
+     */
+    public void deliverMessage(SocketAddress address, byte[] data, int offset, int length) {
+        deliverMessage(address, -1, data, offset, length);
+    }
+
+    /**
+     * Hands a complete message of a client to the listener, if any
+     *
+     * @param address the address and port of the client
+     * @param stream  the id of the stream of the message, -1 for a request
+     * @param data    the array holding the message
+     * @param offset  the index of the message in the array
+     * @param length  the length of the message
+     */
+    public void deliverMessage(SocketAddress address, int stream, byte[] data, int offset, int length) {
+        MessageListener listener = messageListener;
+        if (listener != null) {
+            try {
+                ByteBuffer message = ByteBuffer.wrap(data, offset, length).asReadOnlyBuffer();
+                if (stream < 0) {
+                    listener.onMessage(address, message);
+                } else {
+                    listener.onMessage(address, stream, message);
+                }
+            } catch (RuntimeException e) {
+                // a failing listener must not stop the server
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
-     * Creates a UDP packet for acknowledging a connection request from the server
+     * Creates a UDP packet for acknowledging a connection request from the server. A new session token follows the
+     * header, the client sends it back to resume its session on a later connection. If the request offers valid
+     * parity packets, their block size and number follow the token: the client sends them only once they are there.
      *
      * @param connectionRequestPacket the packet received on the connection request
      * @return the UDP packet
      */
     public DatagramPacket createServerAckPacket(DatagramPacket connectionRequestPacket) {
-        // create new packet
-        DatagramPacket newPacket = RudpDatagramPacket.copyPacket(connectionRequestPacket);
-        // create the reliable header for connection request
-        byte[] reliableHeader = RudpDatagramPacket.getReliableHeader(newPacket.getData());
+        RudpHeader requestHeader = new RudpHeader().wrap(connectionRequestPacket);
+        int fecBlock = requestHeader.getFecBlock();
+        int fecParity = requestHeader.getFecParity();
+        boolean fec = RudpDatagramPacket.isValidFec(fecBlock, fecParity);
+        // create new packet with the header of the request, dropping its token and data
+        byte[] payload = new byte[RudpDatagramPacket.RELIABLE_HEADER_SIZE + RudpDatagramPacket.TOKEN_SIZE +
+                (fec ? RudpDatagramPacket.FEC_ACCEPT_SIZE : 0)];
+        System.arraycopy(connectionRequestPacket.getData(), connectionRequestPacket.getOffset(), payload, 0,
+                RudpDatagramPacket.RELIABLE_HEADER_SIZE);
+        DatagramPacket newPacket = new DatagramPacket(payload, payload.length,
+                connectionRequestPacket.getSocketAddress());
+        tokens.issue(connectionRequestPacket.getAddress(), payload, RudpDatagramPacket.RELIABLE_HEADER_SIZE);
+        if (fec) {
+            payload[RudpDatagramPacket.RELIABLE_HEADER_SIZE + RudpDatagramPacket.TOKEN_SIZE] = (byte) fecBlock;
+            payload[RudpDatagramPacket.RELIABLE_HEADER_SIZE + RudpDatagramPacket.TOKEN_SIZE + 1] = (byte) fecParity;
+        }
+        // edit the reliable header in place
+        RudpHeader reliableHeader = new RudpHeader().wrap(newPacket);
         // set the ACK flag
-        RudpDatagramPacket.setACK(reliableHeader);
-        // set the acknowledgement number
-        RudpDatagramPacket.setACKNumber(reliableHeader, (short) (RudpDatagramPacket.getACKNumber(reliableHeader) + 1));
+        reliableHeader.setACK();
+        // acknowledge the client's initial sequence number
+        reliableHeader.setACKNumber((short) (reliableHeader.getSequenceNumber() + 1));
         // create random sequence number
-        RudpDatagramPacket.setSequenceNumber(reliableHeader, (short) (Math.random() * Short.MAX_VALUE));
-        // add the new reliable header to the data
-        RudpDatagramPacket.modifyReliableHeader(reliableHeader, newPacket.getData());
+        reliableHeader.setSequenceNumber((short) (Math.random() * Short.MAX_VALUE));
         // return the rudp datagram packet
         return newPacket;
     }
@@ -51,90 +398,365 @@ public class RudpServer extends Thread {
     public DatagramPacket createServerCloseAckPacket(DatagramPacket connectionCloseRequestPacket) {
         // create new packet
         DatagramPacket newPacket = RudpDatagramPacket.copyPacket(connectionCloseRequestPacket);
-        // create the reliable header for connection request
-        byte[] reliableHeader = RudpDatagramPacket.getReliableHeader(newPacket.getData());
-        // set the FIN flag
-        RudpDatagramPacket.setFIN(reliableHeader);
-        // set the acknowledgement number
-        RudpDatagramPacket.setACKNumber(reliableHeader, (short) (RudpDatagramPacket.getACKNumber(reliableHeader) + 1));
+        // edit the reliable header in place
+        RudpHeader reliableHeader = new RudpHeader().wrap(newPacket);
+        // set the FIN and ACK flags
+        reliableHeader.setFIN();
+        reliableHeader.setACK();
+        // acknowledge the client's close request
+        reliableHeader.setACKNumber((short) (reliableHeader.getSequenceNumber() + 1));
         // create random sequence number
-        RudpDatagramPacket.setSequenceNumber(reliableHeader, (short) (Math.random() * Short.MAX_VALUE));
-        // add the new reliable header to the data
-        RudpDatagramPacket.modifyReliableHeader(reliableHeader, newPacket.getData());
+        reliableHeader.setSequenceNumber((short) (Math.random() * Short.MAX_VALUE));
         // return the rudp datagram packet
         return newPacket;
     }
 
     /**
-     * Accept a connection from the client
+     * Asks for the replies of a connection to be sent once the current batch of datagrams is handled
+     *
+     * @param connection the connection
      */
-    public void acceptConnection() throws IOException {
-        // receive connection request from client
-        DatagramPacket requestPacket = RudpDatagramPacket.createEmptyPacket();
-        socket.receive(requestPacket);
-        System.out.println("Received connection request from " + requestPacket.getAddress().getHostAddress() + ":" +
-                requestPacket.getPort());
-        // send acknowledgement to client
-        socket.send(createServerAckPacket(requestPacket));
-        System.out.println("Sent acknowledgement to " + requestPacket.getAddress().getHostAddress() + ":" +
-                requestPacket.getPort());
-        socket.receive(requestPacket);
-        System.out.println("Received acknowledgement from " + requestPacket.getAddress().getHostAddress() + ":");
-        connected = true;
-        running = true;
+    public void scheduleFlush(RudpConnection connection) {
+        pendingFlushes.add(connection);
     }
 
     /**
-     * Accept a connection close request from the client
+     * Forgets a closed or unresponsive connection
      *
-     * @param packet the packet received
+     * @param connection the connection
      */
-    public void closeConnection(DatagramPacket packet) throws IOException {
-        // send acknowledgement to client
-        socket.send(createServerCloseAckPacket(packet));
-        // close the socket
-        connected = false;
-        running = false;
-        socket.close();
+    public void removeConnection(RudpConnection connection) {
+        connections.remove(connection);
     }
 
-    @Override
-    public void run() {
-        try {
-            // accept connection from client
-            acceptConnection();
+    /**
+     * Dispatches a received packet to the connection of its sender
+     *
+     * @param packet  the packet received
+     * @param address the address and port of the sender
+     */
+    private void handlePacket(DatagramPacket packet, SocketAddress address) throws IOException {
+        if (packet.getLength() < RudpDatagramPacket.RELIABLE_HEADER_SIZE ||
+                packet.getLength() < header.getHeaderLength()) {
+            return;
+        }
+        RudpConnection connection = connections.get(address);
+        if (header.isSYN() && (connection == null || !connection.isDuplicateRequest(header))) {
+            // a new client, or a client which opens a new connection from the same port
+            if (RudpLog.isInfoEnabled()) {
+                RudpLog.info("Received connection request from " + address);
+            }
+            boolean resumption = isResumption(packet);
+            if (synCookies && !resumption) {
+                sendCookie((InetSocketAddress) address);
+                return;
+            }
+            connection = new RudpConnection(this, transport, timers, packet, header);
+            accept(connection);
+            if (resumption) {
+                connection.resume(packet);
+            } else {
+                connection.open();
+            }
+        } else if (connection != null) {
+            connection.handlePacket(packet, header);
+        } else if (synCookies && header.isACK() && !header.isSYN() && !header.isPSH() && !header.isFIN()) {
+            acceptCookie((InetSocketAddress) address);
+        }
+    }
 
-            while (running) {
-                // create an empty datagram packet to receive data
-                DatagramPacket packet = RudpDatagramPacket.createEmptyPacket();
+    /**
+     * Registers a new connection and starts its handler, if any
+     *
+     * @param connection the connection
+     */
+    private void accept(RudpConnection connection) {
+        connections.put(connection);
+        ConnectionHandler handler = connectionHandler;
+        if (handler != null) {
+            serve(connection, handler);
+        }
+    }
 
-                // if client is not connected, accept the connection
-                if (!connected) {
-                    acceptConnection();
-                }
+    /**
+     * Acknowledges a connection request with a SYN cookie as initial sequence number, without keeping any state.
+     * The acknowledgement is written into a buffer owned by the server, so a flood of requests allocates nothing.
+     *
+     * @param address the address and port of the client
+     */
+    private void sendCookie(InetSocketAddress address) throws IOException {
+        short clientSequenceNumber = header.getSequenceNumber();
+        cookieHeader.clear();
+        cookieHeader.setSYN();
+        cookieHeader.setACK();
+        if (header.isSACK()) {
+            cookieHeader.setSACK();
+        }
+        cookieHeader.setACKNumber((short) (clientSequenceNumber + 1));
+        cookieHeader.setSequenceNumber(cookies.create(address, clientSequenceNumber, header.isSACK()));
+        cookieAck.setSocketAddress(address);
+        transport.send(cookieAck);
+    }
+
+    /**
+     * Creates the connection of a client whose final acknowledgement returns a valid SYN cookie. The acknowledgement
+     * carries the client's next sequence number and the cookie plus one.
+     *
+     * @param address the address and port of the client
+     */
+    private void acceptCookie(InetSocketAddress address) throws IOException {
+        short clientSequenceNumber = (short) (header.getSequenceNumber() - 1);
+        short cookie = (short) (header.getACKNumber() - 1);
+        if (!cookies.verify(address, clientSequenceNumber, cookie)) {
+            return;
+        }
+        if (RudpLog.isInfoEnabled()) {
+            RudpLog.info("Received valid cookie from " + address);
+        }
+        // rebuild the acknowledgement of the request, sent again if a retransmitted request arrives late
+        DatagramPacket connectionAck = new DatagramPacket(new byte[RudpDatagramPacket.RELIABLE_HEADER_SIZE],
+                RudpDatagramPacket.RELIABLE_HEADER_SIZE, address);
+        RudpHeader ackHeader = new RudpHeader().wrap(connectionAck);
+        ackHeader.clear();
+        ackHeader.setSYN();
+        ackHeader.setACK();
+        if (SynCookies.isSackPermitted(cookie)) {
+            ackHeader.setSACK();
+        }
+        ackHeader.setACKNumber((short) (clientSequenceNumber + 1));
+        ackHeader.setSequenceNumber(cookie);
+        // the cookie does not remember an offer of compression, the acknowledgement declined it
+        RudpConnection connection = new RudpConnection(this, transport, timers, address, clientSequenceNumber,
+                SynCookies.isSackPermitted(cookie), false, connectionAck);
+        accept(connection);
+        connection.establish();
+    }
 
-                // receive data from client
-                socket.receive(packet);
-                System.out.println(
-                        "Received data from " + packet.getAddress().getHostAddress() + ":" + packet.getPort() + " " +
-                                packet.getLength());
-                // shut down the server if the client sends the end communication message
-                if (RudpDatagramPacket.isDisconnectRequest(packet)) {
-                    closeConnection(packet);
-                    continue;
+    /**
+     * Checks if a connection request carries a valid session token, redeeming it
+     *
+     * @param requestPacket the connection request
+     * @return true if the client resumes a session, false if it needs the whole handshake
+     */
+    private boolean isResumption(DatagramPacket requestPacket) {
+        return requestPacket.getLength() >= RudpDatagramPacket.RELIABLE_HEADER_SIZE + RudpDatagramPacket.TOKEN_SIZE &&
+                tokens.redeem(requestPacket.getAddress(), requestPacket.getData(),
+                        requestPacket.getOffset() + RudpDatagramPacket.RELIABLE_HEADER_SIZE);
+    }
+
+    /**
+     * Starts the thread which serves a new connection
+     *
+     * @param connection the connection
+     * @param handler    the handler
+     */
+    private void serve(RudpConnection connection, ConnectionHandler handler) {
+        RudpSession session = new RudpSession(this, connection);
+        connection.setSession(session);
+        handlerThreads.newThread(() -> {
+            try {
+                handler.serve(session);
+            } catch (IOException | RuntimeException e) {
+                // a failing handler must not stop the server
+                e.printStackTrace();
+            }
+        }).start();
+    }
+
+    /**
+     * Drops the connections which were silent for too long and schedules the next check
+     */
+    private void evictIdleConnections() {
+        int evicted = connections.evictIdle(RudpDatagramPacket.IDLE_TIMEOUT);
+        if (evicted > 0) {
+            RudpLog.info("Evicted " + evicted + " idle connections.");
+        }
+        timers.schedule(this::evictIdleConnections, RudpDatagramPacket.IDLE_TIMEOUT / 2);
+    }
+
+    /**
+     * Receives the datagrams waiting on the channel, up to a batch, dispatches them and then sends the replies the
+     * connections held. The datagrams of the peers of other shards are handed over once the pass ends, one task per
+     * shard. If more datagrams wait, the selector reports the channel again after the timers ran.
+     */
+    private void receive() throws IOException {
+        try {
+            for (int i = 0; i < RudpDatagramPacket.RECEIVE_BATCH; i++) {
+                buffer.clear();
+                SocketAddress address = channel.receive(buffer);
+                if (address == null) {
+                    break;
+                }
+                packet.setSocketAddress(address);
+                packet.setLength(buffer.position());
+                if (RudpLog.isDebugEnabled()) {
+                    RudpLog.debug("Received data from " + address + " " + packet.getLength());
                 }
+                RudpServer[] owners = shards;
+                int shard = owners == null ? -1 : ShardedRudpServer.shardOf(address, owners.length);
+                if (shard < 0 || owners[shard] == this) {
+                    handlePacket(packet, address);
+                } else {
+                    forward(packet, owners[shard], shard);
+                }
+            }
+        } finally {
+            dispatchForwards();
+            flush();
+        }
+    }
 
-                // send the data back to the client
-                socket.send(packet);
-                System.out.println(
-                        "Sent data to " + packet.getAddress().getHostAddress() + ":" + packet.getPort() + " " +
-                                packet.getLength());
+    /**
+     * Handles the datagrams another shard read for the peers of this server, on the thread of this server
+     *
+     * @param received the datagrams
+     * @param count    the number of datagrams
+     */
+    private void receiveForwarded(DatagramPacket[] received, int count) throws IOException {
+        try {
+            for (int i = 0; i < count; i++) {
+                // the handlers read the header in the receive buffer
+                int length = received[i].getLength();
+                System.arraycopy(received[i].getData(), 0, packet.getData(), 0, length);
+                SocketAddress address = received[i].getSocketAddress();
+                packet.setSocketAddress(address);
+                packet.setLength(length);
+                handlePacket(packet, address);
             }
+        } finally {
+            flush();
+        }
+    }
 
-            // close the socket
-            socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Sends the replies the connections held during a batch
+     */
+    private void flush() throws IOException {
+        RudpConnection connection;
+        while ((connection = pendingFlushes.poll()) != null) {
+            connection.flush();
+        }
+    }
+
+    /**
+     * Makes this server read the channel for every shard, handing each datagram to the shard owning its peer
+     *
+     * @param shards the shards, this server included
+     */
+    void setShards(RudpServer[] shards) {
+        forwarding = new ForwardBatch[shards.length];
+        this.shards = shards;
+    }
+
+    /**
+     * Adds a datagram to the batch of the shard owning its peer. The datagram is copied into a pooled packet, the
+     * reader reuses its buffer.
+     *
+     * @param received the datagram
+     * @param owner    the shard owning the peer
+     * @param shard    the index of the shard
+     */
+    private void forward(DatagramPacket received, RudpServer owner, int shard) {
+        ForwardBatch batch = forwarding[shard];
+        if (batch != null && batch.count == batch.packets.length) {
+            owner.eventLoop.execute(batch);
+            batch = null;
+        }
+        if (batch == null) {
+            batch = idleBatches.poll();
+            if (batch == null) {
+                batch = new ForwardBatch();
+            }
+            batch.owner = owner;
+            forwarding[shard] = batch;
+        }
+        DatagramPacket copy = getPacketPool().acquire();
+        System.arraycopy(received.getData(), received.getOffset(), copy.getData(), 0, received.getLength());
+        copy.setLength(received.getLength());
+        copy.setSocketAddress(received.getSocketAddress());
+        batch.packets[batch.count++] = copy;
+    }
+
+    /**
+     * Hands each shard the datagrams this pass read for its peers, in one task
+     */
+    private void dispatchForwards() {
+        ForwardBatch[] batches = forwarding;
+        if (batches == null) {
+            return;
+        }
+        for (int i = 0; i < batches.length; i++) {
+            if (batches[i] != null) {
+                batches[i].owner.eventLoop.execute(batches[i]);
+                batches[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Stops the server and waits until its channel is released
+     */
+    public void shutdown() {
+        eventLoop.shutdown();
+        if (getState() == State.NEW) {
+            // the loop never ran, nobody else will close the channel
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (Thread.currentThread() != this) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // the loop no longer submits messages, unless this is the loop thread, which then refuses them
+        HandlerPipeline pipeline = handlerPipeline;
+        if (pipeline != null) {
+            pipeline.shutdownNow();
+        }
+    }
+
+    @Override
+    public void run() {
+        eventLoop.run();
+    }
+
+    /**
+     * The datagrams one receive pass of this server read for the peers of another shard. The batch runs twice: on
+     * the thread of that shard it handles the datagrams, then back on the thread of this server it releases their
+     * packets to the pool they were taken from and waits for another pass.
+     */
+    private final class ForwardBatch implements Runnable {
+        private final DatagramPacket[] packets = new DatagramPacket[RudpDatagramPacket.RECEIVE_BATCH];
+        private RudpServer owner;   // the shard owning the peers
+        private int count;          // number of datagrams
+        private boolean handled;    // whether the owner handled them, the batch then returns to this server
+
+        @Override
+        public void run() {
+            if (handled) {
+                PacketPool pool = getPacketPool();
+                for (int i = 0; i < count; i++) {
+                    pool.release(packets[i]);
+                    packets[i] = null;
+                }
+                count = 0;
+                owner = null;
+                handled = false;
+                idleBatches.push(this);
+                return;
+            }
+            try {
+                owner.receiveForwarded(packets, count);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                handled = true;
+                eventLoop.execute(this);
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A blocking view of one server connection, for a {@link RudpServer.ConnectionHandler} running on its own thread.
+ * The server's event loop stays the only reader of the channel: it delivers every complete message of the client
+ * to the session's queue, where {@link #read()} waits for it. {@link #write(byte[])} answers the oldest message read
+ * and not answered yet, and the event loop sends the reply in place of the echo. The reply carries the
+ * acknowledgement of the message, so {@link RudpClient#sendEcho(String)} returns it. Messages sent through a window,
+ * with the SEQ flag, expect no reply: the handler still answers them in turn, but those replies are not sent.
+ */
+public class RudpSession {
+    private static final Message CLOSED = new Message(new byte[0], (short) 0, true);
+
+    /**
+     * A message of the client and the sequence number its reply acknowledges
+     */
+    private static class Message {
+        private final byte[] data;
+        private final short sequenceNumber;
+        private final boolean sequenced;    // whether the client expects no reply
+
+        Message(byte[] data, short sequenceNumber, boolean sequenced) {
+            this.data = data;
+            this.sequenceNumber = sequenceNumber;
+            this.sequenced = sequenced;
+        }
+    }
+
+    private final RudpServer server;
+    private final RudpConnection connection;
+    private final LinkedBlockingQueue<Message> messages;    // filled by the event loop
+    private final ArrayDeque<Message> unanswered;           // read by the handler thread and not answered yet
+    private boolean closed;                                 // whether the handler read the end of the connection
+
+    public RudpSession(RudpServer server, RudpConnection connection) {
+        this.server = server;
+        this.connection = connection;
+        messages = new LinkedBlockingQueue<>();
+        unanswered = new ArrayDeque<>();
+    }
+
+    /**
+     * Waits for the next message of the client
+     *
+     * @return the message, or null once the connection is closed
+     */
+    public byte[] read() throws IOException {
+        if (closed) {
+            return null;
+        }
+        Message message;
+        try {
+            message = messages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading from " + getAddress());
+        }
+        if (message == CLOSED) {
+            closed = true;
+            return null;
+        }
+        unanswered.add(message);
+        return message.data;
+    }
+
+    /**
+     * Answers the oldest message read and not answered yet. The reply is sent by the event loop, this call does not
+     * wait for it.
+     *
+     * @param reply the reply, which must fit in one packet
+     */
+    public void write(byte[] reply) {
+        Message message = unanswered.poll();
+        if (message == null) {
+            throw new IllegalStateException("No message to answer");
+        }
+        if (reply.length > connection.getMaxReplySize()) {
+            throw new IllegalArgumentException("Reply of " + reply.length + " bytes does not fit in a packet");
+        }
+        if (message.sequenced) {
+            return;
+        }
+        server.execute(() -> connection.reply(message.sequenceNumber, reply));
+    }
+
+    public SocketAddress getAddress() {
+        return connection.getAddress();
+    }
+
+    /**
+     * Queues a message of the client, on the event loop
+     *
+     * @param data           the array holding the message
+     * @param offset         the index of the message in the array
+     * @param length         the length of the message
+     * @param sequenceNumber the sequence number of its last packet
+     * @param sequenced      whether the message was sent with the SEQ flag and expects no reply
+     */
+    void deliver(byte[] data, int offset, int length, short sequenceNumber, boolean sequenced) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        messages.add(new Message(copy, sequenceNumber, sequenced));
+    }
+
+    /**
+     * Wakes the handler up with the end of the connection, on the event loop
+     */
+    void close() {
+        messages.add(CLOSED);
+    }
+}
@@ -1,20 +1,44 @@
 import jdk.jfr.Description;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
 public class RudpTest {
+    RudpServer server;
     RudpClient client;
 
     @Before
-    public void setup() throws SocketException, UnknownHostException {
-        new RudpServer().start();
+    public void setup() throws IOException {
+        server = new RudpServer();
+        server.start();
         client = new RudpClient();
     }
 
@@ -36,8 +60,814 @@ public class RudpTest {
         assertNotEquals("hello server", echo);
     }
 
+    @Test
+    @Description("Test the retransmission timeout adapts to the measured round trip time")
+    public void whenHandshakeCompletes_thenRetransmissionTimeoutIsMeasured() throws IOException {
+        client.connectToServer();
+        assertTrue(client.getRttEstimator().getTimeout() < RudpDatagramPacket.INITIAL_TIMEOUT);
+        assertEquals("hello server", client.sendEcho("hello server"));
+        assertEquals(0, client.getRetransmissions());
+    }
+
+    @Test
+    @Description("Test pipelined sending with a sliding window")
+    public void whenSendWithSlidingWindow_thenAllMessagesAreAcknowledged() throws IOException {
+        client.connectToServer();
+        client.setWindowSize(4);
+        client.sendAll(List.of("one", "two", "three", "four", "five", "six", "seven", "eight", "nine", "ten"));
+        // the sequence numbers keep going after the window is drained
+        assertEquals("after window", client.sendEcho("after window"));
+    }
+
+    @Test
+    @Description("Test several clients are served at the same time")
+    public void whenSeveralClientsConnect_thenEachIsServedIndependently() throws IOException {
+        client.connectToServer();
+        RudpClient other = new RudpClient();
+        other.connectToServer();
+        assertEquals("from first", client.sendEcho("from first"));
+        assertEquals("from second", other.sendEcho("from second"));
+        // the server keeps serving the first client after the second one leaves
+        other.closeConnection();
+        assertEquals("still here", client.sendEcho("still here"));
+    }
+
+    @Test
+    @Description("Test several clients driven by one event loop")
+    public void whenClientsShareAnEventLoop_thenEachIsServed() throws IOException {
+        client.connectToServer();
+        RudpEventLoopGroup group = new RudpEventLoopGroup(1);
+        try {
+            RudpClient first = new RudpClient(Constants.SERVER_NAME, Constants.PORT, group.next());
+            RudpClient second = new RudpClient(Constants.SERVER_NAME, Constants.PORT, group.next());
+            first.connectToServer();
+            second.connectToServer();
+            assertEquals("first", first.sendEcho("first"));
+            assertEquals("second", second.sendEcho("second"));
+            first.closeConnection();
+            second.closeConnection();
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    @Test
+    @Description("Test thousands of pipelined requests each complete with their own reply over a lossy link")
+    public void whenRequestsArePipelined_thenEachFutureGetsItsReply() throws Exception {
+        AsyncRudpClient async = new AsyncRudpClient(Constants.SERVER_NAME, Constants.PORT,
+                RudpEventLoopGroup.getDefault().next());
+        async.connect().get(1, TimeUnit.SECONDS);
+        async.setWindowSize(RudpDatagramPacket.REPLY_SLOTS);
+        async.getNetworkEmulator().setLossRate(0.1);
+        server.getNetworkEmulator().setLossRate(0.1);
+        List<CompletableFuture<byte[]>> replies = new ArrayList<>();
+        ByteBuffer request = ByteBuffer.allocate(16);
+        for (int i = 0; i < 2000; i++) {
+            request.clear();
+            request.putInt(i).flip();
+            replies.add(async.send(request));
+        }
+        for (int i = 0; i < replies.size(); i++) {
+            assertEquals(i, ByteBuffer.wrap(replies.get(i).get(30, TimeUnit.SECONDS)).getInt());
+        }
+        async.getNetworkEmulator().reset();
+        server.getNetworkEmulator().reset();
+        // a window of sequenced data still works between requests
+        async.sendAll(List.of("one", "two", "three")).get(1, TimeUnit.SECONDS);
+        assertEquals("after the window", async.sendEcho("after the window").get(1, TimeUnit.SECONDS));
+        async.close().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    @Description("Test a returning client resumes its session with a token and sends data in its first packet")
+    public void whenClientResumesWithToken_thenFirstPacketCarriesData() throws IOException {
+        client.connectToServer();
+        byte[] token = client.getSessionToken();
+        assertNotNull(token);
+        client.closeConnection();
+        long packetsIn = server.getMetrics().getPacketsIn();
+        long packetsOut = server.getMetrics().getPacketsOut();
+        client = new RudpClient();
+        client.setSessionToken(token);
+        assertArrayEquals("early".getBytes(), client.connectToServer(ByteBuffer.wrap("early".getBytes())));
+        // one datagram in, the acknowledgement and the reply out
+        assertEquals(packetsIn + 1, server.getMetrics().getPacketsIn());
+        assertEquals(packetsOut + 2, server.getMetrics().getPacketsOut());
+        assertEquals(1, server.getMetrics().getResumptions());
+        assertNotNull(client.getSessionToken());
+        // a token is redeemed once, a replay gets the whole handshake
+        RudpClient replay = new RudpClient();
+        replay.setSessionToken(token);
+        assertArrayEquals("full".getBytes(), replay.connectToServer(ByteBuffer.wrap("full".getBytes())));
+        assertEquals(1, server.getMetrics().getResumptions());
+        replay.closeConnection();
+        assertEquals("after resumption", client.sendEcho("after resumption"));
+    }
+
+    @Test
+    @Description("Test requests and replies are compressed once both ends agree, and left alone when it does not pay")
+    public void whenCompressionIsNegotiated_thenTextRequestsTakeFewerBytes() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        server.setMessageListener((address, message) -> {
+            byte[] data = new byte[message.remaining()];
+            message.get(data);
+            received.add(new String(data));
+        });
+        client.setCompressionEnabled(true);
+        client.connectToServer();
+        assertTrue(client.isCompressed());
+        // the listener and the client both see the requests as they were written
+        String text = "{\"type\": \"event\", \"status\": \"ok\", \"message\": \"hello server\", \"id\": 42}";
+        assertEquals(text, client.sendEcho(text));
+        assertEquals(text, received.poll(1, TimeUnit.SECONDS));
+        // the next request is compressed against the first one
+        String next = text.replace("42", "43");
+        long bytesOut = client.getMetrics().getBytesOut();
+        assertEquals(next, client.sendEcho(next));
+        assertEquals(next, received.poll(1, TimeUnit.SECONDS));
+        long sent = client.getMetrics().getBytesOut() - bytesOut;
+        assertTrue(sent < RudpDatagramPacket.RELIABLE_HEADER_SIZE + next.length() -
+                RudpDatagramPacket.COMPRESSION_MIN_GAIN);
+        // random letters do not compress and travel as they are, behind the marker
+        Random random = new Random(23);
+        StringBuilder noise = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            noise.append((char) ('!' + random.nextInt(90)));
+        }
+        bytesOut = client.getMetrics().getBytesOut();
+        assertEquals(noise.toString(), client.sendEcho(noise.toString()));
+        assertEquals(RudpDatagramPacket.RELIABLE_HEADER_SIZE + PayloadCodec.MARKER_SIZE + noise.length(),
+                client.getMetrics().getBytesOut() - bytesOut);
+        // the replies of a handler are encoded too
+        server.setMessageHandler((address, message) -> new String(message).toUpperCase().getBytes());
+        assertEquals(text.toUpperCase(), client.sendEcho(text));
+
+        // a resumed session takes the compressed request in its connection request
+        byte[] token = client.getSessionToken();
+        client.closeConnection();
+        client = new RudpClient();
+        client.setCompressionEnabled(true);
+        client.setSessionToken(token);
+        assertArrayEquals(text.toUpperCase().getBytes(), client.connectToServer(ByteBuffer.wrap(text.getBytes())));
+        assertTrue(client.isCompressed());
+        assertEquals(1, server.getMetrics().getResumptions());
+
+        // a stateless handshake declines compression
+        server.setSynCookies(true);
+        RudpClient stateless = new RudpClient();
+        stateless.setCompressionEnabled(true);
+        stateless.connectToServer();
+        assertFalse(stateless.isCompressed());
+        assertEquals(text.toUpperCase(), stateless.sendEcho(text));
+        stateless.closeConnection();
+
+        // a full request accepted before compression was agreed fails once it no longer fits behind the marker
+        server.setSynCookies(false);
+        AsyncRudpClient async = new AsyncRudpClient(Constants.SERVER_NAME, Constants.PORT,
+                RudpEventLoopGroup.getDefault().next());
+        async.setCompressionEnabled(true);
+        byte[] full = new byte[RudpDatagramPacket.PAYLOAD_MAX_SIZE - RudpDatagramPacket.RELIABLE_HEADER_SIZE];
+        random.nextBytes(full);
+        try {
+            async.connect(ByteBuffer.wrap(full)).get(1, TimeUnit.SECONDS);
+            fail("The request no longer fits once compressed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertTrue(async.isCompressed());
+        // it took no sequence number, the next request is answered
+        assertArrayEquals(text.toUpperCase().getBytes(),
+                async.send(ByteBuffer.wrap(text.getBytes())).get(1, TimeUnit.SECONDS));
+        // both histories stay the same when requests are sent again and replies arrive out of order
+        async.setWindowSize(RudpDatagramPacket.REPLY_SLOTS);
+        async.getNetworkEmulator().setLossRate(0.1);
+        server.getNetworkEmulator().setLossRate(0.1);
+        List<CompletableFuture<byte[]>> replies = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            replies.add(async.send(ByteBuffer.wrap(text.replace("42", Integer.toString(i)).getBytes())));
+        }
+        for (int i = 0; i < replies.size(); i++) {
+            assertEquals(text.replace("42", Integer.toString(i)).toUpperCase(),
+                    new String(replies.get(i).get(30, TimeUnit.SECONDS)));
+        }
+        assertTrue(async.getMetrics().getBytesOut() < 500L * text.length());
+        async.getNetworkEmulator().reset();
+        server.getNetworkEmulator().reset();
+        async.close().get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    @Description("Test a server using SYN cookies keeps no state for half-open handshakes")
+    public void whenSynCookiesAreOn_thenHalfOpenHandshakesKeepNoState() throws IOException {
+        server.setSynCookies(true);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(1000);
+            byte[] ack = new byte[RudpDatagramPacket.RELIABLE_HEADER_SIZE];
+            for (int i = 0; i < 8; i++) {
+                DatagramPacket request = RudpDatagramPacket.createEmptyPacket();
+                RudpHeader header = new RudpHeader().wrap(request);
+                header.setFlags(RudpDatagramPacket.SYN_MASK);
+                header.setSequenceNumber((short) (100 * i));
+                request.setLength(RudpDatagramPacket.RELIABLE_HEADER_SIZE);
+                request.setAddress(InetAddress.getLoopbackAddress());
+                request.setPort(Constants.PORT);
+                socket.send(request);
+                socket.receive(new DatagramPacket(ack, ack.length));
+                assertTrue(RudpDatagramPacket.isSYN(ack));
+                assertEquals((short) (100 * i + 1), RudpDatagramPacket.getACKNumber(ack));
+            }
+            assertEquals(0, server.getConnectionCount());
+            // an acknowledgement with a forged cookie opens nothing
+            DatagramPacket forged = RudpDatagramPacket.createAckPacket((short) 701, (short) 1234,
+                    InetAddress.getLoopbackAddress(), Constants.PORT);
+            socket.send(forged);
+        }
+        // the cookie remembers no offer of parity packets, the acknowledgement declines them
+        client.setForwardErrorCorrection(4, 1);
+        client.connectToServer();
+        assertFalse(client.isFecAccepted());
+        assertEquals("cookie", client.sendEcho("cookie"));
+        assertEquals(1, server.getConnectionCount());
+        assertNull(client.getSessionToken());
+    }
+
+    @Test
+    @Description("Test the header view reads and writes the header in place")
+    public void whenHeaderIsEditedInPlace_thenHelpersSeeTheSameHeader() throws IOException {
+        byte[] payload = RudpDatagramPacket.createDataPacket("data".getBytes(), (short) -2,
+                InetAddress.getLoopbackAddress(), 0).getData();
+        RudpHeader header = new RudpHeader().wrap(ByteBuffer.wrap(payload));
+        assertEquals((short) -2, header.getSequenceNumber());
+        assertTrue(header.isPSH());
+        header.setACK();
+        header.setACKNumber((short) 300);
+        assertTrue(RudpDatagramPacket.isACK(payload));
+        assertEquals((short) 300, RudpDatagramPacket.getACKNumber(payload));
+        // a direct buffer with the header at an offset
+        ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        header.wrap(direct, 3).setFlags(RudpDatagramPacket.SYN_MASK);
+        header.setSequenceNumber((short) 1234);
+        assertTrue(header.isSYN());
+        assertFalse(header.isACK());
+        assertEquals((short) 1234, header.getSequenceNumber());
+        assertEquals(0, direct.get(2));
+        // the server rewrites the header of every echo in its receive buffer
+        client.connectToServer();
+        assertEquals("in place", client.sendEcho("in place"));
+        assertEquals("again", client.sendEcho("again"));
+    }
+
+    @Test
+    @Description("Test the echo path reuses pooled packets once warmed up")
+    public void whenEchoIsRepeated_thenNoPacketIsAllocated() throws IOException {
+        client.connectToServer();
+        client.sendAll(List.of("warm", "up", "the", "pools"));
+        long clientAllocated = client.getPacketPool().getAllocated();
+        long serverAllocated = server.getPacketPool().getAllocated();
+        for (int i = 0; i < 100; i++) {
+            assertEquals("echo " + i, client.sendEcho("echo " + i));
+        }
+        client.sendAll(List.of("one", "two", "three"));
+        assertEquals(clientAllocated, client.getPacketPool().getAllocated());
+        assertEquals(serverAllocated, server.getPacketPool().getAllocated());
+    }
+
+    @Test
+    @Description("Test a message larger than a packet is fragmented and reassembled")
+    public void whenMessageIsLargerThanAPacket_thenServerReassemblesIt() throws Exception {
+        CompletableFuture<byte[]> received = new CompletableFuture<>();
+        server.setMessageListener((address, message) -> {
+            byte[] copy = new byte[message.remaining()];
+            message.get(copy);
+            received.complete(copy);
+        });
+        byte[] blob = new byte[200_000];
+        new Random(7).nextBytes(blob);
+        client.connectToServer();
+        client.setWindowSize(32);
+        client.sendMessage(blob);
+        assertArrayEquals(blob, received.get(1, TimeUnit.SECONDS));
+        // single packet messages are still echoed after a fragmented one
+        assertEquals("after blob", client.sendEcho("after blob"));
+    }
+
+    @Test
+    @Description("Test a packet lost on one stream does not hold back the messages of the others")
+    public void whenOneStreamMissesAPacket_thenOtherStreamsAreStillDelivered() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        server.setMessageListener(new RudpServer.MessageListener() {
+            @Override
+            public void onMessage(SocketAddress address, ByteBuffer message) {
+            }
+
+            @Override
+            public void onMessage(SocketAddress address, int stream, ByteBuffer message) {
+                byte[] data = new byte[message.remaining()];
+                message.get(data);
+                received.add(stream + ":" + (data.length > 16 ? data.length : new String(data)));
+            }
+        });
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            // handshake by hand, permitting selective acknowledgements
+            DatagramPacket request = RudpDatagramPacket.createEmptyPacket();
+            new RudpHeader().wrap(request).setFlags(RudpDatagramPacket.SYN_MASK | RudpDatagramPacket.SACK_MASK);
+            request.setLength(RudpDatagramPacket.RELIABLE_HEADER_SIZE);
+            request.setAddress(loopback);
+            request.setPort(Constants.PORT);
+            socket.send(request);
+            DatagramPacket ack = RudpDatagramPacket.createEmptyPacket();
+            socket.receive(ack);
+            socket.send(RudpDatagramPacket.createAckPacket((short) 1,
+                    (short) (RudpDatagramPacket.getSequenceNumber(ack.getData()) + 1), loopback, Constants.PORT));
+            String[][] packets = {{"1", "0", "bulk-0"}, {"2", "0", "control-0"}, {"1", "1", "bulk-1"},
+                    {"2", "1", "control-1"}};
+            // the first packet is lost, the second stream misses nothing
+            for (int i = 1; i < packets.length; i++) {
+                socket.send(streamPacket(i + 1, packets[i], loopback));
+            }
+            assertEquals("2:control-0", received.poll(1, TimeUnit.SECONDS));
+            assertEquals("2:control-1", received.poll(1, TimeUnit.SECONDS));
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+            // the first stream gets both of its packets once the gap is filled
+            socket.send(streamPacket(1, packets[0], loopback));
+            assertEquals("1:bulk-0", received.poll(1, TimeUnit.SECONDS));
+            assertEquals("1:bulk-1", received.poll(1, TimeUnit.SECONDS));
+        }
+        // the client interleaves the fragments of its streams over a lossy link
+        byte[] bulk = new byte[5000];
+        new Random(7).nextBytes(bulk);
+        client.connectToServer();
+        client.getNetworkEmulator().setLossRate(0.2);
+        client.sendStreams(Map.of(1, bulk, 2, "control".getBytes()));
+        client.sendMessage(2, "again".getBytes());
+        client.getNetworkEmulator().reset();
+        Set<String> streams = Set.of(received.poll(1, TimeUnit.SECONDS), received.poll(1, TimeUnit.SECONDS),
+                received.poll(1, TimeUnit.SECONDS));
+        assertEquals(Set.of("1:5000", "2:control", "2:again"), streams);
+        assertEquals("streams", client.sendEcho("streams"));
+    }
+
+    @Test
+    @Description("Test the server rebuilds lost packets from parity packets instead of waiting for them again")
+    public void whenParityPacketsAreSent_thenLostPacketsAreRecovered() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        server.setMessageListener((address, message) -> {
+            byte[] data = new byte[message.remaining()];
+            message.get(data);
+            received.add(new String(data));
+        });
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            messages.add("message " + i);
+        }
+        client.setForwardErrorCorrection(4, 1);
+        client.connectToServer();
+        assertTrue(client.isFecAccepted());
+        client.getNetworkEmulator().setSeed(21);
+        client.getNetworkEmulator().setLossRate(0.1);
+        client.sendAll(messages);
+        client.getNetworkEmulator().reset();
+        for (String message : messages) {
+            assertEquals(message, received.poll(1, TimeUnit.SECONDS));
+        }
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        assertTrue(server.getMetrics().getRecovered() > 0);
+        // a message must leave room for the parity header
+        byte[] full = new byte[client.getPacketPool().getPacketSize() - RudpDatagramPacket.STREAM_HEADER_SIZE];
+        try {
+            client.sendAll(List.of(new String(full)));
+            fail("The message should not fit");
+        } catch (IOException expected) {
+            assertTrue(expected.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    @Description("Test parity packets accepted in the handshake rebuild a packet lost in the very first block")
+    public void whenPacketOfFirstBlockIsLost_thenParityRebuildsIt() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        server.setMessageListener((address, message) -> {
+            byte[] data = new byte[message.remaining()];
+            message.get(data);
+            received.add(new String(data));
+        });
+        List<String> messages = List.of("first", "second", "third", "fourth");
+        client.setForwardErrorCorrection(4, 1);
+        client.setWindowSize(4);
+        client.setCongestionControl(new FixedWindowCongestionControl(4));
+        client.connectToServer();
+        assertTrue(client.isFecAccepted());
+        // with this seed the second data packet is dropped, the other three and the parity packet arrive
+        client.getNetworkEmulator().setSeed(6);
+        client.getNetworkEmulator().setLossRate(0.25);
+        client.sendAll(messages);
+        client.getNetworkEmulator().reset();
+        assertEquals(1, client.getNetworkEmulator().getDropped());
+        for (String message : messages) {
+            assertEquals(message, received.poll(1, TimeUnit.SECONDS));
+        }
+        assertEquals(1, server.getMetrics().getRecovered());
+        assertEquals(0, client.getRetransmissions());
+    }
+
+    @Test
+    @Description("Test an interrupted file transfer resumes with the segments which are missing")
+    public void whenFileTransferIsInterrupted_thenItResumesWithTheMissingSegments() throws Exception {
+        Path directory = Files.createTempDirectory("rudp");
+        Path received = Files.createDirectory(directory.resolve("received"));
+        byte[] content = new byte[50_000];
+        new Random(11).nextBytes(content);
+        Path source = Files.write(directory.resolve("data.bin"), content);
+        Path progress = directory.resolve("data.bin.sent");
+        FileReceiver receiver = new FileReceiver(received);
+        AtomicInteger messages = new AtomicInteger();
+        RudpClient interrupted = client;
+        server.setMessageListener(new RudpServer.MessageListener() {
+            @Override
+            public void onMessage(SocketAddress address, ByteBuffer message) {
+            }
+
+            @Override
+            public void onMessage(SocketAddress address, int stream, ByteBuffer message) {
+                receiver.onMessage(address, stream, message);
+                // the link of the client breaks in the middle of the transfer
+                if (messages.incrementAndGet() == 200) {
+                    interrupted.getNetworkEmulator().setLossRate(1);
+                }
+            }
+        });
+        int maxRetries = RudpDatagramPacket.MAX_RETRIES;
+        RudpDatagramPacket.MAX_RETRIES = 3;
+        try {
+            interrupted.connectToServer();
+            interrupted.sendFile(source, progress);
+            fail("The transfer should time out");
+        } catch (IOException expected) {
+            // the segments acknowledged so far are recorded on both sides
+            assertTrue(Files.exists(progress));
+            assertTrue(Files.exists(received.resolve("data.bin.part")));
+        } finally {
+            RudpDatagramPacket.MAX_RETRIES = maxRetries;
+        }
+        interrupted.getNetworkEmulator().reset();
+        interrupted.closeConnection();
+        int before = messages.get();
+        client = new RudpClient();
+        client.connectToServer();
+        client.sendFile(source, progress);
+        assertArrayEquals(content, Files.readAllBytes(received.resolve("data.bin")));
+        assertFalse(Files.exists(progress));
+        assertFalse(Files.exists(received.resolve("data.bin.part")));
+        // the opening message and the segments which were not acknowledged, not the whole file again
+        int segments = TransferBitmap.segmentsOf(content.length, client.getSegmentSize() -
+                RudpDatagramPacket.FILE_HEADER_SIZE);
+        assertTrue(messages.get() - before <= segments - 150);
+    }
+
+    private static DatagramPacket streamPacket(int sequenceNumber, String[] packet, InetAddress address) {
+        DatagramPacket streamPacket = RudpDatagramPacket.writeStreamPacket(RudpDatagramPacket.createEmptyPacket(),
+                packet[2].getBytes(), 0, packet[2].length(), (short) sequenceNumber, Integer.parseInt(packet[0]),
+                Short.parseShort(packet[1]));
+        streamPacket.setAddress(address);
+        streamPacket.setPort(Constants.PORT);
+        return streamPacket;
+    }
+
+    @Test
+    @Description("Test packets held after a gap are delivered in order over a lossy link")
+    public void whenLinkLosesPackets_thenSelectiveAcknowledgementsKeepTheOrder() throws IOException {
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        server.setMessageListener((address, message) -> {
+            byte[] data = new byte[message.remaining()];
+            message.get(data);
+            received.add(new String(data));
+        });
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            messages.add("message " + i);
+        }
+        client.setWindowSize(16);
+        client.connectToServer();
+        server.getNetworkEmulator().setLossRate(0.2);
+        client.getNetworkEmulator().setLossRate(0.2);
+        client.sendAll(messages);
+        server.getNetworkEmulator().reset();
+        client.getNetworkEmulator().reset();
+        assertEquals(messages, received);
+    }
+
+    @Test
+    @Description("Test 10 packets at 40% packet loss in both directions are all delivered once and in order")
+    public void whenLinkLosesFortyPercent_thenEveryEchoArrives() throws IOException {
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        server.setMessageListener((address, message) -> {
+            byte[] data = new byte[message.remaining()];
+            message.get(data);
+            received.add(new String(data));
+        });
+        server.getNetworkEmulator().setLossRate(0.4);
+        client.getNetworkEmulator().setLossRate(0.4);
+        client.connectToServer();
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            messages.add("packet " + i);
+            assertEquals("packet " + i, client.sendEcho("packet " + i));
+        }
+        server.getNetworkEmulator().reset();
+        client.getNetworkEmulator().reset();
+        assertEquals(messages, received);
+        assertTrue(client.getNetworkEmulator().getDropped() > 0);
+        assertTrue(client.getRetransmissions() > 0);
+    }
+
+    @Test
+    @Description("Test delayed, duplicated and reordered packets are delivered once and in order")
+    public void whenLinkDelaysDuplicatesAndReorders_thenMessagesKeepTheirOrder() throws IOException {
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        server.setMessageListener((address, message) -> {
+            byte[] data = new byte[message.remaining()];
+            message.get(data);
+            received.add(new String(data));
+        });
+        NetworkEmulator emulator = client.getNetworkEmulator();
+        emulator.setDelay(20, 5);
+        emulator.setDuplicationRate(0.2);
+        emulator.setReordering(0.2, 10);
+        client.connectToServer();
+        // the round trip includes the emulated latency
+        assertTrue(client.getRttEstimator().getSmoothedRtt() >= 20);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            messages.add("message " + i);
+        }
+        client.setWindowSize(8);
+        client.sendAll(messages);
+        emulator.reset();
+        assertEquals(messages, received);
+        assertTrue(emulator.getDuplicated() > 0);
+        assertTrue(emulator.getReordered() > 0);
+    }
+
+    @Test
+    @Description("Test each connection is served on a thread of its own with blocking reads and writes")
+    public void whenConnectionHandlerIsSet_thenEachConnectionIsServedOnItsOwnThread() throws IOException {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        server.setConnectionHandler(session -> {
+            threads.add(Thread.currentThread());
+            byte[] message;
+            while ((message = session.read()) != null) {
+                session.write(new String(message).toUpperCase().getBytes());
+            }
+        });
+        client.connectToServer();
+        assertEquals("HELLO SERVER", client.sendEcho("hello server"));
+        RudpClient other = new RudpClient();
+        other.connectToServer();
+        assertEquals("SECOND CLIENT", other.sendEcho("second client"));
+        assertEquals("AGAIN", client.sendEcho("again"));
+        // pipelined messages are acknowledged before the handler answers them
+        client.sendAll(List.of("one", "two", "three"));
+        assertEquals("AFTER THE WINDOW", client.sendEcho("after the window"));
+        other.closeConnection();
+        assertEquals(2, threads.size());
+    }
+
+    @Test
+    @Description("Test a slow message handler runs on workers while the event loop keeps receiving")
+    public void whenMessageHandlerIsSlow_thenReceivePathStaysResponsive() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        server.setMessageHandler((address, message) -> {
+            threads.add(Thread.currentThread());
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return new String(message).toUpperCase().getBytes();
+        }, 2, 8);
+        HandlerPipeline pipeline = server.getHandlerPipeline();
+        // several clients flood the blocked handler with pipelined requests
+        List<AsyncRudpClient> clients = new ArrayList<>();
+        List<List<CompletableFuture<byte[]>>> replies = new ArrayList<>();
+        for (int c = 0; c < 4; c++) {
+            AsyncRudpClient async = new AsyncRudpClient(Constants.SERVER_NAME, Constants.PORT,
+                    RudpEventLoopGroup.getDefault().next());
+            async.connect().get(1, TimeUnit.SECONDS);
+            List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(async.send(ByteBuffer.wrap(("client " + c + " request " + i).getBytes())));
+            }
+            clients.add(async);
+            replies.add(futures);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((pipeline.getFree() > 0 || server.getMetrics().getOverloads() == 0) &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // the queue is full, new data is refused and the window shrinks, yet handshakes are still answered
+        assertEquals(pipeline.getCapacity(), pipeline.getPending());
+        assertTrue(server.getMetrics().getOverloads() > 0);
+        assertEquals(1, server.getReceiveWindow());
+        long start = System.nanoTime();
+        client.connectToServer();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+        release.countDown();
+        for (int c = 0; c < clients.size(); c++) {
+            for (int i = 0; i < replies.get(c).size(); i++) {
+                assertEquals("CLIENT " + c + " REQUEST " + i,
+                        new String(replies.get(c).get(i).get(30, TimeUnit.SECONDS)));
+            }
+            clients.get(c).close().get(5, TimeUnit.SECONDS);
+        }
+        assertEquals("HELLO WORKERS", client.sendEcho("hello workers"));
+        assertEquals(2, threads.size());
+        assertFalse(threads.contains(server));
+    }
+
+    @Test
+    @Description("Test swapping the message handler while requests arrive answers every request and frees the window")
+    public void whenMessageHandlerIsSwapped_thenEveryRequestIsAnswered() throws Exception {
+        server.setMessageHandler((address, message) -> message, 2, 64);
+        AsyncRudpClient async = new AsyncRudpClient(Constants.SERVER_NAME, Constants.PORT,
+                RudpEventLoopGroup.getDefault().next());
+        async.connect().get(1, TimeUnit.SECONDS);
+        List<CompletableFuture<byte[]>> replies = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            replies.add(async.send(ByteBuffer.wrap(("request " + i).getBytes())));
+            if (i % 100 == 0) {
+                // the event loop keeps submitting to the previous workers until it sees the new ones
+                server.setMessageHandler((address, message) -> message, 2, 64);
+            }
+        }
+        for (int i = 0; i < replies.size(); i++) {
+            assertEquals("request " + i, new String(replies.get(i).get(30, TimeUnit.SECONDS)));
+        }
+        async.close().get(5, TimeUnit.SECONDS);
+        assertEquals(0, server.getHandlerPipeline().getPending());
+        assertEquals(server.getHandlerPipeline().getCapacity(), server.getHandlerPipeline().getFree());
+        client.connectToServer();
+        assertEquals("after the swaps", client.sendEcho("after the swaps"));
+    }
+
+    @Test
+    @Description("Test a request the handler has no reply for, or fails on, still completes with an empty reply")
+    public void whenMessageHandlerFails_thenRequestIsAnsweredEmpty() throws Exception {
+        server.setMessageHandler((address, message) -> {
+            switch (new String(message)) {
+                case "none":
+                    return null;
+                case "fail":
+                    throw new IOException("handler failed on purpose");
+                default:
+                    return message;
+            }
+        }, 2, 64);
+        AsyncRudpClient async = new AsyncRudpClient(Constants.SERVER_NAME, Constants.PORT,
+                RudpEventLoopGroup.getDefault().next());
+        async.connect().get(1, TimeUnit.SECONDS);
+        assertEquals(0, async.send(ByteBuffer.wrap("none".getBytes())).get(1, TimeUnit.SECONDS).length);
+        assertEquals(0, async.send(ByteBuffer.wrap("fail".getBytes())).get(1, TimeUnit.SECONDS).length);
+        assertArrayEquals("next".getBytes(), async.send(ByteBuffer.wrap("next".getBytes())).get(1, TimeUnit.SECONDS));
+        async.close().get(5, TimeUnit.SECONDS);
+        assertEquals(0, server.getHandlerPipeline().getPending());
+    }
+
+    @Test
+    @Description("Test a sharded server serves every client, with a channel per shard or one reader for all")
+    public void whenServerIsSharded_thenEveryClientIsServed() throws IOException {
+        int port = Constants.PORT + 1;
+        List<Boolean> modes = new ArrayList<>(List.of(false));
+        if (ShardedRudpServer.isReusePortSupported()) {
+            modes.add(true);
+        }
+        for (boolean reusePort : modes) {
+            ShardedRudpServer sharded = new ShardedRudpServer(port, 4, reusePort);
+            sharded.start();
+            try {
+                List<RudpClient> clients = new ArrayList<>();
+                for (int i = 0; i < 16; i++) {
+                    RudpClient shardClient = new RudpClient(Constants.SERVER_NAME, port);
+                    shardClient.connectToServer();
+                    assertEquals("client " + i, shardClient.sendEcho("client " + i));
+                    clients.add(shardClient);
+                }
+                assertEquals(16, sharded.getConnectionCount());
+                assertEquals(16, sharded.getMetrics().getHandshakes());
+                if (!reusePort) {
+                    // the reader spreads the peers by their hash
+                    int busy = 0;
+                    for (int i = 0; i < sharded.getShardCount(); i++) {
+                        busy += sharded.getShard(i).getConnectionCount() > 0 ? 1 : 0;
+                    }
+                    assertTrue(busy > 1);
+                    // the datagrams are handed over in pooled packets which come back to the reader
+                    PacketPool pool = sharded.getShard(0).getPacketPool();
+                    assertTrue(pool.getAllocated() < pool.getAcquired() / 2);
+                }
+                for (RudpClient shardClient : clients) {
+                    shardClient.closeConnection();
+                }
+            } finally {
+                sharded.shutdown();
+            }
+        }
+    }
+
+    @Test
+    @Description("Test the metrics count the traffic of both endpoints and the handshake is recorded by JFR")
+    public void whenTrafficFlows_thenMetricsAndEventsAreRecorded() throws IOException {
+        Path file = Files.createTempFile("rudp", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("rudp.Handshake");
+            recording.start();
+            client.connectToServer();
+            recording.stop();
+            recording.dump(file);
+            assertTrue(RecordingFile.readAllEvents(file).stream()
+                    .anyMatch(event -> event.getEventType().getName().equals("rudp.Handshake")));
+        } finally {
+            Files.delete(file);
+        }
+        for (int i = 0; i < 10; i++) {
+            client.sendEcho("message " + i);
+        }
+        RudpMetrics clientMetrics = client.getMetrics();
+        RudpMetrics serverMetrics = server.getMetrics();
+        assertEquals(1, clientMetrics.getHandshakes());
+        assertEquals(1, serverMetrics.getHandshakes());
+        // the request, its acknowledgement and the echoes
+        assertEquals(12, clientMetrics.getPacketsOut());
+        assertEquals(12, serverMetrics.getPacketsIn());
+        assertEquals(11, clientMetrics.getPacketsIn());
+        assertEquals(clientMetrics.getBytesOut(), serverMetrics.getBytesIn());
+        assertEquals(0, clientMetrics.getRetransmits());
+        assertTrue(clientMetrics.getRttPercentile(50) > 0);
+        assertTrue(clientMetrics.getTimeout() >= RudpDatagramPacket.MIN_TIMEOUT);
+        assertTrue(RudpMetrics.GLOBAL.getPacketsOut() >= clientMetrics.getPacketsOut() +
+                serverMetrics.getPacketsOut());
+
+        // lost echoes are retransmitted and the server sees the requests again
+        server.getNetworkEmulator().setLossRate(0.5);
+        for (int i = 0; i < 10; i++) {
+            client.sendEcho("message " + i);
+        }
+        server.getNetworkEmulator().reset();
+        assertTrue(clientMetrics.getRetransmits() > 0);
+        assertEquals(clientMetrics.getRetransmits(), serverMetrics.getDuplicates());
+    }
+
+    @Test
+    @Description("Test the latency histogram reports percentiles within its precision")
+    public void whenLatenciesAreRecorded_thenPercentilesAreReported() throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100_000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000_000, histogram.getMax());
+        assertEquals(50_000_000, histogram.getPercentile(50), 50_000_000 / 50);
+        assertEquals(99_000_000, histogram.getPercentile(99), 99_000_000 / 50);
+        assertEquals(99_900_000, histogram.getPercentile(99.9), 99_900_000 / 50);
+        // small values are exact
+        histogram.reset();
+        histogram.record(7);
+        assertEquals(7, histogram.getPercentile(100));
+    }
+
+    @Test
+    @Description("Test the congestion window grows on acknowledgements and shrinks on loss")
+    public void whenPacketsAreAcknowledgedOrLost_thenCongestionWindowAdapts() throws IOException {
+        NewRenoCongestionControl newReno = new NewRenoCongestionControl();
+        assertEquals(NewRenoCongestionControl.INITIAL_WINDOW, newReno.getWindow());
+        // slow start doubles the window every round trip
+        newReno.onAck(newReno.getWindow());
+        assertEquals(2 * NewRenoCongestionControl.INITIAL_WINDOW, newReno.getWindow());
+        newReno.onLoss();
+        assertEquals(NewRenoCongestionControl.INITIAL_WINDOW, newReno.getWindow());
+        // congestion avoidance adds one packet per round trip
+        newReno.onAck(newReno.getWindow());
+        assertEquals(NewRenoCongestionControl.INITIAL_WINDOW + 1, newReno.getWindow());
+        newReno.onTimeout();
+        assertEquals(1, newReno.getWindow());
+
+        // the server advertises its window on the acknowledgements of fragments
+        client.connectToServer();
+        client.setWindowSize(64);
+        client.sendMessage(new byte[10_000]);
+        assertTrue(client.getAdvertisedWindow() <= RudpDatagramPacket.SACK_BITS);
+        assertTrue(client.getCongestionControl().getWindow() > NewRenoCongestionControl.INITIAL_WINDOW);
+    }
+
     @After
     public void shutDown() throws IOException {
-        client.closeConnection();
+        // tests which never use the shared client leave it unconnected
+        if (client.isConnected()) {
+            client.closeConnection();
+        }
+        server.shutdown();
     }
 }
\ No newline at end of file
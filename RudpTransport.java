@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends packets on behalf of an endpoint without tying the protocol logic to a particular socket type
+ */
+public interface RudpTransport {
+    /**
+     * Sends a packet to the address and port set on it
+     *
+     * @param packet the packet
+     */
+    void send(DatagramPacket packet) throws IOException;
+
+    /**
+     * Creates a transport over a non-blocking channel. When the socket send buffer is full the packet is dropped,
+     * exactly as if it had been lost on the network, and the retransmission timers recover it. The buffer over the
+     * packet's array and the destination address are kept between sends, so sending from the same packet again
+     * does not allocate.
+     *
+     * @param channel the channel
+     * @return the transport
+     */
+    static RudpTransport of(DatagramChannel channel) {
+        return new RudpTransport() {
+            private byte[] array;                   // backing array of the last packet sent
+            private ByteBuffer buffer;              // buffer over that array
+            private InetSocketAddress destination;  // destination of the last packet sent
+
+            @Override
+            public void send(DatagramPacket packet) throws IOException {
+                if (packet.getData() != array) {
+                    array = packet.getData();
+                    buffer = ByteBuffer.wrap(array);
+                }
+                buffer.limit(packet.getOffset() + packet.getLength());
+                buffer.position(packet.getOffset());
+                if (destination == null || destination.getPort() != packet.getPort() ||
+                        !destination.getAddress().equals(packet.getAddress())) {
+                    destination = new InetSocketAddress(packet.getAddress(), packet.getPort());
+                }
+                channel.send(buffer, destination);
+            }
+        };
+    }
+
+    /**
+     * Creates a transport which counts the packets sent through another one. A packet is counted before it is sent,
+     * so a peer which sees the packet also sees it in the metrics.
+     *
+     * @param transport the transport which sends the packets
+     * @param metrics   the metrics counting them
+     * @return the transport
+     */
+    static RudpTransport metered(RudpTransport transport, RudpMetrics metrics) {
+        return packet -> {
+            metrics.onPacketOut(packet.getLength());
+            transport.send(packet);
+        };
+    }
+}
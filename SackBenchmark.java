@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how many bytes the Go-Back-N sender sends again with and without selective acknowledgements. This is the
+ * loss scenario of the README, numbered messages sent through a link which drops datagrams in both directions,
+ * scaled up to a batch large enough to average out the randomness of the losses.
+ */
+public class SackBenchmark {
+    private static final int MESSAGES = 1000;                       // messages sent for each run
+    private static final int WINDOW_SIZE = 16;
+    private static final double[] LOSS_RATES = {0.05, 0.1, 0.2, 0.3, 0.4};
+
+    public static void main(String[] args) throws IOException {
+        Benchmarks.prepare(50);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            messages.add("message number " + i);
+        }
+        PrintStream out = System.out;
+        out.printf("%d messages, window of %d%n", MESSAGES, WINDOW_SIZE);
+        out.printf("%6s %6s %12s %18s %8s%n", "loss", "sack", "msgs/s", "retransmitted B", "saved");
+        for (double lossRate : LOSS_RATES) {
+            long withoutSack = 0;
+            for (boolean sack : new boolean[]{false, true}) {
+                RudpServer server = Benchmarks.startServer();
+                RudpClient client = Benchmarks.newClient(WINDOW_SIZE, new FixedWindowCongestionControl(WINDOW_SIZE));
+                client.setSackEnabled(sack);
+                try {
+                    client.connectToServer();
+                    // the handshake goes through unharmed so both runs send the same packets
+                    Benchmarks.setLossRate(server, client, lossRate);
+                    long start = System.nanoTime();
+                    client.sendAll(messages);
+                    long elapsed = System.nanoTime() - start;
+                    Benchmarks.setLossRate(server, client, 0);
+                    long retransmitted = client.getRetransmittedBytes();
+                    client.closeConnection();
+                    if (!sack) {
+                        withoutSack = retransmitted;
+                    }
+                    out.printf("%5.0f%% %6s %12.0f %18d %8s%n", lossRate * 100, sack ? "on" : "off",
+                            MESSAGES * 1e9 / elapsed, retransmitted,
+                            sack && withoutSack > 0 ? String.format("%.0f%%",
+                                    100.0 * (withoutSack - retransmitted) / withoutSack) : "");
+                } finally {
+                    server.shutdown();
+                }
+            }
+        }
+    }
+}
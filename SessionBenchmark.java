@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compares the echo of the server's event loop with the same echo written as a blocking
+ * {@link RudpServer.ConnectionHandler}, one thread per connection, for a growing number of concurrent clients.
+ * The clients share the default event loop group and each sends its echoes one after the other.
+ */
+public class SessionBenchmark {
+    private static final int[] CLIENTS = {10, 100, 1000};
+    private static final int ECHOES = 200;              // echoes per client
+    private static final String MESSAGE = "hello server";
+
+    public static void main(String[] args) throws IOException {
+        Benchmarks.prepare(50);
+        PrintStream out = System.out;
+        out.printf("%-24s %8s %12s %10s %10s %10s%n", "server", "clients", "echoes/s", "p50 us", "p99 us",
+                "p999 us");
+        for (int clients : CLIENTS) {
+            run(out, "event loop", clients, null);
+            run(out, "thread per connection", clients, session -> {
+                byte[] message;
+                while ((message = session.read()) != null) {
+                    session.write(message);
+                }
+            });
+        }
+    }
+
+    /**
+     * Connects the clients, lets each send its echoes and prints the throughput and latency
+     */
+    private static void run(PrintStream out, String label, int count, RudpServer.ConnectionHandler handler)
+            throws IOException {
+        RudpServer server = new RudpServer(Constants.PORT);
+        if (handler != null) {
+            server.setConnectionHandler(handler);
+        }
+        server.start();
+        List<AsyncRudpClient> clients = new ArrayList<>();
+        try {
+            List<CompletableFuture<Void>> connections = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                AsyncRudpClient client = new AsyncRudpClient(Constants.SERVER_NAME, Constants.PORT,
+                        RudpEventLoopGroup.getDefault().next());
+                clients.add(client);
+                connections.add(client.connect());
+            }
+            CompletableFuture.allOf(connections.toArray(new CompletableFuture<?>[0])).join();
+
+            LatencyHistogram latencies = new LatencyHistogram();
+            List<CompletableFuture<Void>> runs = new ArrayList<>();
+            long begin = System.nanoTime();
+            for (AsyncRudpClient client : clients) {
+                runs.add(echoes(client, ECHOES, latencies));
+            }
+            CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[0])).join();
+            long elapsed = System.nanoTime() - begin;
+            out.printf("%-24s %8d %12.0f %10.1f %10.1f %10.1f%n", label, count,
+                    (double) count * ECHOES * 1e9 / elapsed, latencies.getPercentile(50) / 1000.0,
+                    latencies.getPercentile(99) / 1000.0, latencies.getPercentile(99.9) / 1000.0);
+
+            List<CompletableFuture<Void>> closes = new ArrayList<>();
+            for (AsyncRudpClient client : clients) {
+                closes.add(client.close());
+            }
+            CompletableFuture.allOf(closes.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Sends the given number of echoes one after the other, recording the round trip of each
+     */
+    private static CompletableFuture<Void> echoes(AsyncRudpClient client, int remaining,
+                                                  LatencyHistogram latencies) {
+        if (remaining == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long start = System.nanoTime();
+        return client.sendEcho(MESSAGE).thenCompose(reply -> {
+            // the clients complete on the threads of several loops
+            synchronized (latencies) {
+                latencies.record(System.nanoTime() - start);
+            }
+            return echoes(client, remaining - 1, latencies);
+        });
+    }
+}
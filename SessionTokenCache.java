@@ -0,0 +1,89 @@
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The session tokens a server handed out in its handshakes. A returning client sends its token in the connection
+ * request to skip the last leg of the handshake and to send data in its first packet. A token is bound to the
+ * address of the client, not its port, expires after {@link RudpDatagramPacket#TOKEN_LIFETIME} milliseconds and can
+ * be redeemed once, so a replayed connection request cannot deliver its data twice. The cache keeps at most
+ * {@link RudpDatagramPacket#TOKEN_CACHE_SIZE} tokens, dropping the oldest first. The shards of a server share one
+ * cache, so it is synchronized.
+ */
+public class SessionTokenCache {
+    /**
+     * The client a token was handed to and when the token expires
+     */
+    private static class Entry {
+        private final InetAddress address;
+        private final long expiresAt;   // time in milliseconds
+
+        Entry(InetAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final LinkedHashMap<Long, Entry> tokens = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            return size() > RudpDatagramPacket.TOKEN_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Hands out a new token to a client
+     *
+     * @param address the address of the client
+     * @param data    the array the token is written to
+     * @param offset  the index of the token in the array
+     */
+    public synchronized void issue(InetAddress address, byte[] data, int offset) {
+        long now = System.currentTimeMillis();
+        evictExpired(now);
+        long token;
+        do {
+            token = random.nextLong();
+        } while (tokens.containsKey(token));
+        tokens.put(token, new Entry(address, now + RudpDatagramPacket.TOKEN_LIFETIME));
+        for (int i = 0; i < RudpDatagramPacket.TOKEN_SIZE; i++) {
+            data[offset + i] = (byte) (token >>> (8 * i));
+        }
+    }
+
+    /**
+     * Checks a token sent back by a client and forgets it
+     *
+     * @param address the address of the client
+     * @param data    the array holding the token
+     * @param offset  the index of the token in the array
+     * @return true if the token was handed to this address and did not expire, false otherwise
+     */
+    public synchronized boolean redeem(InetAddress address, byte[] data, int offset) {
+        long token = 0;
+        for (int i = 0; i < RudpDatagramPacket.TOKEN_SIZE; i++) {
+            token |= (data[offset + i] & 0xFFL) << (8 * i);
+        }
+        Entry entry = tokens.remove(token);
+        return entry != null && entry.address.equals(address) && entry.expiresAt > System.currentTimeMillis();
+    }
+
+    public synchronized int size() {
+        return tokens.size();
+    }
+
+    /**
+     * Drops the expired tokens. They were issued in order, so the scan stops at the first live one.
+     *
+     * @param now the time in milliseconds
+     */
+    private void evictExpired(long now) {
+        Iterator<Entry> iterator = tokens.values().iterator();
+        while (iterator.hasNext() && iterator.next().expiresAt <= now) {
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Measures how the throughput of a {@link ShardedRudpServer} grows with its number of shards, in both of its modes.
+ * Many clients on their own event loop group send pipelined batches at once, so the server is the bottleneck as
+ * long as the machine has cores left for the clients.
+ */
+public class ShardBenchmark {
+    private static final int PORT = Constants.PORT + 1;
+    private static final int CLIENTS = 64;
+    private static final int MESSAGES = 5000;           // messages per client
+    private static final int WINDOW_SIZE = 32;
+    private static final String MESSAGE = "hello server";
+
+    public static void main(String[] args) throws IOException {
+        Benchmarks.prepare(50);
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> workers = new ArrayList<>(List.of(1, 2, 4));
+        if (!workers.contains(cores)) {
+            workers.add(cores);
+            Collections.sort(workers);
+        }
+        List<Boolean> modes = new ArrayList<>(List.of(false));
+        if (ShardedRudpServer.isReusePortSupported()) {
+            modes.add(0, true);
+        }
+        RudpEventLoopGroup clientLoops = new RudpEventLoopGroup(Math.max(1, cores / 2));
+        List<String> messages = Collections.nCopies(MESSAGES, MESSAGE);
+        PrintStream out = System.out;
+        out.printf("%d cores, %d clients x %d messages, window of %d%n", cores, CLIENTS, MESSAGES, WINDOW_SIZE);
+        out.printf("%-12s %8s %12s %10s%n", "mode", "workers", "msgs/s", "speedup");
+        for (boolean reusePort : modes) {
+            double single = 0;
+            for (int count : workers) {
+                double rate = run(count, reusePort, clientLoops, messages);
+                if (count == 1) {
+                    single = rate;
+                }
+                out.printf("%-12s %8d %12.0f %9.2fx%n", reusePort ? "reuseport" : "dispatcher", count, rate,
+                        rate / single);
+            }
+        }
+        clientLoops.shutdown();
+    }
+
+    /**
+     * Lets every client send its messages at once through a server with the given shards
+     *
+     * @return the messages per second of all the clients together
+     */
+    private static double run(int workers, boolean reusePort, RudpEventLoopGroup clientLoops, List<String> messages)
+            throws IOException {
+        ShardedRudpServer server = new ShardedRudpServer(PORT, workers, reusePort);
+        server.start();
+        try {
+            List<AsyncRudpClient> clients = new ArrayList<>();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                AsyncRudpClient client = new AsyncRudpClient(Constants.SERVER_NAME, PORT, clientLoops.next());
+                client.setWindowSize(WINDOW_SIZE);
+                clients.add(client);
+                futures.add(client.connect());
+            }
+            join(futures);
+            long begin = System.nanoTime();
+            for (AsyncRudpClient client : clients) {
+                futures.add(client.sendAll(messages));
+            }
+            join(futures);
+            double rate = (double) CLIENTS * MESSAGES * 1e9 / (System.nanoTime() - begin);
+            for (AsyncRudpClient client : clients) {
+                futures.add(client.close());
+            }
+            join(futures);
+            return rate;
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static void join(List<CompletableFuture<Void>> futures) {
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        futures.clear();
+    }
+}
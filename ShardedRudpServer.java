@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A server spread over several shards, each a {@link RudpServer} with its own thread which exclusively owns the
+ * connections of a share of the peers, so nothing is locked on the path of a packet. Where the system supports
+ * {@code SO_REUSEPORT}, every shard binds its own channel to the port and the kernel spreads the peers over them.
+ * Elsewhere the first shard reads the only channel and hands each datagram to the shard its peer hashes to; every
+ * shard still sends its replies itself.
+ */
+public class ShardedRudpServer {
+    private final RudpServer[] shards;
+    private final RudpMetrics metrics;      // sum of the metrics of every shard
+    private final boolean reusePort;        // whether each shard has its own channel
+
+    public ShardedRudpServer(int port, int workers) throws IOException {
+        this(port, workers, isReusePortSupported());
+    }
+
+    /**
+     * Creates the shards of a server
+     *
+     * @param port      the port
+     * @param workers   the number of shards
+     * @param reusePort whether each shard binds its own channel, which needs {@code SO_REUSEPORT}
+     */
+    public ShardedRudpServer(int port, int workers, boolean reusePort) throws IOException {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Invalid number of workers: " + workers);
+        }
+        this.reusePort = reusePort;
+        metrics = new RudpMetrics();
+        shards = new RudpServer[workers];
+        // a client resuming from another port may land on another shard
+        SessionTokenCache tokens = new SessionTokenCache();
+        DatagramChannel shared = null;
+        try {
+            shared = reusePort ? null : RudpServer.openChannel(port, false);
+            for (int i = 0; i < workers; i++) {
+                DatagramChannel channel = reusePort ? RudpServer.openChannel(port, true) : shared;
+                try {
+                    shards[i] = new RudpServer(channel, metrics, tokens, reusePort || i == 0);
+                } catch (IOException | RuntimeException e) {
+                    // no shard owns the channel yet, nobody else will close it
+                    if (reusePort) {
+                        channel.close();
+                    }
+                    throw e;
+                }
+                shards[i].setName("rudp-shard-" + i);
+            }
+        } catch (IOException | RuntimeException e) {
+            shutdown();
+            if (shared != null) {
+                shared.close();
+            }
+            throw e;
+        }
+        if (!reusePort) {
+            shards[0].setShards(shards);
+        }
+    }
+
+    /**
+     * Checks if several channels can share a port
+     *
+     * @return true if {@code SO_REUSEPORT} is supported
+     */
+    public static boolean isReusePortSupported() {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the shard which owns the connection of a peer when one shard reads for all of them
+     *
+     * @param address the address and port of the peer
+     * @param shards  the number of shards
+     * @return the index of the shard
+     */
+    static int shardOf(SocketAddress address, int shards) {
+        int hash = address.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), shards);
+    }
+
+    public void start() {
+        for (RudpServer shard : shards) {
+            shard.start();
+        }
+    }
+
+    /**
+     * Stops every shard and waits until their channels are released
+     */
+    public void shutdown() {
+        for (RudpServer shard : shards) {
+            if (shard != null) {
+                shard.shutdown();
+            }
+        }
+    }
+
+    public void setMessageListener(RudpServer.MessageListener messageListener) {
+        for (RudpServer shard : shards) {
+            shard.setMessageListener(messageListener);
+        }
+    }
+
+    public void setConnectionHandler(RudpServer.ConnectionHandler connectionHandler) {
+        for (RudpServer shard : shards) {
+            shard.setConnectionHandler(connectionHandler);
+        }
+    }
+
+    public void setMessageHandler(RudpServer.MessageHandler messageHandler) {
+        for (RudpServer shard : shards) {
+            shard.setMessageHandler(messageHandler);
+        }
+    }
+
+    public int getConnectionCount() {
+        int count = 0;
+        for (RudpServer shard : shards) {
+            count += shard.getConnectionCount();
+        }
+        return count;
+    }
+
+    public RudpMetrics getMetrics() {
+        return metrics;
+    }
+
+    public RudpServer getShard(int index) {
+        return shards[index];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+}
@@ -0,0 +1,99 @@
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stateless SYN cookies. The server's initial sequence number is a keyed MAC of the client's address and port, the
+ * client's initial sequence number and a time slot, so the server can acknowledge a connection request without
+ * remembering it and rebuild the connection from the client's final acknowledgement. The lowest bit of the cookie
+ * carries whether the client permits selective acknowledgements, which the final acknowledgement does not repeat.
+ * A cookie stays valid for one to two slots of {@link RudpDatagramPacket#COOKIE_LIFETIME} milliseconds.
+ * <p>
+ * The sequence numbers are 16 bits wide, so a forged acknowledgement is accepted with a probability of about
+ * 2<sup>-14</sup> (15 bits of MAC, two slots). An instance is used by the thread of one server only.
+ */
+public class SynCookies {
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final Mac mac;
+    private final byte[] input = new byte[16 + 2 + 2 + 8];  // address, port, client sequence number, slot
+    private final byte[] output;
+
+    public SynCookies() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        try {
+            mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret, ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            // every Java runtime provides HmacSHA256
+            throw new IllegalStateException(e);
+        }
+        output = new byte[mac.getMacLength()];
+    }
+
+    /**
+     * Creates the cookie for a connection request
+     *
+     * @param address               the address and port of the client
+     * @param clientSequenceNumber  the client's initial sequence number
+     * @param sackPermitted         whether the client permits selective acknowledgements
+     * @return the server's initial sequence number
+     */
+    public short create(InetSocketAddress address, short clientSequenceNumber, boolean sackPermitted) {
+        return cookie(address, clientSequenceNumber, sackPermitted, slot());
+    }
+
+    /**
+     * Checks the cookie acknowledged by the final packet of a handshake
+     *
+     * @param address              the address and port of the client
+     * @param clientSequenceNumber the client's initial sequence number
+     * @param cookie               the server's initial sequence number, as acknowledged by the client
+     * @return true if this server created the cookie for this request during the current or the previous slot
+     */
+    public boolean verify(InetSocketAddress address, short clientSequenceNumber, short cookie) {
+        boolean sackPermitted = isSackPermitted(cookie);
+        long slot = slot();
+        return cookie == cookie(address, clientSequenceNumber, sackPermitted, slot) ||
+                cookie == cookie(address, clientSequenceNumber, sackPermitted, slot - 1);
+    }
+
+    /**
+     * Returns whether the client of a valid cookie permits selective acknowledgements
+     *
+     * @param cookie the cookie
+     * @return true if the connection request carried the SACK flag
+     */
+    public static boolean isSackPermitted(short cookie) {
+        return (cookie & 1) != 0;
+    }
+
+    private static long slot() {
+        return System.currentTimeMillis() / RudpDatagramPacket.COOKIE_LIFETIME;
+    }
+
+    private short cookie(InetSocketAddress address, short clientSequenceNumber, boolean sackPermitted, long slot) {
+        byte[] ip = address.getAddress().getAddress();
+        System.arraycopy(ip, 0, input, 0, ip.length);
+        int index = 16;
+        input[index++] = (byte) address.getPort();
+        input[index++] = (byte) (address.getPort() >> 8);
+        input[index++] = (byte) clientSequenceNumber;
+        input[index++] = (byte) (clientSequenceNumber >> 8);
+        for (int i = 0; i < 8; i++) {
+            input[index++] = (byte) (slot >>> (8 * i));
+        }
+        mac.update(input, 0, ip.length);
+        mac.update(input, 16, input.length - 16);
+        try {
+            mac.doFinal(output, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        int bits = ((output[0] & 0xFF) << 8) | (output[1] & 0xFF);
+        return (short) ((bits & ~1) | (sackPermitted ? 1 : 0));
+    }
+}
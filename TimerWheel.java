@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel which runs tasks after a delay. Timers are bucketed by the tick they expire on, so
+ * scheduling and cancelling cost the same no matter how many timers are pending. The wheel has no thread of its own:
+ * the owner calls {@link #advance()} from its receive loop and waits at most {@link #timeUntilNextTimer()} for
+ * data.
+ */
+public class TimerWheel {
+    public static final long TICK_MILLIS = 1;       // resolution of the wheel in milliseconds
+    public static final int SLOTS = 512;            // number of buckets, one revolution covers SLOTS ticks
+
+    /**
+     * Work done when a timer expires
+     */
+    public interface Task {
+        void expire() throws IOException;
+    }
+
+    /**
+     * Handle of a scheduled task which can be used to cancel it
+     */
+    public class Timeout {
+        private final Task task;
+        private long remainingRounds;   // full revolutions left before the timer expires
+        private boolean done;           // whether the timer expired or was cancelled
+
+        private Timeout(Task task, long remainingRounds) {
+            this.task = task;
+            this.remainingRounds = remainingRounds;
+        }
+
+        /**
+         * Cancels the timer, the task will not run. Cancelling an expired timer has no effect. The timer is removed
+         * from its bucket on the next pass.
+         */
+        public void cancel() {
+            if (!done) {
+                done = true;
+                pending--;
+            }
+        }
+    }
+
+    private final List<Timeout>[] wheel;
+    private final long tickMillis;
+    private final long startMillis;
+    private long currentTick;       // next tick to be processed
+    private int pending;            // number of timers neither expired nor cancelled
+
+    public TimerWheel() {
+        this(TICK_MILLIS, SLOTS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMillis, int slots) {
+        this.tickMillis = tickMillis;
+        wheel = (List<Timeout>[]) new List<?>[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        startMillis = now();
+    }
+
+    /**
+     * Schedules a task to run after the given delay
+     *
+     * @param task        the task
+     * @param delayMillis the delay in milliseconds
+     * @return the handle of the timer
+     */
+    public Timeout schedule(Task task, long delayMillis) {
+        // round up so the task never runs early
+        long tick = Math.max(currentTick, (now() - startMillis + delayMillis + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(task, (tick - currentTick) / wheel.length);
+        wheel[(int) (tick % wheel.length)].add(timeout);
+        pending++;
+        return timeout;
+    }
+
+    /**
+     * Runs every task whose delay has passed. If a task fails, the remaining timers stay scheduled.
+     */
+    public void advance() throws IOException {
+        long nowTick = (now() - startMillis) / tickMillis;
+        while (currentTick <= nowTick) {
+            if (pending == 0) {
+                // nothing to run, skip the idle ticks
+                currentTick = nowTick + 1;
+                break;
+            }
+            int slot = (int) (currentTick % wheel.length);
+            currentTick++;
+            List<Timeout> bucket = wheel[slot];
+            if (bucket.isEmpty()) {
+                continue;
+            }
+            wheel[slot] = new ArrayList<>();
+            int i = 0;
+            try {
+                while (i < bucket.size()) {
+                    Timeout timeout = bucket.get(i++);
+                    if (timeout.done) {
+                        continue;
+                    }
+                    if (timeout.remainingRounds > 0) {
+                        timeout.remainingRounds--;
+                        wheel[slot].add(timeout);
+                        continue;
+                    }
+                    timeout.done = true;
+                    pending--;
+                    timeout.task.expire();
+                }
+            } finally {
+                // keep whatever was not looked at when a task threw
+                wheel[slot].addAll(bucket.subList(i, bucket.size()));
+            }
+        }
+    }
+
+    /**
+     * Returns how long the owner may wait before calling {@link #advance()} again. Looks ahead at most one
+     * revolution for a bucket holding a timer.
+     *
+     * @return the time in milliseconds, 0 if no timer is pending
+     */
+    public long timeUntilNextTimer() {
+        if (pending == 0) {
+            return 0;
+        }
+        long tick = currentTick;
+        while (tick < currentTick + wheel.length - 1 && wheel[(int) (tick % wheel.length)].isEmpty()) {
+            tick++;
+        }
+        return Math.max(1, startMillis + tick * tickMillis - now());
+    }
+
+    public boolean isEmpty() {
+        return pending == 0;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+}
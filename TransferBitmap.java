@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The segments of a file transfer which are done, one bit per segment, kept in a memory-mapped file so the transfer
+ * resumes where it stopped after the process or the connection is interrupted. The file starts with the length of
+ * the transferred file and the size of its segments; a bitmap left by a transfer of another file, or with other
+ * segments, is started over. Setting a bit is a write to memory, the operating system persists it.
+ */
+public class TransferBitmap {
+    private static final int HEADER_SIZE = 12;  // length of the transferred file and size of its segments
+
+    private final Path path;
+    private final MappedByteBuffer bits;
+    private final int segments;                 // number of segments of the file
+    private int done;                           // number of bits set
+
+    /**
+     * Opens the bitmap of a transfer, creating it or starting it over if it belongs to another transfer
+     *
+     * @param path        the file of the bitmap
+     * @param length      the length of the transferred file
+     * @param segmentSize the number of bytes of a segment
+     */
+    public TransferBitmap(Path path, long length, int segmentSize) throws IOException {
+        this.path = path;
+        segments = segmentsOf(length, segmentSize);
+        int size = HEADER_SIZE + (segments + 7) / 8;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            boolean resumed = channel.size() == size;
+            bits = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (resumed && bits.getLong(0) == length && bits.getInt(8) == segmentSize) {
+                for (int i = HEADER_SIZE; i < size; i++) {
+                    done += Integer.bitCount(bits.get(i) & 0xFF);
+                }
+            } else {
+                channel.truncate(size);
+                for (int i = HEADER_SIZE; i < size; i++) {
+                    bits.put(i, (byte) 0);
+                }
+                bits.putLong(0, length);
+                bits.putInt(8, segmentSize);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of segments of a file
+     *
+     * @param length      the length of the file
+     * @param segmentSize the number of bytes of a segment
+     * @return the number of segments, 0 for an empty file
+     */
+    public static int segmentsOf(long length, int segmentSize) {
+        return (int) ((length + segmentSize - 1) / segmentSize);
+    }
+
+    public boolean get(int segment) {
+        return (bits.get(HEADER_SIZE + segment / 8) & (1 << (segment % 8))) != 0;
+    }
+
+    /**
+     * Marks a segment as done
+     *
+     * @param segment the index of the segment
+     * @return true if the segment was not done yet
+     */
+    public boolean set(int segment) {
+        int index = HEADER_SIZE + segment / 8;
+        byte b = bits.get(index);
+        if ((b & (1 << (segment % 8))) != 0) {
+            return false;
+        }
+        bits.put(index, (byte) (b | (1 << (segment % 8))));
+        done++;
+        return true;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public int getDone() {
+        return done;
+    }
+
+    public boolean isComplete() {
+        return done == segments;
+    }
+
+    /**
+     * Deletes the bitmap once the transfer is complete
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the throughput of the Go-Back-N sender for several window sizes over a loopback link on which both
+ * endpoints drop datagrams
+ */
+public class WindowBenchmark {
+    private static final int MESSAGES = 2000;                       // messages sent for each window size
+    private static final int[] WINDOW_SIZES = {1, 2, 4, 8, 16, 32, 64};
+    private static final double LOSS_RATE = 0.1;                    // probability of dropping a datagram
+
+    public static void main(String[] args) throws IOException {
+        Benchmarks.prepare(20);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            messages.add("message number " + i);
+        }
+        PrintStream out = System.out;
+        out.printf("%d messages, %.0f%% loss%n", MESSAGES, LOSS_RATE * 100);
+        out.printf("%8s %12s %16s%n", "window", "msgs/s", "retransmissions");
+        for (int windowSize : WINDOW_SIZES) {
+            run(out, messages, String.valueOf(windowSize), windowSize, new FixedWindowCongestionControl(windowSize));
+        }
+        // the adaptive window, capped by the largest fixed one
+        int maxWindow = WINDOW_SIZES[WINDOW_SIZES.length - 1];
+        run(out, messages, "newreno", maxWindow, new NewRenoCongestionControl());
+    }
+
+    /**
+     * Sends the messages through a lossy link and prints the throughput
+     */
+    private static void run(PrintStream out, List<String> messages, String label, int windowSize,
+                            CongestionControl congestionControl) throws IOException {
+        RudpServer server = Benchmarks.startServer();
+        RudpClient client = Benchmarks.newClient(windowSize, congestionControl);
+        Benchmarks.setLossRate(server, client, LOSS_RATE);
+        try {
+            client.connectToServer();
+            long start = System.nanoTime();
+            client.sendAll(messages);
+            long elapsed = System.nanoTime() - start;
+            client.closeConnection();
+            out.printf("%8s %12.0f %16d%n", label, MESSAGES * 1e9 / elapsed, client.getRetransmissions());
+        } finally {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * One way of handling a packet for the header codec benchmark. Each operation checks the flags and numbers of an
+ * incoming echo and rewrites the header of a data packet into an echo, the way the client and the server do on every
+ * packet. The operation returns a value depending on its result, so the work cannot be optimized away.
+ * <ul>
+ *     <li>helpers: the copying {@code byte[]} header helpers of {@link RudpDatagramPacket}, as the receive and echo
+ *     path was written before the header view existed</li>
+ *     <li>heap: the in-place {@link RudpHeader} view over heap buffers, copying the echo into a reused buffer</li>
+ *     <li>direct: the same view over direct buffers</li>
+ * </ul>
+ */
+public class CodecFixture implements IntUnaryOperator {
+    private static final int DATA_SIZE = 64;    // bytes of data after the reliable header
+
+    private final IntUnaryOperator codec;
+
+    public CodecFixture(String codec) {
+        InetAddress address = InetAddress.getLoopbackAddress();
+        byte[] data = new byte[DATA_SIZE];
+        data[0] = 1;
+        // a SYN whose acknowledgement is checked, and a packet which carries SYN, ACK and data
+        DatagramPacket request = RudpDatagramPacket.createDataPacket(new byte[0], (short) 41, address, 0);
+        DatagramPacket received = RudpDatagramPacket.createDataPacket(data, (short) 7, address, 0);
+        RudpDatagramPacket.setSYN(request.getData());
+        RudpDatagramPacket.setSYN(received.getData());
+        RudpDatagramPacket.setACK(received.getData());
+        RudpDatagramPacket.setACKNumber(received.getData(), (short) 42);
+        int length = received.getLength();
+        switch (codec) {
+            case "helpers":
+                this.codec = helpers(request, received);
+                break;
+            case "heap":
+                this.codec = view(ByteBuffer.wrap(request.getData()), ByteBuffer.wrap(received.getData()),
+                        ByteBuffer.allocate(RudpDatagramPacket.PAYLOAD_MAX_SIZE), length);
+                break;
+            case "direct":
+                this.codec = view(copyToDirect(request), copyToDirect(received),
+                        ByteBuffer.allocateDirect(RudpDatagramPacket.PAYLOAD_MAX_SIZE), length);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown codec " + codec);
+        }
+    }
+
+    @Override
+    public int applyAsInt(int i) {
+        return codec.applyAsInt(i);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static IntUnaryOperator helpers(DatagramPacket request, DatagramPacket received) {
+        return i -> {
+            // verifyServerAck
+            boolean acknowledged =
+                    RudpDatagramPacket.isSYN(RudpDatagramPacket.getReliableHeader(received.getData())) &&
+                    RudpDatagramPacket.isACK(RudpDatagramPacket.getReliableHeader(received.getData())) &&
+                    RudpDatagramPacket.getSequenceNumber(
+                            RudpDatagramPacket.getReliableHeader(request.getData())) + 1 ==
+                            RudpDatagramPacket.getACKNumber(RudpDatagramPacket.getReliableHeader(received.getData()));
+            // turn the packet into an echo and keep a copy for duplicates
+            byte[] reliableHeader = RudpDatagramPacket.getReliableHeader(received.getData());
+            RudpDatagramPacket.setACK(reliableHeader);
+            RudpDatagramPacket.setACKNumber(reliableHeader, (short) (i + 1));
+            RudpDatagramPacket.setSequenceNumber(reliableHeader, (short) i);
+            RudpDatagramPacket.modifyReliableHeader(reliableHeader, received.getData());
+            DatagramPacket reply = RudpDatagramPacket.copyPacket(received);
+            byte[] data = RudpDatagramPacket.getData(reply);
+            return (acknowledged ? 1 : 0) + data[0] + reply.getLength();
+        };
+    }
+
+    private static IntUnaryOperator view(ByteBuffer request, ByteBuffer received, ByteBuffer reply, int length) {
+        RudpHeader requestHeader = new RudpHeader().wrap(request, 0);
+        RudpHeader header = new RudpHeader().wrap(received, 0);
+        return i -> {
+            boolean acknowledged = header.isSYN() && header.isACK() &&
+                    (short) (requestHeader.getSequenceNumber() + 1) == header.getACKNumber();
+            header.setACK();
+            header.setACKNumber((short) (i + 1));
+            header.setSequenceNumber((short) i);
+            reply.put(0, received, 0, length);
+            return (acknowledged ? 1 : 0) + reply.get(RudpDatagramPacket.RELIABLE_HEADER_SIZE) + length;
+        };
+    }
+
+    private static ByteBuffer copyToDirect(DatagramPacket packet) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RudpDatagramPacket.PAYLOAD_MAX_SIZE);
+        buffer.put(packet.getData(), packet.getOffset(), packet.getLength());
+        return buffer;
+    }
+}
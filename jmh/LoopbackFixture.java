@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntSupplier;
+
+/**
+ * A server on loopback and the clients of one operation of the handshake and echo benchmarks. Each call to
+ * {@link #getAsInt()} runs the operation once and returns the number of replies it received, which the echo
+ * benchmark counts as messages; {@link #run()} then closes the connection a handshake opened, outside the
+ * measurement. An optional loss rate is applied in both directions by the network emulators.
+ * <ul>
+ *     <li>connect: a new client connects</li>
+ *     <li>firstReply: a new client connects and sends one echo</li>
+ *     <li>resumed: a client resumes the last session with its token and sends an echo in the first packet</li>
+ *     <li>sendEcho: one round trip of {@link RudpClient#sendEcho(String)} on an open connection</li>
+ *     <li>pipelined: {@value #PIPELINE_DEPTH} requests of {@link AsyncRudpClient#send(ByteBuffer)}, all outstanding
+ *     at once, until the last reply</li>
+ * </ul>
+ */
+public class LoopbackFixture implements IntSupplier, Runnable, AutoCloseable {
+    private static final String MESSAGE = "hello server";
+    private static final int PIPELINE_DEPTH = 64;   // requests outstanding at once in the pipelined operation
+
+    private final String operation;
+    private final double lossRate;
+    private final RudpServer server;
+    private final ByteBuffer request = ByteBuffer.wrap(MESSAGE.getBytes());
+    private final List<CompletableFuture<byte[]>> replies = new ArrayList<>(PIPELINE_DEPTH);
+    private RudpClient client;              // the open connection of the echo operations
+    private AsyncRudpClient async;          // the open connection of the pipelined operation
+    private RudpClient handshakeClient;     // the connection the last handshake opened
+    private byte[] sessionToken;            // the token the next resumed handshake sends
+
+    public LoopbackFixture(String operation, double lossRate) throws IOException {
+        this.operation = operation;
+        this.lossRate = lossRate;
+        Benchmarks.prepare(50);
+        server = new RudpServer(Constants.PORT);
+        server.getNetworkEmulator().setLossRate(lossRate);
+        server.start();
+        switch (operation) {
+            case "connect":
+            case "firstReply":
+                break;
+            case "resumed":
+                RudpClient first = newClient();
+                first.connectToServer();
+                sessionToken = first.getSessionToken();
+                first.closeConnection();
+                break;
+            case "sendEcho":
+                client = newClient();
+                client.connectToServer();
+                break;
+            case "pipelined":
+                async = new AsyncRudpClient(Constants.SERVER_NAME, Constants.PORT,
+                        RudpEventLoopGroup.getDefault().next());
+                async.getNetworkEmulator().setLossRate(lossRate);
+                async.setWindowSize(RudpDatagramPacket.REPLY_SLOTS);
+                async.connect().join();
+                break;
+            default:
+                server.shutdown();
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    private RudpClient newClient() throws IOException {
+        RudpClient newClient = new RudpClient(Constants.SERVER_NAME, Constants.PORT);
+        newClient.getNetworkEmulator().setLossRate(lossRate);
+        return newClient;
+    }
+
+    @Override
+    public int getAsInt() {
+        try {
+            switch (operation) {
+                case "connect":
+                    handshakeClient = newClient();
+                    handshakeClient.connectToServer();
+                    return 0;
+                case "firstReply":
+                    handshakeClient = newClient();
+                    handshakeClient.connectToServer();
+                    return reply(handshakeClient.sendEcho(MESSAGE).length());
+                case "resumed":
+                    handshakeClient = newClient();
+                    handshakeClient.setSessionToken(sessionToken);
+                    int length = handshakeClient.connectToServer(request.rewind()).length;
+                    // every handshake hands out a new token, the old one was redeemed
+                    sessionToken = handshakeClient.getSessionToken();
+                    return reply(length);
+                case "sendEcho":
+                    return reply(client.sendEcho(MESSAGE).length());
+                default:
+                    return pipeline();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int pipeline() {
+        replies.clear();
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            replies.add(async.send(request.rewind()));
+        }
+        int count = 0;
+        for (CompletableFuture<byte[]> reply : replies) {
+            count += reply(reply.join().length);
+        }
+        return count;
+    }
+
+    /**
+     * Checks a reply is the echo of the request
+     *
+     * @param length the length of the reply
+     * @return 1, the reply counted
+     */
+    private static int reply(int length) {
+        if (length != MESSAGE.length()) {
+            throw new IllegalStateException("Reply of " + length + " bytes to a request of " + MESSAGE.length());
+        }
+        return 1;
+    }
+
+    @Override
+    public void run() {
+        if (handshakeClient != null) {
+            try {
+                handshakeClient.closeConnection();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            handshakeClient = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            run();
+            if (client != null) {
+                client.closeConnection();
+            }
+            if (async != null) {
+                async.close().join();
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+}
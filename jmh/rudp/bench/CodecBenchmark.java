@@ -0,0 +1,57 @@
+package rudp.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Compares the cost of handling a packet with the copying {@code byte[]} header helpers of
+ * {@code RudpDatagramPacket} against the in-place {@code RudpHeader} view on a heap and on a direct buffer. Single
+ * operations are too short for the clock, so an invocation runs a batch of {@value #BATCH} and the p50/p99/p999 of
+ * the sample time mode are per operation of a batch. Run with {@code java -jar target/benchmarks.jar CodecBenchmark
+ * -prof gc} to see the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private static final int BATCH = 1000;  // operations timed together
+
+    @Param({"helpers", "heap", "direct"})
+    private String codec;
+
+    private IntUnaryOperator fixture;
+    private int sequenceNumber;
+
+    @Setup
+    public void setUp() {
+        // CodecFixture is in the unnamed package with the classes it measures, which this package cannot import:
+        // it can only be created by name, a direct reference does not compile
+        fixture = Fixtures.create(IntUnaryOperator.class, "CodecFixture", codec);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int handle() {
+        int result = 0;
+        for (int i = 0; i < BATCH; i++) {
+            result += fixture.applyAsInt(sequenceNumber++);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,80 @@
+package rudp.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Measures echo round trips over loopback on an open connection: one {@code RudpClient.sendEcho(String)} at a time,
+ * and a pipeline of requests of {@code AsyncRudpClient.send(ByteBuffer)} all outstanding at once, sampled until the
+ * last reply. {@code roundTrip} samples the time of an operation and reports p50/p99/p999; {@code messages} reports
+ * the throughput in echoed messages per second, a pipelined operation counting each of its replies. Run with
+ * {@code java -jar target/benchmarks.jar EchoBenchmark}, adding {@code -p lossRate=0.05} for a lossy link.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EchoBenchmark {
+    @Param({"sendEcho", "pipelined"})
+    private String echo;
+
+    @Param("0")
+    private double lossRate;
+
+    private IntSupplier fixture;
+
+    /**
+     * The replies received, reported by the throughput mode as messages per second
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Messages {
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.create(IntSupplier.class, "LoopbackFixture", echo, lossRate);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        ((AutoCloseable) fixture).close();
+    }
+
+    @Benchmark
+    public int roundTrip() {
+        return fixture.getAsInt();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int messages(Messages counter) {
+        int replies = fixture.getAsInt();
+        counter.messages += replies;
+        return replies;
+    }
+}
@@ -0,0 +1,37 @@
+package rudp.bench;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Creates the fixtures the benchmarks run. The protocol classes live in the unnamed package, which JMH does not
+ * accept for benchmarks and a named package cannot import, so every fixture is an unnamed-package class next to the
+ * benchmarks, created by name once per trial and then called through a JDK interface it implements.
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    /**
+     * Creates a fixture
+     *
+     * @param type      the interface the fixture is used through
+     * @param name      the name of the fixture class
+     * @param arguments the arguments of its public constructor
+     * @return the fixture
+     */
+    static <T> T create(Class<T> type, String name, Object... arguments) {
+        try {
+            for (Constructor<?> constructor : Class.forName(name).getConstructors()) {
+                if (constructor.getParameterCount() == arguments.length) {
+                    return type.cast(constructor.newInstance(arguments));
+                }
+            }
+            throw new IllegalArgumentException(name + " has no constructor taking " + arguments.length + " arguments");
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Cannot create " + name, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + name, e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package rudp.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Measures the latency of a new connection over loopback: the handshake of {@code RudpClient.connectToServer()}, the
+ * time to the first reply of a new connection and the time to the first reply of a session resumed with a token,
+ * whose request travels in the connection request. Closing the connection is not measured. The sample time mode
+ * reports p50/p99/p999. Run with {@code java -jar target/benchmarks.jar HandshakeBenchmark}, adding
+ * {@code -p lossRate=0.05} for a lossy link.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark {
+    @Param({"connect", "firstReply", "resumed"})
+    private String handshake;
+
+    @Param("0")
+    private double lossRate;
+
+    private IntSupplier fixture;
+
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.create(IntSupplier.class, "LoopbackFixture", handshake, lossRate);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeHandshake() {
+        ((Runnable) fixture).run();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        ((AutoCloseable) fixture).close();
+    }
+
+    @Benchmark
+    public int handshake() {
+        return fixture.getAsInt();
+    }
+}